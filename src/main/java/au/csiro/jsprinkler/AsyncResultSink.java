@@ -0,0 +1,231 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues events and passes them on to other listeners on a background thread, so tests and reporting never
+ * wait for report files to be written. Events are delivered in batches; after each batch any listener that is
+ * {@link Flushable} is flushed. A listener that fails is logged and skipped for that event.
+ */
+public class AsyncResultSink implements ResultListener, Flushable, Closeable {
+
+    final private static Logger log = LoggerFactory.getLogger(AsyncResultSink.class);
+
+    final private static int MAX_BATCH = 1024;
+
+    private abstract static class Event {
+        abstract void deliver(ResultListener listener);
+    }
+
+    final private static Event CLOSE = new Event() {
+        void deliver(ResultListener listener) {
+        }
+    };
+
+    /**
+     * Released once the events before it have been delivered and the listeners flushed.
+     */
+    final private static class FlushEvent extends Event {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        void deliver(ResultListener listener) {
+        }
+    }
+
+    final private List<ResultListener> listeners;
+
+    final private BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+
+    final private Thread thread;
+
+    private volatile boolean closed;
+
+    public AsyncResultSink(List<ResultListener> listeners) {
+        this.listeners = new ArrayList<>(listeners);
+        this.thread = new Thread("result-sink") {
+            public void run() {
+                drain();
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public List<ResultListener> getListeners() {
+        return listeners;
+    }
+
+    public void runStarted(final long time, final String name) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.runStarted(time, name);
+            }
+        });
+    }
+
+    public void suiteStarted(final long time, final String id, final String name) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.suiteStarted(time, id, name);
+            }
+        });
+    }
+
+    public void testStarted(final long time, final TestContext test) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.testStarted(time, test);
+            }
+        });
+    }
+
+    public void testFinished(final long time, final TestContext test) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.testFinished(time, test);
+            }
+        });
+    }
+
+    public void suiteFinished(final long time, final String id, final String name) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.suiteFinished(time, id, name);
+            }
+        });
+    }
+
+    public void runFinished(final long time, final int total, final int failed, final long elapsedNanos) {
+        enqueue(new Event() {
+            void deliver(ResultListener listener) {
+                listener.runFinished(time, total, failed, elapsedNanos);
+            }
+        });
+    }
+
+    /**
+     * Waits until the events queued so far have been delivered and flushed.
+     */
+    public void flush() throws IOException {
+        final FlushEvent flush = new FlushEvent();
+        enqueue(flush);
+        try {
+            flush.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for results to be written");
+        }
+    }
+
+    /**
+     * Delivers the events already queued, then closes any listener that is {@link Closeable}.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(CLOSE);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for results to be written");
+        }
+        for (ResultListener listener: listeners) {
+            if (listener instanceof Closeable) {
+                try {
+                    ((Closeable) listener).close();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Unable to close " + listener + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void enqueue(Event event) {
+        if (closed) {
+            throw new IllegalStateException("Result sink is closed");
+        }
+        queue.add(event);
+    }
+
+    private void drain() {
+        final List<Event> batch = new ArrayList<>(MAX_BATCH);
+        final List<FlushEvent> flushes = new ArrayList<>();
+        boolean close = false;
+        while (!close) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            for (Event event: batch) {
+                if (event == CLOSE) {
+                    close = true;
+                    continue;
+                } else if (event instanceof FlushEvent) {
+                    flushes.add((FlushEvent) event);
+                    continue;
+                }
+                for (ResultListener listener: listeners) {
+                    try {
+                        event.deliver(listener);
+                    } catch (RuntimeException e) {
+                        log.warn("Result listener " + listener + " failed: " + e.getMessage());
+                    }
+                }
+            }
+            batch.clear();
+
+            try {
+                for (ResultListener listener: listeners) {
+                    if (listener instanceof Flushable) {
+                        try {
+                            ((Flushable) listener).flush();
+                        } catch (IOException | RuntimeException e) {
+                            log.warn("Unable to flush " + listener + ": " + e.getMessage());
+                        }
+                    }
+                }
+            } finally {
+                for (FlushEvent flush: flushes) {
+                    flush.done.countDown();
+                }
+                flushes.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Stops requests to an endpoint that is not answering. After <code>threshold</code> consecutive connection
+ * failures or timeouts the breaker opens and requests fail at once; after the cool-down one request is let
+ * through, which closes the breaker if it succeeds and opens it again if it fails.
+ * Any response, whatever its status, counts as a success.
+ */
+public class CircuitBreaker {
+
+    final private String endpoint;
+
+    final private int threshold;
+
+    final private long coolDownMillis;
+
+    private int failures;
+
+    private String lastFailure;
+
+    private long openedAt;
+
+    private boolean open;
+
+    private boolean probing;
+
+    /**
+     * @param endpoint named in the reason given when requests are refused
+     */
+    public CircuitBreaker(String endpoint, int threshold, long coolDownMillis) {
+        this.endpoint = endpoint;
+        this.threshold = threshold;
+        this.coolDownMillis = coolDownMillis;
+    }
+
+    /**
+     * @throws IOException if the breaker is open and the request must not be made
+     */
+    public synchronized void check() throws IOException {
+        if (!open) {
+            return;
+        }
+        if (!probing && System.currentTimeMillis() - openedAt >= coolDownMillis) {
+            probing = true;
+            return;
+        }
+        throw new IOException("Circuit open: " + endpoint + " failed " + failures + " times in a row (last: " + lastFailure + ")");
+    }
+
+    public synchronized void success() {
+        failures = 0;
+        open = false;
+        probing = false;
+    }
+
+    public synchronized void failure(Exception e) {
+        failures++;
+        lastFailure = e.getClass().getSimpleName() + (null == e.getMessage() ? "" : " " + e.getMessage());
+        if (probing || failures >= threshold) {
+            open = true;
+            probing = false;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Ends a request that failed for a reason that says nothing about the endpoint. If it was the probe,
+     * the next request is let through to probe again.
+     */
+    public synchronized void release() {
+        probing = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return true for failures that suggest the endpoint is down or hung rather than an error in one request
+     */
+    static boolean isConnectionFailure(Throwable e) {
+        return e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof SocketTimeoutException
+                || e instanceof NoRouteToHostException || e instanceof UnknownHostException || e instanceof NoHttpResponseException;
+    }
+
+}
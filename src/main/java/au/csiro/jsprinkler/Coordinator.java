@@ -0,0 +1,662 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.jdom2.JDOMException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits a script across {@link Worker} processes. The coordinator compiles the script and runs setup once,
+ * then hands out the keys of the selected tests (their ids, as used by <code>-testId</code>) over a socket on
+ * the loopback interface, one test at a time per worker, and reports the results in script order.
+ * <p>
+ * Local workers are started as child JVMs with the coordinator's classpath; more may be started by hand with
+ * <code>Worker localhost:port</code> once the coordinator is listening. A test whose worker is lost is handed
+ * out once more before it is failed.
+ * <p>
+ * Latency baselines are checked by the coordinator against the times the workers report, and the run deadline
+ * is kept by the coordinator: once it has passed, no more tests are handed out. Recording, replaying
+ * and metrics files are per process and are refused.
+ */
+public class Coordinator {
+
+    final private static Logger log = LoggerFactory.getLogger(Coordinator.class);
+
+    /**
+     * Options that apply to the coordinator only and are not passed on to workers.
+     */
+    final private static List<String> LOCAL_OPTIONS = Arrays.asList("testId", "suite", "tag", "lastRun", "rerunFailed",
+            "baseline", "maxSlowdown", "deadline", "setupCache", "setupThreads", "setup", "noSetup",
+            "cacheDir", "threads", "streamScript", "workers", "port", "workerTimeout", "jsonl", "junit", "quiet");
+
+    /**
+     * Options that a distributed run cannot honour.
+     */
+    final private static List<String> UNSUPPORTED_OPTIONS = Arrays.asList("record", "replay", "metricsFile");
+
+    final private static int MAX_ATTEMPTS = 2;
+
+    final private TestScript script;
+
+    final private Properties options;
+
+    private int workers = 2;
+
+    private int port;
+
+    private long workerTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+    private PrintStream out = System.out;
+
+    final private List<TestContext> results = new ArrayList<>();
+
+    final private List<WorkerStats> workerStats = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        final List<String> testFiles = new ArrayList<>();
+        final Properties options = new Properties();
+        final String endpoint = TestScript.processArgs(testFiles, options, args);
+
+        final TestScript script = new TestScript(endpoint);
+        final Coordinator coordinator = new Coordinator(script, options);
+        TestScript.configure(script, options);
+        script.setTransport(HttpTransport.create(options));
+
+        if (options.containsKey("workers")) {
+            coordinator.setWorkers(Integer.parseInt(options.getProperty("workers")));
+        }
+        if (options.containsKey("port")) {
+            coordinator.setPort(Integer.parseInt(options.getProperty("port")));
+        }
+        if (options.containsKey("workerTimeout")) {
+            coordinator.setWorkerTimeoutMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(options.getProperty("workerTimeout"))));
+        }
+
+        try {
+            for (String testFile: testFiles) {
+                coordinator.run(new File(testFile));
+            }
+        } finally {
+            if (script.getResultListener() instanceof Closeable) {
+                ((Closeable) script.getResultListener()).close();
+            }
+            HttpTransport.release(script.getTransport());
+        }
+    }
+
+    /**
+     * @param options the command line options, passed on to workers apart from those for the coordinator alone
+     * @throws IllegalArgumentException if an option cannot be used in a distributed run
+     */
+    public Coordinator(TestScript script, Properties options) {
+        for (String option: UNSUPPORTED_OPTIONS) {
+            if (options.containsKey(option)) {
+                throw new IllegalArgumentException("-" + option + " cannot be used in a distributed run");
+            }
+        }
+        this.script = script;
+        this.options = options;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of local worker processes started for each run; 2 by default.
+     * With none, the coordinator waits for workers started by hand.
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the port listened on for workers; 0 (the default) picks a free one.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public long getWorkerTimeoutMillis() {
+        return workerTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a worker may take to answer before it is given up as lost; 10 minutes by default.
+     * Local workers are also given up on when none has been connected for this long.
+     */
+    public void setWorkerTimeoutMillis(long workerTimeoutMillis) {
+        this.workerTimeoutMillis = workerTimeoutMillis;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public List<TestContext> getResults() {
+        return results;
+    }
+
+    public int getFail() {
+        int fail = 0;
+        for (TestContext context: results) {
+            if (context.isFailed()) {
+                fail++;
+            }
+        }
+        return fail;
+    }
+
+    public List<WorkerStats> getWorkerStats() {
+        return workerStats;
+    }
+
+    public int run(File testFile) throws JDOMException, IOException, InterruptedException {
+        return run(new String(Files.readAllBytes(testFile.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the number of failed tests
+     */
+    public int run(String scriptText) throws JDOMException, IOException, InterruptedException {
+        final ExecutionPlan plan = script.getCompiler().compile(new StringReader(scriptText));
+        out.println("Running Test Script: " + plan.getName());
+        final ResultListener listener = script.getResultListener();
+        if (null != listener) {
+            listener.runStarted(System.currentTimeMillis(), plan.getName());
+        }
+
+        final StopWatch sw = new StopWatch();
+        sw.start();
+        results.clear();
+        workerStats.clear();
+        final long deadline = script.getDeadlineMillis() > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(script.getDeadlineMillis()) : 0;
+
+        final List<String> suiteIds = new ArrayList<>();
+        final List<ExecutionPlan.Suite> testSuites = new ArrayList<>();
+        final List<ExecutionPlan.Test> tests = new ArrayList<>();
+        final Set<String> keys = new HashSet<>();
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                if (script.getFilter().matches(suite.getId(), test)) {
+                    if (!keys.add(test.getKey())) {
+                        throw new IllegalArgumentException("Test ids must be unique to distribute a script: " + test.getKey());
+                    }
+                    suiteIds.add(suite.getId());
+                    testSuites.add(suite);
+                    tests.add(test);
+                }
+            }
+        }
+
+        final List<ExecutionPlan.SetupAction> setup = script.isTrimSetup() ? TestFilter.trimSetup(plan.getSetup(), tests) : plan.getSetup();
+        if (script.isDoSetup() && !setup.isEmpty()) {
+            script.executeSetup(setup);
+        }
+
+        final Run run = new Run(tests, suiteIds, scriptText.getBytes(StandardCharsets.UTF_8), deadline);
+        final List<Process> processes = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            run.accept(server);
+            log.info("Listening for workers on localhost:" + server.getLocalPort());
+            for (int i = 0; i < workers; i++) {
+                processes.add(startWorker(server.getLocalPort()));
+            }
+
+            ExecutionPlan.Suite suite = null;
+            for (int i = 0; i < tests.size(); i++) {
+                final TestContext context = run.awaitResult(i, processes);
+                script.checkBaseline(context);
+                if (testSuites.get(i) != suite) {
+                    if (null != listener && null != suite) {
+                        listener.suiteFinished(System.currentTimeMillis(), suite.getId(), suite.getName());
+                    }
+                    suite = testSuites.get(i);
+                    out.println("Execute Suite " + suite.getName());
+                    if (null != listener) {
+                        listener.suiteStarted(System.currentTimeMillis(), suite.getId(), suite.getName());
+                    }
+                }
+                results.add(context);
+                if (null != listener) {
+                    listener.testFinished(System.currentTimeMillis(), context);
+                }
+                if (!script.isQuiet() || context.isFailed()) {
+                    out.print(context.getOutput());
+                }
+            }
+            if (null != listener && null != suite) {
+                listener.suiteFinished(System.currentTimeMillis(), suite.getId(), suite.getName());
+            }
+        } finally {
+            run.finish();
+            for (Process process: processes) {
+                process.destroy();
+            }
+        }
+        sw.stop();
+
+        if (null != script.getLastRun()) {
+            script.getLastRun().record(results);
+            script.getLastRun().save();
+        }
+        if (null != script.getBaseline()) {
+            script.getBaseline().save();
+        }
+        final int fail = getFail();
+        if (null != listener) {
+            listener.runFinished(System.currentTimeMillis(), results.size(), fail, sw.getNanoTime());
+        }
+        out.println("Finish Test Script. Elapsed Time = " + sw);
+        out.println("Tests: " + results.size() + "\tPassed: " + (results.size() - fail) + "\tFailed: " + fail);
+        synchronized (workerStats) {
+            for (WorkerStats stats: workerStats) {
+                out.println(stats);
+            }
+        }
+        return fail;
+    }
+
+    private Process startWorker(int port) throws IOException {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Worker.class.getName(), "localhost:" + port)
+                .inheritIO()
+                .start();
+    }
+
+    /**
+     * @return true if any of the processes is still running
+     */
+    private static boolean isAnyAlive(List<Process> processes) {
+        for (Process process: processes) {
+            try {
+                process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The state shared by the sessions of one run.
+     */
+    private class Run {
+
+        final private List<ExecutionPlan.Test> tests;
+
+        final private List<String> suiteIds;
+
+        final private byte[] scriptBytes;
+
+        final private BlockingDeque<Integer> pending = new LinkedBlockingDeque<>();
+
+        final private BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+
+        final private TestContext[] contexts;
+
+        final private int[] attempts;
+
+        final private AtomicInteger sessions = new AtomicInteger();
+
+        final private List<Socket> sockets = new ArrayList<>();
+
+        private volatile boolean finished;
+
+        private volatile long idleSince = System.nanoTime();
+
+        /** The System.nanoTime() after which no more tests are handed out, or 0 for none. */
+        final private long deadline;
+
+        Run(List<ExecutionPlan.Test> tests, List<String> suiteIds, byte[] scriptBytes, long deadline) {
+            this.tests = tests;
+            this.suiteIds = suiteIds;
+            this.scriptBytes = scriptBytes;
+            this.deadline = deadline;
+            this.contexts = new TestContext[tests.size()];
+            this.attempts = new int[tests.size()];
+            for (int i = 0; i < tests.size(); i++) {
+                pending.add(i);
+            }
+        }
+
+        void accept(final ServerSocket server) {
+            final Thread acceptor = new Thread("coordinator-accept") {
+                public void run() {
+                    try {
+                        while (!finished) {
+                            final Socket socket = server.accept();
+                            synchronized (sockets) {
+                                sockets.add(socket);
+                            }
+                            final Thread session = new Thread(new Session(socket), "coordinator-" + socket.getPort());
+                            session.setDaemon(true);
+                            session.start();
+                        }
+                    } catch (IOException e) {
+                        if (!finished) {
+                            log.warn("No longer accepting workers: " + e.getMessage());
+                        }
+                    }
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * Waits for a test's result, failing it and any others still to run if every local worker has exited
+         * or none has been connected for the worker timeout.
+         */
+        TestContext awaitResult(int index, List<Process> processes) throws InterruptedException {
+            while (true) {
+                synchronized (this) {
+                    if (null != contexts[index]) {
+                        return contexts[index];
+                    }
+                }
+                final boolean idle = null == completed.poll(1, TimeUnit.SECONDS);
+                if (idle && isPastDeadline()) {
+                    Integer next;
+                    while (null != (next = pending.poll())) {
+                        complete(next, notAttempted(next));
+                    }
+                }
+                if (idle && !processes.isEmpty() && sessions.get() == 0) {
+                    final String reason;
+                    if (!isAnyAlive(processes)) {
+                        reason = "Not run: all workers have exited";
+                    } else if (System.nanoTime() - idleSince > TimeUnit.MILLISECONDS.toNanos(workerTimeoutMillis)) {
+                        reason = "Not run: no worker has answered for " + workerTimeoutMillis + "ms";
+                    } else {
+                        continue;
+                    }
+                    synchronized (this) {
+                        for (int i = 0; i < contexts.length; i++) {
+                            if (null == contexts[i]) {
+                                contexts[i] = failed(i, reason);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized void complete(int index, TestContext context) {
+            if (null == contexts[index]) {
+                contexts[index] = context;
+                completed.add(index);
+            }
+        }
+
+        /**
+         * Hands a test lost with its worker to another, or fails it if it has been tried enough.
+         */
+        synchronized void lost(int index, String worker) {
+            if (++attempts[index] < MAX_ATTEMPTS) {
+                pending.addFirst(index);
+            } else {
+                complete(index, failed(index, "Worker " + worker + " was lost while running the test"));
+            }
+        }
+
+        boolean isPastDeadline() {
+            return deadline != 0 && System.nanoTime() - deadline > 0;
+        }
+
+        private TestContext notAttempted(int index) {
+            return failed(index, "Not attempted: the run deadline of " + script.getDeadlineMillis() / 1000 + "s has passed");
+        }
+
+        synchronized boolean isComplete() {
+            for (TestContext context: contexts) {
+                if (null == context) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private TestContext failed(int index, String reason) {
+            final ExecutionPlan.Test test = tests.get(index);
+            final TestContext context = new TestContext(suiteIds.get(index), test.getId(), test.getDisplayName());
+            context.fail();
+            context.addError(reason);
+            context.println("  Test " + context.getName() + ": Failed\n    " + reason);
+            return context;
+        }
+
+        void finish() {
+            finished = true;
+            synchronized (sockets) {
+                for (Socket socket: sockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                }
+            }
+        }
+
+        /**
+         * Serves one worker: sends it the script, then tests until there are none left.
+         */
+        private class Session implements Runnable {
+
+            final private Socket socket;
+
+            Session(Socket socket) {
+                this.socket = socket;
+            }
+
+            public void run() {
+                WorkerStats stats = null;
+                Integer current = null;
+                sessions.incrementAndGet();
+                try {
+                    socket.setTcpNoDelay(true);
+                    // a worker that stops answering is lost like one that disconnects
+                    socket.setSoTimeout((int) Math.min(workerTimeoutMillis, Integer.MAX_VALUE));
+                    final InputStream in = new BufferedInputStream(socket.getInputStream());
+                    final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                    final String hello = WorkerProtocol.readLine(in);
+                    if (null == hello || !hello.startsWith(WorkerProtocol.HELLO + " ")) {
+                        throw new IOException("Unexpected greeting: " + hello);
+                    }
+                    stats = new WorkerStats(WorkerProtocol.argument(hello, WorkerProtocol.HELLO));
+                    synchronized (workerStats) {
+                        workerStats.add(stats);
+                    }
+
+                    for (Map.Entry<Object, Object> option: options.entrySet()) {
+                        if (!LOCAL_OPTIONS.contains(option.getKey())) {
+                            WorkerProtocol.writeLine(out, WorkerProtocol.OPTION + " " + option.getKey() + " " + option.getValue());
+                        }
+                    }
+                    WorkerProtocol.writeLine(out, WorkerProtocol.ENDPOINT + " " + script.getEndpoint());
+                    WorkerProtocol.write(out, WorkerProtocol.SCRIPT, scriptBytes);
+                    out.flush();
+
+                    while (!finished && !isComplete()) {
+                        current = pending.poll(100, TimeUnit.MILLISECONDS);
+                        if (null == current) {
+                            continue;
+                        }
+                        if (isPastDeadline()) {
+                            complete(current, notAttempted(current));
+                            current = null;
+                            continue;
+                        }
+                        final ExecutionPlan.Test test = tests.get(current);
+                        WorkerProtocol.writeLine(out, WorkerProtocol.TEST + " " + test.getKey());
+                        out.flush();
+
+                        final TestContext context = new TestContext(suiteIds.get(current), test.getId(), test.getDisplayName());
+                        final String line = readResult(in, context);
+                        final String[] fields = line.split(" ");
+                        final byte[] output = WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(line));
+                        context.print(new String(output, StandardCharsets.UTF_8));
+                        if (WorkerProtocol.FAILED.equals(fields[1])) {
+                            context.fail();
+                        }
+                        context.addElapsedNanos(Long.parseLong(fields[2]));
+                        stats.record(context);
+                        complete(current, context);
+                        current = null;
+                    }
+                    WorkerProtocol.writeLine(out, WorkerProtocol.DONE);
+                    out.flush();
+                } catch (IOException | RuntimeException e) {
+                    if (!finished) {
+                        log.warn("Lost worker " + (null == stats ? socket.getRemoteSocketAddress() : stats.getName()) + ": " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (null != current) {
+                        lost(current, null == stats ? String.valueOf(socket.getRemoteSocketAddress()) : stats.getName());
+                    }
+                    if (sessions.decrementAndGet() == 0) {
+                        idleSince = System.nanoTime();
+                    }
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                }
+            }
+
+            /**
+             * Reads the errors and operations sent ahead of a result into the context.
+             * @return the RESULT line, whose payload is still to be read
+             */
+            private String readResult(InputStream in, TestContext context) throws IOException {
+                String[] operation = null;
+                String url = null;
+                List<String> errors = new ArrayList<>();
+                while (true) {
+                    final String line = WorkerProtocol.readLine(in);
+                    if (null == line) {
+                        throw new IOException("Unexpected reply: " + line);
+                    }
+                    if (line.startsWith(WorkerProtocol.ERROR + " ")) {
+                        final String error = new String(WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(line)), StandardCharsets.UTF_8);
+                        if (null == url) {
+                            context.addError(error);
+                        } else {
+                            errors.add(error);
+                        }
+                        continue;
+                    }
+                    if (!line.startsWith(WorkerProtocol.OPERATION + " ") && !line.startsWith(WorkerProtocol.RESULT + " ")) {
+                        throw new IOException("Unexpected reply: " + line);
+                    }
+                    if (null != url) {
+                        context.addOperation(url, Integer.parseInt(operation[1]), Long.parseLong(operation[2]), errors);
+                        errors = new ArrayList<>();
+                    }
+                    if (line.startsWith(WorkerProtocol.RESULT + " ")) {
+                        return line;
+                    }
+                    operation = line.split(" ");
+                    url = new String(WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(line)), StandardCharsets.UTF_8);
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * The tests run by one worker and the time they took.
+     */
+    public static class WorkerStats {
+
+        final private String name;
+
+        private int tests;
+
+        private int failed;
+
+        private long elapsedNanos;
+
+        WorkerStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        synchronized void record(TestContext context) {
+            tests++;
+            if (context.isFailed()) {
+                failed++;
+            }
+            elapsedNanos += context.getElapsedNanos();
+        }
+
+        public synchronized int getTests() {
+            return tests;
+        }
+
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "Worker %s: %d tests, %d failed, %.1fs in operations", name, tests, failed, elapsedNanos / 1e9);
+        }
+
+    }
+
+}
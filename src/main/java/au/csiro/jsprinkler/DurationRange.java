@@ -0,0 +1,97 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A parsed <code>maxDuration</code> value: an upper bound (<code>500ms</code>, <code>2s</code>, or
+ * <code>500</code> in milliseconds), or a range (<code>100ms-2s</code>) whose lower bound catches
+ * responses that are suspiciously quick.
+ */
+public class DurationRange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final private String range;
+
+    final private long lowerNanos;
+
+    final private long upperNanos;
+
+    private DurationRange(String range, long lowerNanos, long upperNanos) {
+        this.range = range;
+        this.lowerNanos = lowerNanos;
+        this.upperNanos = upperNanos;
+    }
+
+    /**
+     * @return the range, or null if the value is empty
+     */
+    public static DurationRange parse(String range) {
+        if (null == range || range.trim().isEmpty()) {
+            return null;
+        }
+        final String value = range.trim();
+        final int dash = value.indexOf('-', 1);
+        final long lower = dash < 0 ? 0 : parseNanos(value.substring(0, dash));
+        final long upper = parseNanos(dash < 0 ? value : value.substring(dash + 1));
+        if (lower > upper) {
+            throw new IllegalArgumentException("Empty duration range: " + range);
+        }
+        return new DurationRange(value, lower, upper);
+    }
+
+    private static long parseNanos(String duration) {
+        final String value = duration.trim();
+        final double amount;
+        final TimeUnit unit;
+        if (value.endsWith("ms")) {
+            amount = Double.parseDouble(value.substring(0, value.length() - 2));
+            unit = TimeUnit.MILLISECONDS;
+        } else if (value.endsWith("s")) {
+            amount = Double.parseDouble(value.substring(0, value.length() - 1));
+            unit = TimeUnit.SECONDS;
+        } else {
+            amount = Double.parseDouble(value);
+            unit = TimeUnit.MILLISECONDS;
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative duration: " + duration);
+        }
+        return (long) (amount * unit.toNanos(1));
+    }
+
+    public boolean matches(long nanos) {
+        return lowerNanos <= nanos && nanos <= upperNanos;
+    }
+
+    /**
+     * @return a description of how a duration falls outside the range
+     */
+    public String describe(long nanos) {
+        return (nanos > upperNanos ? "Too slow" : "Too fast") + " - expected " + range + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+
+    public String toString() {
+        return range;
+    }
+
+}
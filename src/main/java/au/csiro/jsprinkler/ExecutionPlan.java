@@ -0,0 +1,356 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Resource;
+
+/**
+ * An immutable, pre-parsed form of a TestScript produced by {@link ScriptCompiler}.
+ * Plans hold no endpoint specific state and may be shared between concurrent runs;
+ * the parsed resources they contain must be treated as read-only.
+ */
+public class ExecutionPlan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final private String name;
+
+    final private List<SetupAction> setup;
+
+    final private List<Suite> suites;
+
+    public ExecutionPlan(String name, List<SetupAction> setup, List<Suite> suites) {
+        this.name = name;
+        this.setup = Collections.unmodifiableList(setup);
+        this.suites = Collections.unmodifiableList(suites);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<SetupAction> getSetup() {
+        return setup;
+    }
+
+    public List<Suite> getSuites() {
+        return suites;
+    }
+
+    public static class SetupAction implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final private String name;
+
+        final private List<Resource> updates;
+
+        public SetupAction(String name, List<Resource> updates) {
+            this.name = name;
+            this.updates = Collections.unmodifiableList(updates);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Resource> getUpdates() {
+            return updates;
+        }
+    }
+
+    public static class Suite implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final private String id;
+
+        final private String name;
+
+        final private List<Test> tests;
+
+        public Suite(String id, String name, List<Test> tests) {
+            this.id = id;
+            this.name = name;
+            this.tests = Collections.unmodifiableList(tests);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Test> getTests() {
+            return tests;
+        }
+    }
+
+    public static class Test implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final private String id;
+
+        final private String name;
+
+        final private List<Operation> operations;
+
+        public Test(String id, String name, List<Operation> operations) {
+            this.id = id;
+            this.name = name;
+            this.operations = Collections.unmodifiableList(operations);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name used when reporting, including the id if there is one
+         */
+        public String getDisplayName() {
+            return name + (id == null ? "" : " ["+id+"]");
+        }
+
+        /**
+         * @return the id, or the display name if there is none, identifying the test between runs
+         */
+        public String getKey() {
+            return null == id ? getDisplayName() : id;
+        }
+
+        public List<Operation> getOperations() {
+            return operations;
+        }
+    }
+
+    public static class Operation implements Serializable {
+
+        private static final long serialVersionUID = 2L;
+
+        final private String url;
+
+        final private Resource input;
+
+        final private byte[] body;
+
+        final private ResponseCodeRange responseCode;
+
+        final private DurationRange maxDuration;
+
+        final private String rule;
+
+        final private Resource expected;
+
+        final private String error;
+
+        private transient volatile ConcurrentMap<String, URI> uris;
+
+        private transient volatile XmlNode expectedNode;
+
+        private transient volatile String requestHash;
+
+        private transient volatile byte[] jsonBody;
+
+        private transient volatile ResourceMatcher matcher;
+
+        private transient volatile ResourceMatcher unorderedMatcher;
+
+        public Operation(String url, Resource input, byte[] body, ResponseCodeRange responseCode, String rule, Resource expected) {
+            this(url, input, body, responseCode, null, rule, expected, null);
+        }
+
+        /**
+         * @param maxDuration the time allowed for the response, or null for no limit
+         */
+        public Operation(String url, Resource input, byte[] body, ResponseCodeRange responseCode, DurationRange maxDuration, String rule, Resource expected) {
+            this(url, input, body, responseCode, maxDuration, rule, expected, null);
+        }
+
+        private Operation(String url, Resource input, byte[] body, ResponseCodeRange responseCode, DurationRange maxDuration, String rule, Resource expected, String error) {
+            this.url = url;
+            this.input = input;
+            this.body = body;
+            this.responseCode = responseCode;
+            this.maxDuration = maxDuration;
+            this.rule = rule;
+            this.expected = expected;
+            this.error = error;
+        }
+
+        /**
+         * Creates an operation that could not be compiled; running it fails its test with the given reason.
+         */
+        public static Operation invalid(String url, String error) {
+            return new Operation(url, null, null, null, null, null, null, error);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the absolute request URI for the given endpoint, cached after the first call
+         */
+        public URI getUri(String endpoint) {
+            ConcurrentMap<String, URI> cache = uris;
+            if (null == cache) {
+                cache = new ConcurrentHashMap<>();
+                uris = cache;
+            }
+            URI uri = cache.get(endpoint);
+            if (null == uri) {
+                uri = URI.create(endpoint+"/"+url);
+                cache.put(endpoint, uri);
+            }
+            return uri;
+        }
+
+        /**
+         * @return the POSTed input resource, or null for a GET
+         */
+        public Resource getInput() {
+            return input;
+        }
+
+        /**
+         * @return the XML encoded input, or null for a GET
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return the input encoded in the given format, or null for a GET; JSON is composed on first use
+         */
+        public byte[] getBody(WireFormat format) {
+            if (null == body || WireFormat.XML == format) {
+                return body;
+            }
+            byte[] json = jsonBody;
+            if (null == json) {
+                try {
+                    json = format.newParser().composeBytes(input);
+                } catch (Exception e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+                jsonBody = json;
+            }
+            return json;
+        }
+
+        public ResponseCodeRange getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @return the time allowed from sending the request to reading the response, or null for no limit
+         */
+        public DurationRange getMaxDuration() {
+            return maxDuration;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public Resource getExpected() {
+            return expected;
+        }
+
+        /**
+         * @return the expected resource as an XML tree for {@link StreamingComparer}, built on first use
+         */
+        public XmlNode getExpectedNode() {
+            XmlNode node = expectedNode;
+            if (null == node && null != expected) {
+                try {
+                    node = XmlNode.parse(new ByteArrayInputStream(new XmlParser().composeBytes(expected)));
+                } catch (Exception e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+                expectedNode = node;
+            }
+            return node;
+        }
+
+        /**
+         * @return the expected resource compiled with the rule, built on first use
+         * @see ResourceComparer#setUnordered(boolean)
+         */
+        public ResourceMatcher getMatcher(boolean unordered) {
+            ResourceMatcher m = unordered ? unorderedMatcher : matcher;
+            if (null == m) {
+                m = ResourceMatcher.compile(rule, expected, unordered);
+                if (unordered) {
+                    unorderedMatcher = m;
+                } else {
+                    matcher = m;
+                }
+            }
+            return m;
+        }
+
+        /**
+         * @return a hash of the request URL and body, identifying the request independently of the endpoint
+         */
+        public String getRequestHash() {
+            String hash = requestHash;
+            if (null == hash) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+                bytes.write(urlBytes, 0, urlBytes.length);
+                if (null != body) {
+                    bytes.write('\n');
+                    bytes.write(body, 0, body.length);
+                }
+                hash = ScriptCompiler.hash(bytes.toByteArray());
+                requestHash = hash;
+            }
+            return hash;
+        }
+
+        public boolean isValid() {
+            return null == error;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+}
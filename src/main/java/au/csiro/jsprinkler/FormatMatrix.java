@@ -0,0 +1,376 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.hl7.fhir.instance.model.Resource;
+import org.jdom2.JDOMException;
+
+/**
+ * Runs each of a script's operations in every {@link WireFormat} and reports, per format, the bytes received,
+ * the server's time to first byte, the time spent downloading and parsing, and whether the response matched.
+ * Operations that pass in one format but not another, or that are answered in a different format from the one
+ * requested, are listed as parity failures.
+ * <p>
+ * The order of the formats alternates between operations so neither always meets the colder server cache;
+ * with <code>-warmup</code> each operation is also sent once, unmeasured, first.
+ */
+public class FormatMatrix {
+
+    final private TestScript script;
+
+    private boolean doSetup;
+
+    private PrintStream out = System.out;
+
+    final private List<Sample> samples = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        final List<String> testFiles = new ArrayList<>();
+        final Properties options = new Properties();
+        final String endpoint = TestScript.processArgs(testFiles, options, args);
+
+        final TestScript script = new TestScript(endpoint);
+        TestScript.configure(script, options);
+        script.setTransport(HttpTransport.create(options));
+
+        final FormatMatrix matrix = new FormatMatrix(script);
+        matrix.setDoSetup(options.containsKey("setup"));
+        try {
+            for (String testFile: testFiles) {
+                matrix.run(new File(testFile));
+                if (options.containsKey("csv")) {
+                    matrix.writeCsv(new File(options.getProperty("csv")));
+                }
+            }
+        } finally {
+            HttpTransport.release(script.getTransport());
+        }
+    }
+
+    public FormatMatrix(TestScript script) {
+        this.script = script;
+    }
+
+    public boolean isDoSetup() {
+        return doSetup;
+    }
+
+    public void setDoSetup(boolean doSetup) {
+        this.doSetup = doSetup;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    public void run(File testFile) throws JDOMException, IOException {
+        run(script.getCompiler().compile(testFile));
+    }
+
+    /**
+     * @return the number of parity failures
+     */
+    public int run(ExecutionPlan plan) {
+        out.println("Format Matrix: " + plan.getName());
+        if (doSetup) {
+            script.executeSetup(plan.getSetup());
+        }
+
+        final List<ExecutionPlan.Operation> operations = new ArrayList<>();
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                if (script.getFilter().matches(suite.getId(), test)) {
+                    for (ExecutionPlan.Operation operation: test.getOperations()) {
+                        if (operation.isValid()) {
+                            operations.add(operation);
+                        }
+                    }
+                }
+            }
+        }
+
+        samples.clear();
+        final WireFormat[] formats = WireFormat.values();
+        for (int i = 0; i < operations.size(); i++) {
+            final ExecutionPlan.Operation operation = operations.get(i);
+            if (script.isWarmup()) {
+                measure(i, operation, formats[0]);
+            }
+            for (int j = 0; j < formats.length; j++) {
+                samples.add(measure(i, operation, formats[i % 2 == 0 ? j : formats.length - 1 - j]));
+            }
+        }
+
+        report();
+        return findParityFailures(samples).size();
+    }
+
+    /**
+     * Sends an operation in one format, parses the response and compares it with the expected resource.
+     */
+    Sample measure(int index, ExecutionPlan.Operation operation, WireFormat format) {
+        final PhaseTimings timings = new PhaseTimings();
+        final URI uri = operation.getUri(script.getEndpoint());
+        final HttpTransport transport = script.getTransport();
+        try {
+            final HttpTransport.Response response = null == operation.getBody()
+                    ? transport.get(uri, format, timings)
+                    : transport.post(uri, operation.getBody(format), format, timings);
+            final WireFormat served = WireFormat.forContentType(response.getContentType(), format);
+
+            final long start = System.nanoTime();
+            final Resource resource = response.getBody().length == 0 ? null : served.newParser().parse(response.getContent());
+            final long parseNanos = System.nanoTime() - start;
+
+            final List<String> errors = new ArrayList<>();
+            if (!operation.getResponseCode().matches(response.getStatus())) {
+                errors.add("Response code mismatch - expected " + operation.getResponseCode() + " got " + response.getStatus());
+            }
+            operation.getMatcher(script.isUnordered()).match(resource, errors, 1);
+            return new Sample(index, operation.getUrl(), format, served, response.getStatus(), response.getBody().length,
+                    timings.getNanos(PhaseTimings.Phase.FIRST_BYTE), timings.getNanos(PhaseTimings.Phase.DOWNLOAD), parseNanos,
+                    errors.isEmpty() ? null : errors.get(0));
+        } catch (Exception e) {
+            return new Sample(index, operation.getUrl(), format, format, -1, 0,
+                    timings.getNanos(PhaseTimings.Phase.FIRST_BYTE), timings.getNanos(PhaseTimings.Phase.DOWNLOAD), 0,
+                    "[" + e.getClass().getSimpleName() + "] " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a description of each operation whose outcome depends on the format, or that was served in the wrong format
+     */
+    static List<String> findParityFailures(List<Sample> samples) {
+        final Map<Integer, List<Sample>> byOperation = new LinkedHashMap<>();
+        for (Sample sample: samples) {
+            List<Sample> list = byOperation.get(sample.getOperation());
+            if (null == list) {
+                list = new ArrayList<>();
+                byOperation.put(sample.getOperation(), list);
+            }
+            list.add(sample);
+        }
+
+        final List<String> failures = new ArrayList<>();
+        for (Map.Entry<Integer, List<Sample>> entry: byOperation.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            boolean anyPassed = false;
+            boolean anyFailed = false;
+            for (Sample sample: entry.getValue()) {
+                if (sample.getServed() != sample.getFormat()) {
+                    sb.append(' ').append(sample.getFormat()).append(" was served as ").append(sample.getServed()).append(';');
+                }
+                anyPassed |= sample.isPassed();
+                anyFailed |= !sample.isPassed();
+            }
+            if (anyPassed && anyFailed) {
+                for (Sample sample: entry.getValue()) {
+                    if (!sample.isPassed()) {
+                        sb.append(' ').append(sample.getFormat()).append(" failed: ").append(sample.getError()).append(';');
+                    }
+                }
+            }
+            if (sb.length() > 0) {
+                failures.add(entry.getValue().get(0).getUrl() + " -" + sb.substring(0, sb.length() - 1));
+            }
+        }
+        return failures;
+    }
+
+    private void report() {
+        final Map<WireFormat, Sample> totals = new EnumMap<>(WireFormat.class);
+        final Map<WireFormat, Integer> passed = new EnumMap<>(WireFormat.class);
+        final Map<WireFormat, Integer> counts = new EnumMap<>(WireFormat.class);
+        for (Sample sample: samples) {
+            final Sample total = totals.get(sample.getFormat());
+            totals.put(sample.getFormat(), null == total ? sample : total.plus(sample));
+            counts.put(sample.getFormat(), (counts.containsKey(sample.getFormat()) ? counts.get(sample.getFormat()) : 0) + 1);
+            passed.put(sample.getFormat(), (passed.containsKey(sample.getFormat()) ? passed.get(sample.getFormat()) : 0) + (sample.isPassed() ? 1 : 0));
+        }
+
+        out.println("Format\tOps\tPassed\tKB\tServer (ms)\tDownload (ms)\tParse (ms)");
+        for (Map.Entry<WireFormat, Sample> entry: totals.entrySet()) {
+            final Sample total = entry.getValue();
+            out.println(String.format(Locale.ROOT, "%s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f",
+                    entry.getKey(), counts.get(entry.getKey()), passed.get(entry.getKey()),
+                    total.getBytes() / 1024.0, total.getServerNanos() / 1e6, total.getDownloadNanos() / 1e6, total.getParseNanos() / 1e6));
+        }
+
+        final List<String> failures = findParityFailures(samples);
+        if (failures.isEmpty()) {
+            out.println("Format parity: all operations agree");
+        } else {
+            out.println("Format parity failures: " + failures.size());
+            for (String failure: failures) {
+                out.println("    " + failure);
+            }
+        }
+    }
+
+    /**
+     * Writes one row per operation and format; failures are reported rather than thrown, as the run itself has finished.
+     */
+    public void writeCsv(File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeCsv(new PrintWriter(writer));
+        } catch (IOException e) {
+            out.println("Unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void writeCsv(PrintWriter writer) {
+        writer.println("url,format,served,status,bytes,server_ms,download_ms,parse_ms,passed,error");
+        for (Sample sample: samples) {
+            writer.println(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%.3f,%.3f,%.3f,%s,%s",
+                    csv(sample.getUrl()), sample.getFormat(), sample.getServed(), sample.getStatus(), sample.getBytes(),
+                    sample.getServerNanos() / 1e6, sample.getDownloadNanos() / 1e6, sample.getParseNanos() / 1e6,
+                    sample.isPassed(), csv(null == sample.getError() ? "" : sample.getError())));
+        }
+        writer.flush();
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * One operation sent in one format.
+     */
+    public static class Sample {
+
+        final private int operation;
+
+        final private String url;
+
+        final private WireFormat format;
+
+        final private WireFormat served;
+
+        final private int status;
+
+        final private long bytes;
+
+        final private long serverNanos;
+
+        final private long downloadNanos;
+
+        final private long parseNanos;
+
+        final private String error;
+
+        /**
+         * @param operation the position of the operation in the run
+         * @param error the first difference from the expected response, or null if it matched
+         */
+        public Sample(int operation, String url, WireFormat format, WireFormat served, int status, long bytes,
+                long serverNanos, long downloadNanos, long parseNanos, String error) {
+            this.operation = operation;
+            this.url = url;
+            this.format = format;
+            this.served = served;
+            this.status = status;
+            this.bytes = bytes;
+            this.serverNanos = serverNanos;
+            this.downloadNanos = downloadNanos;
+            this.parseNanos = parseNanos;
+            this.error = error;
+        }
+
+        Sample plus(Sample other) {
+            return new Sample(operation, url, format, served, status, bytes + other.bytes, serverNanos + other.serverNanos,
+                    downloadNanos + other.downloadNanos, parseNanos + other.parseNanos, error);
+        }
+
+        public int getOperation() {
+            return operation;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public WireFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the format of the response, by its Content-Type
+         */
+        public WireFormat getServed() {
+            return served;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the time to first byte, which is mostly the server's time
+         */
+        public long getServerNanos() {
+            return serverNanos;
+        }
+
+        public long getDownloadNanos() {
+            return downloadNanos;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public boolean isPassed() {
+            return null == error;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+    }
+
+}
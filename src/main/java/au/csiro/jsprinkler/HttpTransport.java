@@ -0,0 +1,872 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A keep-alive HTTP transport backed by a bounded connection pool.
+ * One transport is normally shared by every {@link TestScript} in the JVM so connections
+ * (and, through the shared SSL socket factory, TLS sessions) are reused between operations.
+ * <p>
+ * The number of requests in flight to each endpoint (scheme, host and port) is limited
+ * separately from the pool size, and connection reuse is counted for reporting.
+ * <p>
+ * When a request is given {@link PhaseTimings}, name resolution, connecting, sending, waiting
+ * for the response and reading it are timed through hooks in the client, which all run on the
+ * calling thread.
+ * <p>
+ * An operation timeout bounds the whole exchange, however slowly the response trickles in, by
+ * aborting the request. With a {@link CircuitBreaker} threshold set, an endpoint that keeps failing
+ * to connect or timing out is not tried again until its cool-down has passed.
+ * <p>
+ * Responses may be asked for gzip or deflate encoded, and request bodies sent encoded. Encoded responses
+ * are decoded as they are read, so handlers only see the content and the encoded copy is never held whole;
+ * the content bytes are counted alongside the bytes on the wire.
+ */
+public class HttpTransport implements Closeable {
+
+    final public static int DEFAULT_MAX_CONNECTIONS = 50;
+
+    final public static int DEFAULT_MAX_PER_ENDPOINT = 20;
+
+    final public static int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+    /** Read timeout in milliseconds; 0 waits forever. */
+    final public static int DEFAULT_READ_TIMEOUT = 0;
+
+    final public static long DEFAULT_BREAKER_COOL_DOWN = 30000;
+
+    final public static String ACCEPT_ENCODING = "gzip, deflate";
+
+    final private static int BUFFER_SIZE = 8192;
+
+    private static HttpTransport defaultTransport;
+
+    /** The measurement for the request being executed on this thread, if any. */
+    final private static ThreadLocal<Measurement> CURRENT = new ThreadLocal<>();
+
+    final private PoolingHttpClientConnectionManager connectionManager;
+
+    final private CloseableHttpClient client;
+
+    final private int maxConnections;
+
+    final private int maxPerEndpoint;
+
+    final private ConcurrentMap<String, Semaphore> endpointLimits = new ConcurrentHashMap<>();
+
+    final private AtomicLong requests = new AtomicLong();
+
+    final private AtomicLong reused = new AtomicLong();
+
+    final private ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private volatile int operationTimeout;
+
+    private volatile int breakerThreshold;
+
+    private volatile long breakerCoolDown = DEFAULT_BREAKER_COOL_DOWN;
+
+    private volatile boolean compression;
+
+    private volatile String requestEncoding;
+
+    private ScheduledExecutorService timer;
+
+    public HttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PER_ENDPOINT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnections the size of the connection pool
+     * @param maxPerEndpoint the maximum number of concurrent requests (and pooled connections) per endpoint
+     * @param connectTimeout in milliseconds, 0 for none
+     * @param readTimeout in milliseconds, 0 for none
+     */
+    public HttpTransport(int maxConnections, int maxPerEndpoint, int connectTimeout, int readTimeout) {
+        this.maxConnections = maxConnections;
+        this.maxPerEndpoint = maxPerEndpoint;
+
+        connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+                .register("https", new TimedSocketFactory(SSLConnectionSocketFactory.getSocketFactory()))
+                .build(), new TimedDnsResolver());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerEndpoint);
+        // check connections that have been idle for a while rather than every one
+        connectionManager.setValidateAfterInactivity(2000);
+
+        final RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .setDefaultRequestConfig(config)
+                .setRequestExecutor(new TimedRequestExecutor())
+                .disableContentCompression()
+                .build();
+    }
+
+    /**
+     * @return the transport shared by scripts that have not been given one
+     */
+    public static synchronized HttpTransport getDefault() {
+        if (null == defaultTransport) {
+            defaultTransport = new HttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Closes a transport made by {@link #create}, leaving the shared default transport open.
+     */
+    static void release(HttpTransport transport) throws IOException {
+        if (transport != getDefault()) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Creates a transport from the command line options maxConnections, maxPerEndpoint, connectTimeout,
+     * readTimeout, operationTimeout, breakerThreshold and breakerCoolDown (all times in milliseconds),
+     * compress and requestEncoding, or returns the default transport if none are given.
+     * The caller should {@link #release} it when done.
+     */
+    static HttpTransport create(Properties options) {
+        if (!options.containsKey("maxConnections") && !options.containsKey("maxPerEndpoint")
+                && !options.containsKey("connectTimeout") && !options.containsKey("readTimeout")
+                && !options.containsKey("operationTimeout") && !options.containsKey("breakerThreshold")
+                && !options.containsKey("breakerCoolDown") && !options.containsKey("compress")
+                && !options.containsKey("requestEncoding")) {
+            return getDefault();
+        }
+        final HttpTransport transport = new HttpTransport(
+                getInt(options, "maxConnections", DEFAULT_MAX_CONNECTIONS),
+                getInt(options, "maxPerEndpoint", DEFAULT_MAX_PER_ENDPOINT),
+                getInt(options, "connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+                getInt(options, "readTimeout", DEFAULT_READ_TIMEOUT));
+        transport.setOperationTimeout(getInt(options, "operationTimeout", 0));
+        transport.setBreakerThreshold(getInt(options, "breakerThreshold", 0));
+        transport.setBreakerCoolDown(getInt(options, "breakerCoolDown", (int) DEFAULT_BREAKER_COOL_DOWN));
+        transport.setCompression(options.containsKey("compress"));
+        transport.setRequestEncoding(options.getProperty("requestEncoding"));
+        return transport;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxPerEndpoint() {
+        return maxPerEndpoint;
+    }
+
+    public int getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    /**
+     * Sets the longest a request may take from being sent to its body having been handled, in milliseconds;
+     * 0 (the default) for no limit. Requests that take longer are aborted with a {@link SocketTimeoutException}.
+     */
+    public void setOperationTimeout(int operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+    public int getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive connection failures or timeouts after which requests to an endpoint
+     * fail at once; 0 (the default) never stops trying.
+     */
+    public void setBreakerThreshold(int breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    public long getBreakerCoolDown() {
+        return breakerCoolDown;
+    }
+
+    /**
+     * Sets how long, in milliseconds, an open breaker refuses requests before letting one through to try again.
+     */
+    public void setBreakerCoolDown(long breakerCoolDown) {
+        this.breakerCoolDown = breakerCoolDown;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * When set, requests ask for gzip or deflate encoded responses. Encoded responses are decoded whether
+     * or not they were asked for.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public String getRequestEncoding() {
+        return requestEncoding;
+    }
+
+    /**
+     * Sets the encoding request bodies are compressed with, gzip or deflate; null (the default) sends them as they are.
+     * The server must accept encoded requests.
+     */
+    public void setRequestEncoding(String requestEncoding) {
+        if (null != requestEncoding && !"gzip".equals(requestEncoding) && !"deflate".equals(requestEncoding)) {
+            throw new IllegalArgumentException("Unsupported request encoding: " + requestEncoding + " (expected gzip or deflate)");
+        }
+        this.requestEncoding = requestEncoding;
+    }
+
+    /**
+     * @return the breaker for the endpoint of the URI, or null if breakers are off
+     */
+    public CircuitBreaker getBreaker(URI uri) {
+        if (breakerThreshold <= 0) {
+            return null;
+        }
+        final String key = getEndpointKey(uri);
+        CircuitBreaker breaker = breakers.get(key);
+        if (null == breaker) {
+            breakers.putIfAbsent(key, new CircuitBreaker(key, breakerThreshold, breakerCoolDown));
+            breaker = breakers.get(key);
+        }
+        return breaker;
+    }
+
+    private static int getInt(Properties options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.getProperty(name)) : defaultValue;
+    }
+
+    public Response get(URI uri, WireFormat format) throws IOException {
+        return get(uri, format, null);
+    }
+
+    public Response get(URI uri, WireFormat format, PhaseTimings timings) throws IOException {
+        final HttpGet request = new HttpGet(uri);
+        request.setHeader("Accept", format.getMimeType());
+        return execute(request, timings);
+    }
+
+    public Response post(URI uri, byte[] body, WireFormat format) throws IOException {
+        return post(uri, body, format, null);
+    }
+
+    public Response post(URI uri, byte[] body, WireFormat format, PhaseTimings timings) throws IOException {
+        final HttpPost request = new HttpPost(uri);
+        request.setHeader("Accept", format.getMimeType());
+        request.setEntity(new ByteArrayEntity(body, contentType(format)));
+        return execute(request, timings);
+    }
+
+    public Response put(URI uri, byte[] body, WireFormat format) throws IOException {
+        final HttpPut request = new HttpPut(uri);
+        request.setHeader("Accept", format.getMimeType());
+        request.setEntity(new ByteArrayEntity(body, contentType(format)));
+        return execute(request);
+    }
+
+    /**
+     * Executes a request and reads the whole response body.
+     */
+    public Response execute(HttpUriRequest request) throws IOException {
+        return execute(request, (PhaseTimings) null);
+    }
+
+    /**
+     * Executes a request and reads the whole response body, recording where the time went.
+     */
+    public Response execute(HttpUriRequest request, PhaseTimings timings) throws IOException {
+        try {
+            return execute(request, new ResponseHandler<Response>() {
+                public Response handle(HttpResponse response, InputStream body) throws IOException {
+                    final byte[] bytes = null == body ? new byte[0] : toByteArray(body);
+                    return new Response(response.getStatusLine().getStatusCode(), response.getAllHeaders(), bytes);
+                }
+            }, timings);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Executes a request and passes the response body to the handler as it arrives.
+     * The connection is returned to the pool once the handler has consumed the body.
+     */
+    public <T> T execute(HttpUriRequest request, ResponseHandler<T> handler) throws Exception {
+        return execute(request, handler, null);
+    }
+
+    /**
+     * Executes a request and passes the response body to the handler as it arrives, recording where the
+     * time went if timings are given. The handler's time is recorded as {@link PhaseTimings.Phase#DOWNLOAD}.
+     */
+    public <T> T execute(HttpUriRequest request, ResponseHandler<T> handler, PhaseTimings timings) throws Exception {
+        // before taking a permit, which a failure here would otherwise keep
+        final long contentSent = encode(request);
+        final long bodySent = getBodyLength(request);
+        final CircuitBreaker breaker = getBreaker(request.getURI());
+        if (null != breaker) {
+            breaker.check();
+        }
+        final Semaphore limit = getEndpointLimit(request.getURI());
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            if (null != breaker) {
+                // the request may have been granted the probe
+                breaker.release();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + request.getURI().getHost());
+        }
+
+        final int timeout = operationTimeout;
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> abort = timeout > 0 ? scheduleAbort(request, timedOut, timeout) : null;
+        final Measurement measurement = null == timings ? null : new Measurement(timings);
+        CURRENT.set(measurement);
+        try {
+            return executeAndHandle(request, handler, timings, measurement, bodySent, contentSent, breaker);
+        } catch (Exception e) {
+            Exception failure = e;
+            if (timedOut.get()) {
+                failure = new SocketTimeoutException("Operation timed out after " + timeout + "ms");
+                failure.initCause(e);
+            }
+            if (null != breaker && CircuitBreaker.isConnectionFailure(failure)) {
+                breaker.failure(failure);
+            } else if (null != breaker) {
+                breaker.release();
+            }
+            throw failure;
+        } finally {
+            if (null != abort) {
+                abort.cancel(false);
+            }
+            CURRENT.remove();
+            limit.release();
+        }
+    }
+
+    private <T> T executeAndHandle(HttpUriRequest request, ResponseHandler<T> handler, PhaseTimings timings, Measurement measurement,
+            long bodySent, long contentSent, CircuitBreaker breaker) throws Exception {
+        final HttpClientContext context = HttpClientContext.create();
+        try (CloseableHttpResponse response = client.execute(request, context)) {
+            countRequest(context);
+            // the endpoint has answered, whatever the handler makes of the answer
+            if (null != breaker) {
+                breaker.success();
+            }
+
+            final long start = System.nanoTime();
+            final HttpEntity entity = response.getEntity();
+            try (CountingInputStream wire = null == entity ? null : new CountingInputStream(entity.getContent());
+                    CountingInputStream body = null == entity ? null : new CountingInputStream(decode(entity, wire))) {
+                final T result = handler.handle(response, body);
+                // consume anything left so the connection can be kept alive
+                EntityUtils.consume(entity);
+                if (null != measurement) {
+                    timings.add(PhaseTimings.Phase.DOWNLOAD, System.nanoTime() - start);
+                    measurement.countBytes();
+                    timings.addBodyBytes(bodySent, null == wire ? 0 : wire.getCount());
+                    timings.addContentBytes(contentSent, null == body ? 0 : body.getCount());
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Asks for an encoded response if compression is on, and encodes the request body if a request encoding is set.
+     * @return the size of the request body before encoding
+     */
+    private long encode(HttpUriRequest request) throws IOException {
+        if (compression && !request.containsHeader("Accept-Encoding")) {
+            request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+        }
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        if (null == entity) {
+            return 0;
+        }
+        final String encoding = requestEncoding;
+        if (null == encoding || null != entity.getContentEncoding()) {
+            return Math.max(0, entity.getContentLength());
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountingOutputStream content;
+        try (OutputStream out = "gzip".equals(encoding) ? new GZIPOutputStream(bytes, BUFFER_SIZE) : new DeflaterOutputStream(bytes)) {
+            content = new CountingOutputStream(out);
+            entity.writeTo(content);
+        }
+        final ByteArrayEntity encoded = new ByteArrayEntity(bytes.toByteArray());
+        encoded.setContentType(entity.getContentType());
+        encoded.setContentEncoding(encoding);
+        ((HttpEntityEnclosingRequest) request).setEntity(encoded);
+        return content.getCount();
+    }
+
+    /**
+     * @return the size of the request body as sent, after any encoding
+     */
+    private static long getBodyLength(HttpUriRequest request) {
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        return null == entity ? 0 : Math.max(0, entity.getContentLength());
+    }
+
+    /**
+     * @param in the entity's content as read from the wire
+     * @return the content, decoded as it is read if the entity has a Content-Encoding
+     */
+    static InputStream decode(HttpEntity entity, InputStream in) throws IOException {
+        final Header header = entity.getContentEncoding();
+        final String encoding = null == header ? "" : header.getValue().trim().toLowerCase(Locale.ROOT);
+        if (encoding.isEmpty() || "identity".equals(encoding) || entity.getContentLength() == 0) {
+            return in;
+        } else if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } else if ("deflate".equals(encoding)) {
+            return inflate(in);
+        }
+        throw new IOException("Unsupported Content-Encoding: " + header.getValue());
+    }
+
+    /**
+     * Servers send deflate either in the zlib wrapper the specification calls for or raw, so the first two bytes are checked.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        final byte[] head = new byte[2];
+        int n = 0;
+        while (n < head.length) {
+            final int read = pushback.read(head, n, head.length - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        pushback.unread(head, 0, n);
+        final boolean zlib = n == 2 && (head[0] & 0x0f) == 8 && (((head[0] & 0xff) << 8) | (head[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE) {
+            public void close() throws IOException {
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    private ScheduledFuture<?> scheduleAbort(final HttpUriRequest request, final AtomicBoolean timedOut, int timeout) {
+        return getTimer().schedule(new Runnable() {
+            public void run() {
+                timedOut.set(true);
+                request.abort();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getTimer() {
+        if (null == timer) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "HttpTransport timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    private static String getEndpointKey(URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+    }
+
+    private Semaphore getEndpointLimit(URI uri) {
+        final String key = getEndpointKey(uri);
+        Semaphore limit = endpointLimits.get(key);
+        if (null == limit) {
+            endpointLimits.putIfAbsent(key, new Semaphore(maxPerEndpoint));
+            limit = endpointLimits.get(key);
+        }
+        return limit;
+    }
+
+    /**
+     * A connection that has carried an earlier request was taken from the pool rather than opened.
+     */
+    private void countRequest(HttpClientContext context) {
+        requests.incrementAndGet();
+        final HttpConnection connection = context.getConnection();
+        try {
+            if (null != connection && connection.getMetrics().getRequestCount() > 1) {
+                reused.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            // the connection has already been released; it is not counted as reused
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return a one line summary of connection reuse and the state of the pool
+     */
+    public String getStatistics() {
+        final long total = requests.get();
+        final long hits = reused.get();
+        final String percent = total == 0 ? "0" : String.format(Locale.ROOT, "%.1f", 100.0 * hits / total);
+        return "Connections: " + total + " requests, " + hits + " on reused connections (" + percent + "%), " + getPoolStats();
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (null != timer) {
+                timer.shutdownNow();
+            }
+        }
+        client.close();
+    }
+
+    private static ContentType contentType(WireFormat format) {
+        return ContentType.create(format.getMimeType(), "UTF-8");
+    }
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    private static void record(PhaseTimings.Phase phase, long start) {
+        final Measurement measurement = CURRENT.get();
+        if (null != measurement) {
+            measurement.timings.add(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The timings of the request on this thread and the connection's byte counts when it was sent.
+     * The connection's metrics are kept because the connection itself is released as soon as the body has been read.
+     */
+    private static class Measurement {
+        final private PhaseTimings timings;
+        private HttpConnectionMetrics metrics;
+        private long sentMark;
+        private long receivedMark;
+
+        Measurement(PhaseTimings timings) {
+            this.timings = timings;
+        }
+
+        void mark(HttpConnection connection) {
+            metrics = connection.getMetrics();
+            sentMark = metrics.getSentBytesCount();
+            receivedMark = metrics.getReceivedBytesCount();
+        }
+
+        void countBytes() {
+            if (null != metrics) {
+                timings.addBytes(metrics.getSentBytesCount() - sentMark, metrics.getReceivedBytesCount() - receivedMark);
+            }
+        }
+    }
+
+    private static class TimedDnsResolver implements DnsResolver {
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            final long start = System.nanoTime();
+            try {
+                return InetAddress.getAllByName(host);
+            } finally {
+                record(PhaseTimings.Phase.DNS, start);
+            }
+        }
+    }
+
+    /**
+     * Times connecting, including any TLS handshake done by the delegate.
+     */
+    private static class TimedSocketFactory implements LayeredConnectionSocketFactory {
+        final private ConnectionSocketFactory delegate;
+
+        TimedSocketFactory(ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                record(PhaseTimings.Phase.CONNECT, start);
+            }
+        }
+
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            if (!(delegate instanceof LayeredConnectionSocketFactory)) {
+                throw new UnsupportedOperationException("Cannot layer a connection over " + target);
+            }
+            final long start = System.nanoTime();
+            try {
+                return ((LayeredConnectionSocketFactory) delegate).createLayeredSocket(socket, target, port, context);
+            } finally {
+                record(PhaseTimings.Phase.CONNECT, start);
+            }
+        }
+    }
+
+    private static class TimedRequestExecutor extends HttpRequestExecutor {
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            final Measurement measurement = CURRENT.get();
+            if (null != measurement) {
+                measurement.mark(conn);
+            }
+            final long start = System.nanoTime();
+            try {
+                return super.doSendRequest(request, conn, context);
+            } finally {
+                record(PhaseTimings.Phase.SEND, start);
+            }
+        }
+
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws HttpException, IOException {
+            final long start = System.nanoTime();
+            try {
+                return super.doReceiveResponse(request, conn, context);
+            } finally {
+                record(PhaseTimings.Phase.FIRST_BYTE, start);
+            }
+        }
+    }
+
+    /**
+     * Consumes a response body; the stream is null if the response has none.
+     */
+    public interface ResponseHandler<T> {
+        T handle(HttpResponse response, InputStream body) throws Exception;
+    }
+
+    /**
+     * A fully read response.
+     */
+    public static class Response {
+        final private int status;
+        final private Header[] headers;
+        final private byte[] body;
+
+        public Response(int status, Header[] headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the value of the first header with the given name, or null
+         */
+        public String getHeader(String name) {
+            for (Header header: headers) {
+                if (header.getName().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public InputStream getContent() {
+            return new ByteArrayInputStream(body);
+        }
+    }
+
+}
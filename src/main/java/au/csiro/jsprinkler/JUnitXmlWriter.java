@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+/**
+ * Writes a JUnit style XML report when the run finishes, so CI servers can show the results of a script.
+ * Each suite becomes a <code>testsuite</code> and each test a <code>testcase</code> with a <code>failure</code>
+ * listing its errors. Suites are kept in the order they are run, as their ids are optional and need not be unique;
+ * tests finished outside a suite are reported under the script's name.
+ */
+public class JUnitXmlWriter implements ResultListener {
+
+    final private File file;
+
+    final private List<Suite> suites = new ArrayList<>();
+
+    /**
+     * The suite tests are reported under, or null between suites.
+     */
+    private Suite current;
+
+    private String script = "";
+
+    public JUnitXmlWriter(File file) {
+        this.file = file;
+    }
+
+    public void runStarted(long time, String name) {
+        script = null == name ? "" : name;
+        suites.clear();
+        current = null;
+    }
+
+    public void suiteStarted(long time, String id, String name) {
+        current = new Suite(null == name || name.isEmpty() ? (null == id ? script : id) : name);
+        suites.add(current);
+    }
+
+    public void testStarted(long time, TestContext test) {
+    }
+
+    public void testFinished(long time, TestContext test) {
+        if (null == current) {
+            current = new Suite(script);
+            suites.add(current);
+        }
+        current.tests.add(test);
+    }
+
+    public void suiteFinished(long time, String id, String name) {
+        current = null;
+    }
+
+    public void runFinished(long time, int total, int failed, long elapsedNanos) {
+        try (final OutputStream out = new FileOutputStream(file)) {
+            new XMLOutputter(Format.getPrettyFormat()).output(new Document(toXml(elapsedNanos)), out);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    Element toXml(long elapsedNanos) {
+        final Element root = new Element("testsuites").setAttribute("name", script);
+        int tests = 0;
+        int failures = 0;
+        for (Suite suite: suites) {
+            final Element testsuite = new Element("testsuite").setAttribute("name", suite.name);
+            long nanos = 0;
+            int suiteFailures = 0;
+            for (TestContext test: suite.tests) {
+                final Element testcase = new Element("testcase").setAttribute("classname", suite.name)
+                        .setAttribute("name", null == test.getName() || test.getName().isEmpty() ? test.getKey() : test.getName())
+                        .setAttribute("time", seconds(test.getElapsedNanos()));
+                if (test.isFailed()) {
+                    final List<String> errors = test.getErrors();
+                    final StringBuilder detail = new StringBuilder();
+                    for (String error: errors) {
+                        detail.append(error).append('\n');
+                    }
+                    testcase.addContent(new Element("failure").setAttribute("message", errors.isEmpty() ? "Failed" : errors.get(0))
+                            .setText(detail.toString()));
+                    suiteFailures++;
+                }
+                testsuite.addContent(testcase);
+                nanos += test.getElapsedNanos();
+            }
+            testsuite.setAttribute("tests", Integer.toString(suite.tests.size()));
+            testsuite.setAttribute("failures", Integer.toString(suiteFailures));
+            testsuite.setAttribute("time", seconds(nanos));
+            root.addContent(testsuite);
+            tests += suite.tests.size();
+            failures += suiteFailures;
+        }
+        root.setAttribute("tests", Integer.toString(tests));
+        root.setAttribute("failures", Integer.toString(failures));
+        root.setAttribute("time", seconds(elapsedNanos));
+        return root;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    final private static class Suite {
+
+        final String name;
+
+        final List<TestContext> tests = new ArrayList<>();
+
+        Suite(String name) {
+            this.name = name;
+        }
+
+    }
+
+}
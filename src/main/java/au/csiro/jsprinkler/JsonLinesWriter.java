@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes each event as one JSON object per line, for tools that follow a run as it happens.
+ * Every object has an <code>event</code> and a <code>time</code> in milliseconds since the epoch;
+ * a finished test also has its outcome, bytes moved, errors and the outcome of each operation.
+ */
+public class JsonLinesWriter implements ResultListener, Flushable, Closeable {
+
+    final private Writer writer;
+
+    public JsonLinesWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public JsonLinesWriter(File file) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+    }
+
+    public void runStarted(long time, String name) {
+        write(start("runStarted", time).append(",\"script\":").append(quote(name)));
+    }
+
+    public void suiteStarted(long time, String id, String name) {
+        write(start("suiteStarted", time).append(",\"suite\":").append(quote(id)).append(",\"name\":").append(quote(name)));
+    }
+
+    public void testStarted(long time, TestContext test) {
+        write(test(start("testStarted", time), test));
+    }
+
+    public void testFinished(long time, TestContext test) {
+        final StringBuilder sb = test(start("testFinished", time), test);
+        sb.append(",\"passed\":").append(!test.isFailed());
+        sb.append(",\"elapsedMs\":").append(millis(test.getElapsedNanos()));
+        final PhaseTimings timings = test.getTimings();
+        sb.append(",\"bytesSent\":").append(timings.getBytesSent());
+        sb.append(",\"bytesReceived\":").append(timings.getBytesReceived());
+        sb.append(",\"bodyBytesSent\":").append(timings.getBodyBytesSent());
+        sb.append(",\"bodyBytesReceived\":").append(timings.getBodyBytesReceived());
+        sb.append(",\"contentBytesSent\":").append(timings.getContentBytesSent());
+        sb.append(",\"contentBytesReceived\":").append(timings.getContentBytesReceived());
+        sb.append(",\"errors\":");
+        array(sb, test.getErrors());
+        sb.append(",\"operations\":[");
+        boolean first = true;
+        for (TestContext.OperationResult operation: test.getOperations()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"url\":").append(quote(operation.getUrl()));
+            sb.append(",\"status\":").append(operation.getStatus());
+            sb.append(",\"elapsedMs\":").append(millis(operation.getElapsedNanos()));
+            sb.append(",\"passed\":").append(operation.isPassed());
+            sb.append(",\"errors\":");
+            array(sb, operation.getErrors());
+            sb.append('}');
+        }
+        write(sb.append(']'));
+    }
+
+    public void suiteFinished(long time, String id, String name) {
+        write(start("suiteFinished", time).append(",\"suite\":").append(quote(id)).append(",\"name\":").append(quote(name)));
+    }
+
+    public void runFinished(long time, int total, int failed, long elapsedNanos) {
+        write(start("runFinished", time).append(",\"tests\":").append(total).append(",\"failed\":").append(failed)
+                .append(",\"elapsedMs\":").append(millis(elapsedNanos)));
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static StringBuilder start(String event, long time) {
+        return new StringBuilder("{\"event\":\"").append(event).append("\",\"time\":").append(time);
+    }
+
+    private static StringBuilder test(StringBuilder sb, TestContext test) {
+        return sb.append(",\"suite\":").append(quote(test.getSuiteId())).append(",\"test\":").append(quote(test.getKey()))
+                .append(",\"name\":").append(quote(test.getName()));
+    }
+
+    private void write(StringBuilder sb) {
+        try {
+            writer.write(sb.append("}\n").toString());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write result: " + e.getMessage(), e);
+        }
+    }
+
+    private static void array(StringBuilder sb, List<String> values) {
+        sb.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(quote(values.get(i)));
+        }
+        sb.append(']');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * @return the value as a JSON string, or <code>null</code>
+     */
+    static String quote(String value) {
+        if (null == value) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
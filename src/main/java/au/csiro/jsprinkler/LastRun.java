@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The outcome of each test the last time it ran, kept in a properties file keyed by
+ * {@link ExecutionPlan.Test#getKey()}, so a later run can select just the tests that failed.
+ * Results are merged: tests that did not run keep their earlier outcome.
+ */
+public class LastRun {
+
+    final private static Logger log = LoggerFactory.getLogger(LastRun.class);
+
+    final static String PASSED = "passed";
+
+    final static String FAILED = "failed";
+
+    final private File file;
+
+    final private Map<String, String> outcomes = new TreeMap<>();
+
+    public LastRun(File file) {
+        this.file = file;
+        load();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return outcomes.size();
+    }
+
+    /**
+     * @return the keys of the tests that failed when they last ran
+     */
+    public Set<String> getFailed() {
+        final Set<String> failed = new TreeSet<>();
+        for (Map.Entry<String, String> entry: outcomes.entrySet()) {
+            if (FAILED.equals(entry.getValue())) {
+                failed.add(entry.getKey());
+            }
+        }
+        return failed;
+    }
+
+    public void record(Iterable<TestContext> results) {
+        for (TestContext context: results) {
+            outcomes.put(context.getKey(), context.isFailed() ? FAILED : PASSED);
+        }
+    }
+
+    /**
+     * Writes the file; failures are logged rather than failing the run.
+     */
+    public void save() {
+        final Properties properties = new Properties();
+        properties.putAll(outcomes);
+
+        try {
+            PropertiesFiles.saveProperties(file, properties, null);
+        } catch (IOException e) {
+            log.warn("Unable to save last run results " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable last run results " + file + ": " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<Object, Object> entry: properties.entrySet()) {
+            outcomes.put((String) entry.getKey(), (String) entry.getValue());
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The latency of each test over its last few passing runs, kept in a properties file keyed by
+ * {@link ExecutionPlan.Test#getKey()}, so a run can flag tests that have become slower.
+ * A test is compared with the median of its earlier samples, which a single slow run does not move.
+ */
+public class LatencyBaseline {
+
+    final private static Logger log = LoggerFactory.getLogger(LatencyBaseline.class);
+
+    final public static int DEFAULT_SAMPLES = 5;
+
+    final private File file;
+
+    final private Map<String, long[]> samples = new TreeMap<>();
+
+    private int maxSamples = DEFAULT_SAMPLES;
+
+    private int maxSlowdownPercent = 20;
+
+    private long minSlowdownMillis = 10;
+
+    public LatencyBaseline(File file) {
+        this.file = file;
+        load();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return samples.size();
+    }
+
+    public int getMaxSlowdownPercent() {
+        return maxSlowdownPercent;
+    }
+
+    /**
+     * Sets how much slower than its baseline a test may be before it is flagged; 20% by default.
+     */
+    public void setMaxSlowdownPercent(int maxSlowdownPercent) {
+        this.maxSlowdownPercent = maxSlowdownPercent;
+    }
+
+    public long getMinSlowdownMillis() {
+        return minSlowdownMillis;
+    }
+
+    /**
+     * Sets the smallest slowdown that is flagged whatever the percentage, so jitter in fast tests is ignored; 10ms by default.
+     */
+    public void setMinSlowdownMillis(long minSlowdownMillis) {
+        this.minSlowdownMillis = minSlowdownMillis;
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * Sets the number of runs the baseline is taken from.
+     */
+    public void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * @return the median of the test's earlier samples in milliseconds, or -1 if there are none
+     */
+    public long getBaselineMillis(String key) {
+        final long[] values = samples.get(key);
+        if (null == values || values.length == 0) {
+            return -1;
+        }
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * @return a description of the slowdown if the test is slower than its baseline allows, or null
+     */
+    public String check(String key, long elapsedNanos) {
+        final long baseline = getBaselineMillis(key);
+        if (baseline < 0) {
+            return null;
+        }
+        final long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        final long slowdown = millis - baseline;
+        if (slowdown < minSlowdownMillis || slowdown * 100 <= baseline * maxSlowdownPercent) {
+            return null;
+        }
+        return String.format(Locale.ROOT, "Slower than baseline - %dms against %dms over the last %d runs (+%d%%, allowed %d%%)",
+                millis, baseline, samples.get(key).length, baseline > 0 ? slowdown * 100 / baseline : 100, maxSlowdownPercent);
+    }
+
+    /**
+     * Adds a sample for the test, dropping the oldest once there are {@link #getMaxSamples()}.
+     */
+    public void record(String key, long elapsedNanos) {
+        final long[] values = samples.get(key);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (null == values) {
+            samples.put(key, new long[] {millis});
+        } else {
+            final int keep = Math.min(values.length, maxSamples - 1);
+            final long[] updated = new long[keep + 1];
+            System.arraycopy(values, values.length - keep, updated, 0, keep);
+            updated[keep] = millis;
+            samples.put(key, updated);
+        }
+    }
+
+    /**
+     * Writes the file; failures are logged rather than failing the run.
+     */
+    public void save() {
+        final Properties properties = new Properties();
+        for (Map.Entry<String, long[]> entry: samples.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            for (long value: entry.getValue()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(value);
+            }
+            properties.setProperty(entry.getKey(), sb.toString());
+        }
+
+        try {
+            PropertiesFiles.saveProperties(file, properties, "Test latencies in milliseconds, oldest first");
+        } catch (IOException e) {
+            log.warn("Unable to save latency baseline " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable latency baseline " + file + ": " + e.getMessage());
+            return;
+        }
+        for (String key: properties.stringPropertyNames()) {
+            try {
+                final String[] parts = properties.getProperty(key).split(",");
+                final long[] values = new long[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    values[i] = Long.parseLong(parts[i].trim());
+                }
+                samples.put(key, values);
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unreadable baseline for " + key + " in " + file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory, thread-safe latency histogram with log-linear buckets.
+ * Values (in microseconds) below 64 are recorded exactly, larger values with a relative
+ * error of about 3%, up to a maximum of 2^36us (roughly 19 hours).
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private static final int LINEAR_COUNT = SUB_COUNT * 2;
+
+    private static final int MAX_BITS = 36;
+
+    private static final int BUCKET_COUNT = LINEAR_COUNT + (MAX_BITS - SUB_BITS - 1) * SUB_COUNT;
+
+    final private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    final private AtomicLong total = new AtomicLong();
+
+    final private AtomicLong sum = new AtomicLong();
+
+    final private AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        final long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long c = other.counts.get(i);
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+
+        final long value = other.max.get();
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the total of all recorded values
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the highest value equivalent to the given percentile (0-100], never more than {@link #getMax()}
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_COUNT) {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BITS;
+        final int sub = (int) (value >>> shift);
+        final int index = LINEAR_COUNT + (shift - 1) * SUB_COUNT + (sub - SUB_COUNT);
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    static long lowestEquivalent(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        final int k = index - LINEAR_COUNT;
+        final int shift = k / SUB_COUNT + 1;
+        final long sub = k % SUB_COUNT + SUB_COUNT;
+        return sub << shift;
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        final int shift = (index - LINEAR_COUNT) / SUB_COUNT + 1;
+        return lowestEquivalent(index) + (1L << shift) - 1;
+    }
+
+}
@@ -0,0 +1,333 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom2.JDOMException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays the operations of a test script against an endpoint for a fixed duration and/or
+ * number of iterations, optionally at a target request rate, and reports latency percentiles
+ * per operation URL.
+ * <p>
+ * When a rate is given, latency is measured from the time a request was scheduled to be sent,
+ * so that a server which falls behind is not flattered by the load generator backing off.
+ * Operations slower than their <code>maxDuration</code> are counted as errors, as are responses
+ * that do not match the expected resource when validating.
+ */
+public class LoadRunner {
+
+    final private static Logger log = LoggerFactory.getLogger(LoadRunner.class);
+
+    final private TestScript script;
+
+    private long durationMillis;
+
+    private double rate;
+
+    private int iterations;
+
+    private int threads = 1;
+
+    private boolean doSetup;
+
+    private boolean validate;
+
+    private PrintStream out = System.out;
+
+    final private Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+
+    final private Map<String, AtomicLong> errors = new LinkedHashMap<>();
+
+    private long elapsedNanos;
+
+    public static void main(String[] args) throws Exception {
+        final List<String> testFiles = new ArrayList<>();
+        final Properties options = new Properties();
+        final String endpoint = TestScript.processArgs(testFiles, options, args);
+
+        final TestScript script = new TestScript(endpoint);
+        TestScript.configure(script, options);
+        script.setTransport(HttpTransport.create(options));
+
+        final LoadRunner runner = new LoadRunner(script);
+        if (options.containsKey("duration")) {
+            runner.setDurationMillis(Long.parseLong(options.getProperty("duration")) * 1000);
+        }
+        if (options.containsKey("rate")) {
+            runner.setRate(Double.parseDouble(options.getProperty("rate")));
+        }
+        if (options.containsKey("iterations")) {
+            runner.setIterations(Integer.parseInt(options.getProperty("iterations")));
+        }
+        runner.setThreads(script.getThreads());
+        runner.setDoSetup(options.containsKey("setup"));
+        runner.setValidate(options.containsKey("validate"));
+
+        try {
+            for (String testFile: testFiles) {
+                runner.run(new File(testFile));
+            }
+        } finally {
+            HttpTransport.release(script.getTransport());
+        }
+    }
+
+    public LoadRunner(TestScript script) {
+        this.script = script;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the target total request rate per second; 0 (the default) sends requests as fast as the workers allow.
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Sets the number of passes over the script's operations; 0 (the default) repeats until the duration expires.
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isDoSetup() {
+        return doSetup;
+    }
+
+    public void setDoSetup(boolean doSetup) {
+        this.doSetup = doSetup;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    /**
+     * Sets whether responses are compared with the expected resource as well as the response code;
+     * off by default so the load generator spends as little time as possible per response.
+     */
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public Map<String, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the number of failed operations in the last run, across all URLs
+     */
+    public long getErrorCount() {
+        long count = 0;
+        for (AtomicLong e: errors.values()) {
+            count += e.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return the wall clock time of the last run, excluding setup
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public void run(File testFile) throws JDOMException, IOException, InterruptedException {
+        run(script.getCompiler().compile(testFile));
+    }
+
+    public void run(ExecutionPlan plan) throws InterruptedException {
+        if (durationMillis <= 0 && iterations <= 0) {
+            throw new IllegalStateException("Either a duration or a number of iterations is required");
+        }
+
+        out.println("Load Test Script: " + plan.getName());
+
+        if (doSetup) {
+            script.executeSetup(plan.getSetup());
+        }
+        final List<ExecutionPlan.Operation> operations = new ArrayList<>();
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            collectOperations(suite, operations);
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("No operations selected");
+        }
+
+        latencies.clear();
+        errors.clear();
+        for (ExecutionPlan.Operation operation: operations) {
+            final String url = operation.getUrl();
+            if (!latencies.containsKey(url)) {
+                latencies.put(url, new LatencyHistogram());
+                errors.put(url, new AtomicLong());
+            }
+        }
+
+        final long start = System.nanoTime();
+        final long deadline = durationMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(durationMillis) : Long.MAX_VALUE;
+        final long limit = iterations > 0 ? (long) iterations * operations.size() : Long.MAX_VALUE;
+        final long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+
+        final AtomicLong counter = new AtomicLong();
+        final AtomicLong nextSend = new AtomicLong(start);
+
+        final List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            final Thread worker = new Thread("load-" + i) {
+                public void run() {
+                    try {
+                        long n;
+                        while ((n = counter.getAndIncrement()) < limit) {
+                            long scheduled = System.nanoTime();
+                            if (interval > 0) {
+                                scheduled = nextSend.getAndAdd(interval);
+                                final long wait = scheduled - System.nanoTime();
+                                if (wait > 0) {
+                                    TimeUnit.NANOSECONDS.sleep(wait);
+                                }
+                            }
+                            if (scheduled >= deadline) {
+                                break;
+                            }
+                            executeOperation(operations.get((int) (n % operations.size())), scheduled);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+
+        for (Thread worker: workers) {
+            worker.join();
+        }
+        elapsedNanos = System.nanoTime() - start;
+
+        report();
+    }
+
+    private void collectOperations(ExecutionPlan.Suite suite, List<ExecutionPlan.Operation> operations) {
+        for (ExecutionPlan.Test test: suite.getTests()) {
+            if (script.getFilter().matches(suite.getId(), test)) {
+                for (ExecutionPlan.Operation operation: test.getOperations()) {
+                    if (operation.isValid()) {
+                        operations.add(operation);
+                    }
+                }
+            }
+        }
+    }
+
+    private void executeOperation(ExecutionPlan.Operation operation, long scheduled) {
+        final String url = operation.getUrl();
+        boolean ok;
+        try {
+            final OperationResponse response = script.issueOperation(operation);
+            ok = operation.getResponseCode().matches(response.getStatus());
+            if (ok && validate) {
+                ok = operation.getMatcher(script.isUnordered()).match(response.getResource(), new ArrayList<String>(1), 1);
+            }
+        } catch (Exception e) {
+            log.debug("Request failed: " + url, e);
+            ok = false;
+        }
+
+        final long latency = System.nanoTime() - scheduled;
+        latencies.get(url).record(TimeUnit.NANOSECONDS.toMicros(latency));
+        if (ok && null != operation.getMaxDuration()) {
+            ok = operation.getMaxDuration().matches(latency);
+        }
+        if (!ok) {
+            errors.get(url).incrementAndGet();
+        }
+    }
+
+    private void report() {
+        final double seconds = elapsedNanos / 1e9;
+        final LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+
+        out.println("Count\tErrors\tReq/s\tp50\tp90\tp99\tp99.9\tMax (ms)\tURL");
+        for (Map.Entry<String, LatencyHistogram> entry: latencies.entrySet()) {
+            final long e = errors.get(entry.getKey()).get();
+            printRow(entry.getValue(), e, seconds, entry.getKey());
+            all.add(entry.getValue());
+            allErrors += e;
+        }
+        printRow(all, allErrors, seconds, "(all)");
+
+        out.println(String.format("Finish Load Test. %d requests in %.1fs (%.1f req/s)", all.getCount(), seconds, all.getCount() / seconds));
+    }
+
+    private void printRow(LatencyHistogram h, long errorCount, double seconds, String label) {
+        out.println(String.format("%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%s",
+                h.getCount(), errorCount, h.getCount() / seconds,
+                h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0,
+                h.getValueAtPercentile(99.9) / 1000.0,
+                h.getMax() / 1000.0,
+                label));
+    }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-phase latency histograms and byte counts for the operations run against one endpoint.
+ * Published as an MXBean while a script runs, and written in the Prometheus text format at the end.
+ */
+public class Metrics implements MetricsMXBean {
+
+    final private static Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    final private static double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    /** Name and help for each value of {@link #getCounters()}. */
+    final private static String[][] COUNTERS = {
+        {"jsprinkler_operations_total", "Operations run."},
+        {"jsprinkler_operation_failures_total", "Operations that failed."},
+        {"jsprinkler_request_bytes_total", "Bytes sent, including headers."},
+        {"jsprinkler_response_bytes_total", "Bytes received, including headers."},
+        {"jsprinkler_request_body_bytes_total", "Request body bytes as sent, after compression."},
+        {"jsprinkler_response_body_bytes_total", "Response body bytes as received, before decompression."},
+        {"jsprinkler_request_content_bytes_total", "Request body bytes before compression."},
+        {"jsprinkler_response_content_bytes_total", "Response body bytes after decompression."},
+    };
+
+    final private String endpoint;
+
+    final private Map<PhaseTimings.Phase, LatencyHistogram> phases = new EnumMap<>(PhaseTimings.Phase.class);
+
+    final private AtomicLong operations = new AtomicLong();
+
+    final private AtomicLong failures = new AtomicLong();
+
+    final private AtomicLong bytesSent = new AtomicLong();
+
+    final private AtomicLong bytesReceived = new AtomicLong();
+
+    final private AtomicLong bodyBytesSent = new AtomicLong();
+
+    final private AtomicLong bodyBytesReceived = new AtomicLong();
+
+    final private AtomicLong contentBytesSent = new AtomicLong();
+
+    final private AtomicLong contentBytesReceived = new AtomicLong();
+
+    public Metrics(String endpoint) {
+        this.endpoint = endpoint;
+        for (PhaseTimings.Phase phase: PhaseTimings.Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records one operation. Name resolution and connecting are only recorded when a connection was opened.
+     */
+    public void record(PhaseTimings timings, boolean failed) {
+        operations.incrementAndGet();
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        bytesSent.addAndGet(timings.getBytesSent());
+        bytesReceived.addAndGet(timings.getBytesReceived());
+        bodyBytesSent.addAndGet(timings.getBodyBytesSent());
+        bodyBytesReceived.addAndGet(timings.getBodyBytesReceived());
+        contentBytesSent.addAndGet(timings.getContentBytesSent());
+        contentBytesReceived.addAndGet(timings.getContentBytesReceived());
+
+        for (PhaseTimings.Phase phase: PhaseTimings.Phase.values()) {
+            final long nanos = timings.getNanos(phase);
+            if (nanos > 0 || (phase != PhaseTimings.Phase.DNS && phase != PhaseTimings.Phase.CONNECT)) {
+                phases.get(phase).record(nanos / 1000);
+            }
+        }
+    }
+
+    public LatencyHistogram getHistogram(PhaseTimings.Phase phase) {
+        return phases.get(phase);
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getOperations() {
+        return operations.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBodyBytesSent() {
+        return bodyBytesSent.get();
+    }
+
+    public long getBodyBytesReceived() {
+        return bodyBytesReceived.get();
+    }
+
+    public long getContentBytesSent() {
+        return contentBytesSent.get();
+    }
+
+    public long getContentBytesReceived() {
+        return contentBytesReceived.get();
+    }
+
+    /**
+     * @see PhaseTimings#getBandwidth()
+     */
+    public String getBandwidth() {
+        return PhaseTimings.getBandwidth(getBytesSent() + getBytesReceived() - getBodyBytesSent() - getBodyBytesReceived(),
+                getBodyBytesSent(), getContentBytesSent(), getBodyBytesReceived(), getContentBytesReceived());
+    }
+
+    public Map<String, Double> getMeanMillis() {
+        final Map<String, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<PhaseTimings.Phase, LatencyHistogram> entry: phases.entrySet()) {
+            result.put(entry.getKey().getLabel(), entry.getValue().getMean() / 1000.0);
+        }
+        return result;
+    }
+
+    public Map<String, Double> getP99Millis() {
+        final Map<String, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<PhaseTimings.Phase, LatencyHistogram> entry: phases.entrySet()) {
+            result.put(entry.getKey().getLabel(), entry.getValue().getValueAtPercentile(99) / 1000.0);
+        }
+        return result;
+    }
+
+    /**
+     * Publishes these metrics in the platform MBean server, replacing any earlier metrics for the same endpoint.
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = getObjectName();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Unable to register metrics for " + endpoint + ": " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = getObjectName();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to unregister metrics for " + endpoint + ": " + e.getMessage());
+        }
+    }
+
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName("au.csiro.jsprinkler:type=Metrics,endpoint=" + ObjectName.quote(endpoint));
+    }
+
+    /**
+     * Writes the metrics of several endpoints in the Prometheus text exposition format.
+     */
+    public static void writePrometheus(Writer out, Iterable<Metrics> all) throws IOException {
+        out.write("# HELP jsprinkler_phase_seconds Time spent in each phase of an operation.\n");
+        out.write("# TYPE jsprinkler_phase_seconds summary\n");
+        for (Metrics metrics: all) {
+            for (Map.Entry<PhaseTimings.Phase, LatencyHistogram> entry: metrics.phases.entrySet()) {
+                final LatencyHistogram h = entry.getValue();
+                final String labels = "endpoint=\"" + escape(metrics.endpoint) + "\",phase=\"" + entry.getKey().getLabel() + "\"";
+                for (double quantile: QUANTILES) {
+                    out.write("jsprinkler_phase_seconds{" + labels + ",quantile=\"" + quantile + "\"} "
+                            + seconds(h.getValueAtPercentile(quantile * 100)) + "\n");
+                }
+                out.write("jsprinkler_phase_seconds_sum{" + labels + "} " + seconds(h.getSum()) + "\n");
+                out.write("jsprinkler_phase_seconds_count{" + labels + "} " + h.getCount() + "\n");
+            }
+        }
+        for (int i = 0; i < COUNTERS.length; i++) {
+            out.write("# HELP " + COUNTERS[i][0] + " " + COUNTERS[i][1] + "\n");
+            out.write("# TYPE " + COUNTERS[i][0] + " counter\n");
+            for (Metrics metrics: all) {
+                out.write(COUNTERS[i][0] + "{endpoint=\"" + escape(metrics.endpoint) + "\"} " + metrics.getCounters()[i] + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    private long[] getCounters() {
+        return new long[] {getOperations(), getFailures(), getBytesSent(), getBytesReceived(),
+            getBodyBytesSent(), getBodyBytesReceived(), getContentBytesSent(), getContentBytesReceived()};
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link Metrics} of one endpoint. Times are in milliseconds, keyed by phase.
+ */
+public interface MetricsMXBean {
+
+    String getEndpoint();
+
+    long getOperations();
+
+    long getFailures();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getBodyBytesSent();
+
+    long getBodyBytesReceived();
+
+    long getContentBytesSent();
+
+    long getContentBytesReceived();
+
+    String getBandwidth();
+
+    Map<String, Double> getMeanMillis();
+
+    Map<String, Double> getP99Millis();
+
+}
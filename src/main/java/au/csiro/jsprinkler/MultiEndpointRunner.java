@@ -0,0 +1,287 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.jdom2.JDOMException;
+
+/**
+ * Runs a single test script against several FHIR endpoints at once.
+ * The script is compiled once and each endpoint gets its own {@link TestScript};
+ * all of them share one {@link HttpTransport} connection pool.
+ * An endpoint whose script cannot be run is reported as such, and makes the command exit with status 1.
+ */
+public class MultiEndpointRunner implements Closeable {
+
+    final private List<String> endpoints;
+
+    final private Properties options;
+
+    final private List<EndpointResult> results = new ArrayList<>();
+
+    final private ScriptCompiler compiler = new ScriptCompiler();
+
+    final private HttpTransport transport;
+
+    public static void main(String[] args) throws Exception {
+        final List<String> endpoints = new ArrayList<>();
+        final Properties options = new Properties();
+        // arguments are [options] script endpoint...
+        final String testFile = TestScript.processArgs(endpoints, options, args);
+
+        final MultiEndpointRunner runner = new MultiEndpointRunner(endpoints, options);
+        if (options.containsKey("cacheDir")) {
+            runner.getCompiler().setCacheDirectory(new File(options.getProperty("cacheDir")));
+        }
+        try {
+            runner.run(runner.getCompiler().compile(new File(testFile)));
+            runner.printSummary(System.out);
+        } finally {
+            runner.close();
+        }
+        for (EndpointResult result: runner.getResults()) {
+            if (null != result.getError()) {
+                System.exit(1);
+            }
+        }
+    }
+
+    public MultiEndpointRunner(List<String> endpoints) {
+        this(endpoints, new Properties());
+    }
+
+    /**
+     * @param options command line options as collected by {@link TestScript#processArgs}, applied to every endpoint
+     */
+    public MultiEndpointRunner(List<String> endpoints, Properties options) {
+        this.endpoints = endpoints;
+        this.options = options;
+        this.transport = HttpTransport.create(options);
+    }
+
+    public ScriptCompiler getCompiler() {
+        return compiler;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public List<EndpointResult> run(Reader testFile) throws JDOMException, IOException {
+        return run(compiler.compile(testFile));
+    }
+
+    public List<EndpointResult> run(final ExecutionPlan plan) {
+        final StopWatch sw = new StopWatch();
+        sw.start();
+
+        results.clear();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, endpoints.size()));
+        try {
+            final List<Future<EndpointResult>> futures = new ArrayList<>();
+            for (final String endpoint: endpoints) {
+                futures.add(executor.submit(new Callable<EndpointResult>() {
+                    public EndpointResult call() throws Exception {
+                        return runEndpoint(endpoint, plan);
+                    }
+                }));
+            }
+
+            for (Future<EndpointResult> future: futures) {
+                final EndpointResult result = future.get();
+                results.add(result);
+
+                System.out.println("Endpoint: " + result.getEndpoint());
+                System.out.print(result.getOutput());
+                System.out.println();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        sw.stop();
+
+        System.out.println("Finish " + endpoints.size() + " Endpoints. Elapsed Time = " + sw);
+        if (options.containsKey("metricsFile")) {
+            final List<Metrics> metrics = new ArrayList<>();
+            for (EndpointResult result: results) {
+                if (null != result.getMetrics()) {
+                    metrics.add(result.getMetrics());
+                }
+            }
+            TestScript.writeMetrics(new File(options.getProperty("metricsFile")), metrics);
+        }
+
+        return results;
+    }
+
+    private EndpointResult runEndpoint(String endpoint, ExecutionPlan plan) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(buffer, true);
+
+        int total = 0;
+        int fail = 0;
+        Metrics metrics = null;
+        String error = null;
+        try {
+            final TestScript script = new TestScript(endpoint);
+            TestScript.configure(script, getEndpointOptions(endpoint));
+            script.setTransport(transport);
+            script.setOut(out);
+            try {
+                script.run(plan);
+            } finally {
+                if (null != script.getArchive()) {
+                    script.getArchive().close();
+                }
+                if (script.getResultListener() instanceof Closeable) {
+                    ((Closeable) script.getResultListener()).close();
+                }
+            }
+
+            total = script.getTotal();
+            fail = script.getFail();
+            metrics = script.getMetrics();
+        } catch (Exception e) {
+            error = "[" + e.getClass().getSimpleName() + "] " + e.getMessage();
+            out.println("Failed " + error);
+        }
+        out.flush();
+
+        return new EndpointResult(endpoint, total, fail, buffer.toString(), metrics, error);
+    }
+
+    /**
+     * @return the options for one endpoint; each endpoint records to, or replays from, its own archive
+     * and keeps its own last run results, latency baseline and result files
+     */
+    private Properties getEndpointOptions(String endpoint) {
+        final Properties endpointOptions = new Properties();
+        endpointOptions.putAll(options);
+        // all endpoints are written to one metrics file at the end
+        endpointOptions.remove("metricsFile");
+        final String name = ScriptCompiler.hash(endpoint.getBytes(StandardCharsets.UTF_8));
+        for (String option: new String[] {"record", "replay"}) {
+            if (options.containsKey(option)) {
+                endpointOptions.setProperty(option, new File(options.getProperty(option), name).getPath());
+            }
+        }
+        for (String option: new String[] {"lastRun", "baseline", "jsonl", "junit"}) {
+            if (options.containsKey(option)) {
+                endpointOptions.setProperty(option, options.getProperty(option) + "-" + name);
+            }
+        }
+        return endpointOptions;
+    }
+
+    /**
+     * Closes the shared transport, unless it is the default one.
+     */
+    public void close() throws IOException {
+        HttpTransport.release(transport);
+    }
+
+    public List<EndpointResult> getResults() {
+        return results;
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println("Passed\tFailed\tEndpoint");
+        for (EndpointResult result: results) {
+            if (null != result.getError()) {
+                out.println("-\t-\t" + result.getEndpoint() + "\tNot run: " + result.getError());
+            } else {
+                out.println(result.getPassed() + "\t" + result.getFail() + "\t" + result.getEndpoint());
+            }
+        }
+    }
+
+    public static class EndpointResult {
+        final private String endpoint;
+        final private int total;
+        final private int fail;
+        final private String output;
+        final private Metrics metrics;
+        final private String error;
+
+        EndpointResult(String endpoint, int total, int fail, String output, Metrics metrics, String error) {
+            this.endpoint = endpoint;
+            this.total = total;
+            this.fail = fail;
+            this.output = output;
+            this.metrics = metrics;
+            this.error = error;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getFail() {
+            return fail;
+        }
+
+        public int getPassed() {
+            return total - fail;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return the endpoint's metrics, or null if its script could not be run
+         */
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * @return why the endpoint's script could not be run, or null if it was
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+}
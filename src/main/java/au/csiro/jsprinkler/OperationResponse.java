@@ -0,0 +1,48 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import org.hl7.fhir.instance.model.Resource;
+
+/**
+ * The HTTP status and parsed payload returned for a single test operation.
+ */
+public class OperationResponse {
+
+    final private int status;
+
+    final private Resource resource;
+
+    public OperationResponse(int status, Resource resource) {
+        this.status = status;
+        this.resource = resource;
+    }
+
+    /**
+     * @return the HTTP status, or -1 if it is not known (e.g. the client reported a server error)
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public Resource getResource() {
+        return resource;
+    }
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ValueSet;
+import org.hl7.fhir.instance.model.ValueSet.ValueSetExpansionContainsComponent;
+
+/**
+ * Fetches a <code>$expand</code> as pages of <code>count</code> entries at increasing <code>offset</code>s and
+ * merges them into the first page, so the result can be compared as if it had been fetched in one request.
+ * Paging starts at the operation's own <code>offset</code> and stops once its <code>count</code> (or
+ * <code>_count</code>) entries have been fetched.
+ * <p>
+ * After the first page, up to <code>maxInFlight</code> pages are fetched at once, across all operations.
+ * If the server reports the expansion's <code>total</code> only the pages needed are fetched, otherwise
+ * fetching stops at the first page with fewer than <code>count</code> entries.
+ */
+public class PagedExpander implements Closeable {
+
+    final private HttpTransport transport;
+
+    final private int pageSize;
+
+    final private int maxInFlight;
+
+    final private ExecutorService executor;
+
+    final private Throughput throughput = new Throughput();
+
+    public PagedExpander(HttpTransport transport, int pageSize, int maxInFlight) {
+        if (pageSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Page size and pages in flight must be positive");
+        }
+        this.transport = transport;
+        this.pageSize = pageSize;
+        this.maxInFlight = maxInFlight;
+        this.executor = Executors.newFixedThreadPool(maxInFlight);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public Throughput getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return true for a GET <code>$expand</code> expected to return a ValueSet
+     */
+    public static boolean isPageable(ExecutionPlan.Operation operation) {
+        return null == operation.getBody() && operation.getUrl().contains("$expand") && operation.getExpected() instanceof ValueSet;
+    }
+
+    /**
+     * @return true for a pageable operation that does not already ask for a page's worth of entries or fewer
+     */
+    public boolean isPaged(ExecutionPlan.Operation operation) {
+        if (!isPageable(operation)) {
+            return false;
+        }
+        final int count = getCount(operation.getUrl());
+        return count < 0 || count > pageSize;
+    }
+
+    /**
+     * @return the <code>count</code> (or <code>_count</code>) the URL asks for, or -1 for no limit
+     */
+    static int getCount(String url) {
+        return getParameter(url, "count", getParameter(url, "_count", -1));
+    }
+
+    /**
+     * @return the <code>offset</code> the URL asks for, or 0
+     */
+    static int getOffset(String url) {
+        return getParameter(url, "offset", 0);
+    }
+
+    private static int getParameter(String url, String name, int defaultValue) {
+        final int query = url.indexOf('?');
+        if (query >= 0) {
+            for (String parameter: url.substring(query + 1).split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    try {
+                        return Integer.parseInt(parameter.substring(name.length() + 1));
+                    } catch (NumberFormatException e) {
+                        return defaultValue;
+                    }
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the URL with any <code>_count</code>, <code>count</code> and <code>offset</code> parameters replaced
+     */
+    static String getPageUrl(String url, int offset, int count) {
+        final int query = url.indexOf('?');
+        final StringBuilder sb = new StringBuilder(query < 0 ? url : url.substring(0, query)).append('?');
+        if (query >= 0) {
+            for (String parameter: url.substring(query + 1).split("&")) {
+                final String name = parameter.indexOf('=') < 0 ? parameter : parameter.substring(0, parameter.indexOf('='));
+                if (!parameter.isEmpty() && !"_count".equals(name) && !"count".equals(name) && !"offset".equals(name)) {
+                    sb.append(parameter).append('&');
+                }
+            }
+        }
+        return sb.append("offset=").append(offset).append("&count=").append(count).toString();
+    }
+
+    /**
+     * @return the status of the first page and the merged ValueSet, or the first page as it is if it is not an expansion
+     */
+    public OperationResponse expand(URI uri, WireFormat format, PhaseTimings timings) throws Exception {
+        final long start = System.nanoTime();
+        final int first = getOffset(uri.toString());
+        final int count = getCount(uri.toString());
+        // the first offset past the entries asked for
+        final int end = count < 0 || count > Integer.MAX_VALUE - first ? Integer.MAX_VALUE : first + count;
+        final HttpTransport.Response response = transport.get(URI.create(getPageUrl(uri.toString(), first, Math.min(pageSize, end - first))), format, timings);
+        final long parseStart = System.nanoTime();
+        final Resource resource = parse(response, format);
+        timings.add(PhaseTimings.Phase.PARSE, System.nanoTime() - parseStart);
+        if (response.getStatus() >= 300 || !(resource instanceof ValueSet) || !((ValueSet) resource).hasExpansion()) {
+            return new OperationResponse(response.getStatus(), resource);
+        }
+
+        final ValueSet.ValueSetExpansionComponent expansion = ((ValueSet) resource).getExpansion();
+        final List<ValueSetExpansionContainsComponent> contains = expansion.getContains();
+        final int last = expansion.hasTotal() ? Math.min(end, expansion.getTotal()) : end;
+        int offset = first + pageSize;
+        boolean more = contains.size() >= pageSize;
+        while (more && offset < last) {
+            final List<Future<Page>> window = new ArrayList<>(maxInFlight);
+            for (int i = 0; i < maxInFlight && offset < last; i++, offset += pageSize) {
+                window.add(executor.submit(new Page(uri, offset, Math.min(pageSize, last - offset), format)));
+            }
+            for (Future<Page> future: window) {
+                final Page page = getPage(future);
+                timings.add(page.timings);
+                contains.addAll(page.items);
+                more &= page.items.size() >= page.count;
+            }
+        }
+        expansion.setOffset(first);
+
+        throughput.record(contains.size(), System.nanoTime() - start);
+        return new OperationResponse(response.getStatus(), resource);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of top level entries in an expansion, or 0
+     */
+    static int countItems(Resource resource) {
+        if (resource instanceof ValueSet && ((ValueSet) resource).hasExpansion()) {
+            return ((ValueSet) resource).getExpansion().getContains().size();
+        }
+        return 0;
+    }
+
+    private static Resource parse(HttpTransport.Response response, WireFormat format) throws Exception {
+        if (response.getBody().length == 0) {
+            return null;
+        }
+        return WireFormat.forContentType(response.getContentType(), format).newParser().parse(response.getContent());
+    }
+
+    private static Page getPage(Future<Page> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    private class Page implements Callable<Page> {
+        final private URI uri;
+        final private int offset;
+        final private int count;
+        final private WireFormat format;
+        final private PhaseTimings timings = new PhaseTimings();
+        private List<ValueSetExpansionContainsComponent> items;
+
+        Page(URI uri, int offset, int count, WireFormat format) {
+            this.uri = uri;
+            this.offset = offset;
+            this.count = count;
+            this.format = format;
+        }
+
+        public Page call() throws Exception {
+            final HttpTransport.Response response = transport.get(URI.create(getPageUrl(uri.toString(), offset, count)), format, timings);
+            if (response.getStatus() >= 300) {
+                throw new IOException("Page at offset " + offset + " returned HTTP status " + response.getStatus());
+            }
+            final long start = System.nanoTime();
+            final Resource resource = parse(response, format);
+            timings.add(PhaseTimings.Phase.PARSE, System.nanoTime() - start);
+            if (!(resource instanceof ValueSet) || !((ValueSet) resource).hasExpansion()) {
+                throw new IOException("Page at offset " + offset + " is not an expansion");
+            }
+            items = ((ValueSet) resource).getExpansion().getContains();
+            return this;
+        }
+    }
+
+    /**
+     * Counts expansion entries fetched and the time taken, to compare paged with single-shot fetching.
+     */
+    public static class Throughput {
+
+        private long fetches;
+
+        private long items;
+
+        private long nanos;
+
+        public synchronized void record(long items, long nanos) {
+            this.fetches++;
+            this.items += items;
+            this.nanos += nanos;
+        }
+
+        public synchronized long getFetches() {
+            return fetches;
+        }
+
+        public synchronized long getItems() {
+            return items;
+        }
+
+        public synchronized void reset() {
+            fetches = items = nanos = 0;
+        }
+
+        public synchronized String toString() {
+            final double seconds = nanos / 1e9;
+            return String.format(Locale.ROOT, "%d fetches, %d entries in %.2fs, %.0f entries/s",
+                    fetches, items, seconds, seconds > 0 ? items / seconds : 0.0);
+        }
+
+    }
+
+}
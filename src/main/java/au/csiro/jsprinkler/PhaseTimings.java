@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.util.Locale;
+
+/**
+ * Where the time of a single operation went, and how many bytes it moved, both on the wire and as content
+ * before compression.
+ * Instances are filled in by the thread running the operation and are not thread-safe.
+ */
+public class PhaseTimings {
+
+    public enum Phase {
+        /** Host name resolution, only when a new connection is opened. */
+        DNS("dns"),
+        /** TCP connect and any TLS handshake, only when a new connection is opened. */
+        CONNECT("connect"),
+        /** Writing the request. */
+        SEND("send"),
+        /** From the request being sent to the response headers arriving. */
+        FIRST_BYTE("ttfb"),
+        /** Reading the response body; in streaming mode this includes the comparison. */
+        DOWNLOAD("download"),
+        /** Parsing the response body into a Resource. */
+        PARSE("parse"),
+        /** Comparing the response with the expected resource. */
+        COMPARE("compare");
+
+        final private String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    final private long[] nanos = new long[Phase.values().length];
+
+    private long bytesSent;
+
+    private long bytesReceived;
+
+    private long bodyBytesSent;
+
+    private long bodyBytesReceived;
+
+    private long contentBytesSent;
+
+    private long contentBytesReceived;
+
+    public void add(Phase phase, long elapsedNanos) {
+        nanos[phase.ordinal()] += elapsedNanos;
+    }
+
+    /**
+     * Adds the time and bytes of another operation, e.g. a request made on its behalf by another thread.
+     */
+    public void add(PhaseTimings other) {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] += other.nanos[i];
+        }
+        addBytes(other.bytesSent, other.bytesReceived);
+        addBodyBytes(other.bodyBytesSent, other.bodyBytesReceived);
+        addContentBytes(other.contentBytesSent, other.contentBytesReceived);
+    }
+
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Adds the bytes written and read on the wire, including headers.
+     */
+    public void addBytes(long sent, long received) {
+        bytesSent += sent;
+        bytesReceived += received;
+    }
+
+    public long getBodyBytesSent() {
+        return bodyBytesSent;
+    }
+
+    public long getBodyBytesReceived() {
+        return bodyBytesReceived;
+    }
+
+    /**
+     * Adds the sizes of the request and response bodies as they were on the wire, still encoded.
+     */
+    public void addBodyBytes(long sent, long received) {
+        bodyBytesSent += sent;
+        bodyBytesReceived += received;
+    }
+
+    public long getContentBytesSent() {
+        return contentBytesSent;
+    }
+
+    public long getContentBytesReceived() {
+        return contentBytesReceived;
+    }
+
+    /**
+     * Adds the sizes of the request and response bodies before encoding and after decoding, without headers.
+     */
+    public void addContentBytes(long sent, long received) {
+        contentBytesSent += sent;
+        contentBytesReceived += received;
+    }
+
+    /**
+     * @return the bodies on the wire against the content they carried and the share saved by compression,
+     * with the bytes of request lines and headers given separately
+     */
+    public String getBandwidth() {
+        return getBandwidth(bytesSent + bytesReceived - bodyBytesSent - bodyBytesReceived,
+                bodyBytesSent, contentBytesSent, bodyBytesReceived, contentBytesReceived);
+    }
+
+    static String getBandwidth(long headers, long bodySent, long contentSent, long bodyReceived, long contentReceived) {
+        final long content = contentSent + contentReceived;
+        return String.format(Locale.ROOT, "bodies %d bytes sent for %d of content, %d received for %d of content (%.1f%% saved), %d bytes of headers",
+                bodySent, contentSent, bodyReceived, contentReceived,
+                content > 0 ? 100.0 * (content - bodySent - bodyReceived) / content : 0.0, headers);
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase: Phase.values()) {
+            sb.append(phase.getLabel()).append(' ')
+                .append(String.format(Locale.ROOT, "%.1f", nanos[phase.ordinal()] / 1e6)).append("ms, ");
+        }
+        sb.append(bytesSent).append(" bytes sent, ").append(bytesReceived).append(" received (")
+            .append(contentBytesReceived).append(" decoded)");
+        return sb.toString();
+    }
+
+}
@@ -18,17 +18,31 @@
 
 package au.csiro.jsprinkler;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hl7.fhir.instance.model.Base;
 import org.hl7.fhir.instance.model.BooleanType;
 import org.hl7.fhir.instance.model.Extension;
 import org.hl7.fhir.instance.model.OperationOutcome;
 import org.hl7.fhir.instance.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.instance.model.PrimitiveType;
 import org.hl7.fhir.instance.model.Property;
 import org.hl7.fhir.instance.model.Resource;
 
+/**
+ * Compares an actual resource with an expected one.
+ * <p>
+ * Nothing is allocated for diagnostics until a difference is found: the position in the tree is
+ * kept as a stack of indices and turned into a path only when an error is reported. With an
+ * error budget the comparison stops once the budget is used up.
+ */
 public class ResourceComparer {
 
     final private String rule;
@@ -37,6 +51,17 @@ public class ResourceComparer {
 
     final private List<String> errors = new ArrayList<>();
 
+    private boolean unordered;
+
+    private int maxErrors;
+
+    private String root;
+
+    /** The index shown for each repeating element on the current path, or -1 where none is shown. */
+    private int[] indices = new int[16];
+
+    private int depth;
+
     public ResourceComparer(String rule, Resource expected, Resource actual) {
         this.rule = rule;
         this.expected = expected;
@@ -58,24 +83,17 @@ public class ResourceComparer {
         }
 
         if (!actual.getResourceType().equals(expected.getResourceType())) {
-            String detail = "";
-            if (actual instanceof OperationOutcome) {
-                try {
-                    final OperationOutcome outcome = (OperationOutcome) actual;
-                    for (OperationOutcomeIssueComponent issue: outcome.getIssue()) {
-                        detail = ": " + detail + issue.getDetails();
-                    }
-//                    new NarrativeGenerator("", new WorkerContext()).generate(outcome);
-//                    detail = ": " + outcome.getText().getDiv().getContent();
-                } catch (Exception e) {
-                }
-            }
-            errors.add("Found a Resource of type " + actual.getResourceType() + ", but expected " + expected.getResourceType() + detail);
+            errors.add("Found a Resource of type " + actual.getResourceType() + ", but expected " + expected.getResourceType() + getOutcomeDetail(actual));
             return false;
         }
 
         if ("min".equals(rule)) {
-            return compareElementsMin(expected.getResourceType().toString(), expected, actual, true);
+            root = expected.getResourceType().toString();
+            final boolean ok = compareElementsMin(expected, actual);
+            if (isExhausted()) {
+                errors.add("Stopped after " + maxErrors + " errors");
+            }
+            return ok;
         } else {
             throw new RuntimeException("Unknown rule: " + rule);
         }
@@ -85,17 +103,42 @@ public class ResourceComparer {
         return errors;
     }
 
-    private boolean compareElementsMin(String path, Resource expected, Resource actual, boolean reportErrors) {
+    public boolean isUnordered() {
+        return unordered;
+    }
+
+    /**
+     * When set, repeating elements are matched by key (<code>system|code</code>, or the value of a primitive)
+     * rather than by position, using a hash index of the actual items so large expansions compare in linear time.
+     * Lists containing an expected item without a key are still compared by position, as is a single primitive,
+     * whose value the "min" rule does not check.
+     */
+    public void setUnordered(boolean unordered) {
+        this.unordered = unordered;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Sets the number of errors after which the comparison stops; 0 (the default) reports every difference.
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    private boolean compareElementsMin(Resource expected, Resource actual) {
         // given that it's "min", then our task is
         //  * iterate the expected
         //  * anything in that, find it in the observed
         //  * check the value for fixed value or specified pattern
         //  * check for list management extensions
 
-        return compareBase(path, expected, actual);
+        return compareBase(expected, actual);
     }
 
-    protected boolean compareBase(String path, Base expected, Base actual) {
+    protected boolean compareBase(Base expected, Base actual) {
         boolean ok = true;
 
         if (null == expected) {
@@ -105,7 +148,7 @@ public class ResourceComparer {
                 // no value equivalent to false
                 return true;
             } else {
-                errors.add(path + " - Found [" + actual + "], but expected none.");
+                error("Found [" + actual + "], but expected none.");
                 return false;
             }
         }
@@ -114,77 +157,192 @@ public class ResourceComparer {
                 // no value equivalent to false
                 return true;
             } else {
-                errors.add(path + " - Expected [" + expected + "], but found none.");
+                error("Expected [" + expected + "], but found none.");
                 return false;
             }
         }
 
-        for (Property ep: expected.children()) {
-            if (!"Extension".equals(ep.getName())) {
-                List<Base> expectedValues = ep.getValues();
-                List<Base> actualValues = actual.getChildByName(ep.getName()).getValues();
+        // instances of the same class list their properties in the same order, so they can be paired by index
+        final List<Property> expectedChildren = expected.children();
+        final List<Property> actualChildren = expected.getClass() == actual.getClass() ? actual.children() : null;
+        for (int i = 0; i < expectedChildren.size() && !isExhausted(); i++) {
+            final Property ep = expectedChildren.get(i);
+            final List<Base> expectedValues = ep.getValues();
+            if (!expectedValues.isEmpty() && !"Extension".equals(ep.getName())) {
+                Property ap = null == actualChildren ? null : actualChildren.get(i);
+                if (null == ap || !ap.getName().equals(ep.getName())) {
+                    ap = actual.getChildByName(ep.getName());
+                }
+                final List<Base> actualValues = null == ap ? Collections.<Base>emptyList() : ap.getValues();
 
-                compareBaseObjects(path, expectedValues, actualValues);
+                ok &= compareBaseObjects(expectedValues, actualValues);
             }
         }
 
-//        ok = Resource.compareDeep(expected, actual, true);
-//
-//        if (!ok) {
-//            List<Property> ec = expected.children();
-//            List<Property> ac = actual.children();
-//            ok = compareProperties(path, ec, ac);
-//        }
-
         return ok;
     }
 
-    protected <T extends Base> boolean compareBaseObjects(String name, List<T> expected, List<T> actual) {
+    protected <T extends Base> boolean compareBaseObjects(List<T> expected, List<T> actual) {
         boolean ok = true, suffix = false;
         int minExpected = expected.size();
-        for (T o: expected) {
-            if (o instanceof Extension) {
+        for (int i = 0; i < expected.size(); i++) {
+            if (expected.get(i) instanceof Extension) {
                 minExpected--;
             }
         }
         if (minExpected > actual.size()) {
-            errors.add(name + " - Differing numbers of children: expected " + minExpected + ", found " + actual.size());
+            error("Differing numbers of children: expected " + minExpected + ", found " + actual.size());
 
             ok = false;
             suffix = true;
         }
 
+        if (unordered && (minExpected > 1 || minExpected == 1 && isCoded(expected))) {
+            final Map<String, Deque<T>> index = indexByKey(expected, actual);
+            if (null != index) {
+                return compareUnordered(expected, index) && ok;
+            }
+        }
+
         int min = Math.min(minExpected, actual.size());
-        for (int i = 0; i < min; i++) {
-            ok &= compareBase(name+(suffix?"["+i+"]":""), expected.get(i), actual.get(i));
+        for (int i = 0; i < min && !isExhausted(); i++) {
+            push(suffix ? i : -1);
+            ok &= compareBase(expected.get(i), actual.get(i));
+            depth--;
         }
 
         return ok;
     }
 
-    protected boolean compareProperties(String name, List<Property> expected, List<Property> actual) {
-        boolean ok = true, suffix = false;
-        if (expected.size() != actual.size()) {
-            errors.add("Differing numbers of children: expected " + expected.size() + ", found " + actual.size());
-            ok = false;
-            suffix = true;
+    private void push(int index) {
+        if (depth == indices.length) {
+            indices = Arrays.copyOf(indices, depth * 2);
+        }
+        indices[depth++] = index;
+    }
+
+    /**
+     * Reports a difference at the current path, unless the error budget is used up.
+     */
+    private void error(String message) {
+        if (isExhausted()) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder(root);
+        for (int i = 0; i < depth; i++) {
+            if (indices[i] >= 0) {
+                sb.append('[').append(indices[i]).append(']');
+            }
         }
+        errors.add(sb.append(" - ").append(message).toString());
+    }
+
+    private boolean isExhausted() {
+        return maxErrors > 0 && errors.size() >= maxErrors;
+    }
 
-        int min = Math.min(expected.size(), actual.size());
-        for (int i = 0; i < min; i++) {
-            ok &= compareProperty(name+(suffix?"["+i+"]":""), expected.get(i), actual.get(i));
+    /**
+     * @return the actual items indexed by key, or null if some expected item has no key
+     */
+    private <T extends Base> Map<String, Deque<T>> indexByKey(List<T> expected, List<T> actual) {
+        for (T o: expected) {
+            if (!(o instanceof Extension) && null == getKey(o)) {
+                return null;
+            }
         }
 
+        final Map<String, Deque<T>> index = new HashMap<>(actual.size() * 2);
+        for (T o: actual) {
+            final String key = getKey(o);
+            if (null != key) {
+                Deque<T> matches = index.get(key);
+                if (null == matches) {
+                    matches = new ArrayDeque<>(1);
+                    index.put(key, matches);
+                }
+                matches.add(o);
+            }
+        }
+        return index;
+    }
+
+    private <T extends Base> boolean compareUnordered(List<T> expected, Map<String, Deque<T>> index) {
+        boolean ok = true;
+        for (int i = 0; i < expected.size() && !isExhausted(); i++) {
+            final T o = expected.get(i);
+            if (o instanceof Extension) {
+                continue;
+            }
+            final String key = getKey(o);
+            final Deque<T> matches = index.get(key);
+            final T match = null == matches ? null : matches.poll();
+            if (null == match) {
+                error("No match found for [" + key + "]");
+                ok = false;
+            } else {
+                ok &= compareBase(o, match);
+            }
+        }
         return ok;
     }
 
-    protected boolean  compareProperty(String name, Property expected, Property actual) {
-        if (!expected.getName().equals(actual.getName())) {
-            errors.add("Property names differ: expected " + expected.getName() + ", found " + actual.getName());
-            return false;
-        } else {
-            return compareBaseObjects(name+"::"+expected.getName(), expected.getValues(), actual.getValues());
+    /**
+     * @return the issue details if the resource is an OperationOutcome, otherwise an empty string
+     */
+    static String getOutcomeDetail(Resource actual) {
+        String detail = "";
+        if (actual instanceof OperationOutcome) {
+            try {
+                final OperationOutcome outcome = (OperationOutcome) actual;
+                for (OperationOutcomeIssueComponent issue: outcome.getIssue()) {
+                    detail = ": " + detail + issue.getDetails();
+                }
+//                new NarrativeGenerator("", new WorkerContext()).generate(outcome);
+//                detail = ": " + outcome.getText().getDiv().getContent();
+            } catch (Exception e) {
+            }
+        }
+        return detail;
+    }
+
+    /**
+     * @return true if an expected item is keyed by <code>system|code</code>; such an item is looked up by key even
+     * on its own, as the "min" rule would otherwise only check that the first actual item has the same structure
+     */
+    static boolean isCoded(List<? extends Base> expected) {
+        for (Base o: expected) {
+            if (!(o instanceof Extension) && !(o instanceof PrimitiveType) && null != getKey(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the key used to match an item of a repeating element regardless of position, or null
+     */
+    static String getKey(Base o) {
+        if (o instanceof PrimitiveType) {
+            return String.valueOf(((PrimitiveType<?>) o).getValue());
+        }
+        final String code = getPrimitiveChild(o, "code");
+        if (null == code) {
+            return null;
+        }
+        final String system = getPrimitiveChild(o, "system");
+        return (null == system ? "" : system) + "|" + code;
+    }
+
+    static String getPrimitiveChild(Base o, String name) {
+        final Property p = o.getChildByName(name);
+        if (null != p && !p.getValues().isEmpty()) {
+            final Base value = p.getValues().get(0);
+            if (value instanceof PrimitiveType) {
+                final Object v = ((PrimitiveType<?>) value).getValue();
+                return null == v ? null : v.toString();
+            }
         }
+        return null;
     }
 
 }
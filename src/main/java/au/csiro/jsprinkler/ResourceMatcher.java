@@ -0,0 +1,314 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.Base;
+import org.hl7.fhir.instance.model.Extension;
+import org.hl7.fhir.instance.model.Property;
+import org.hl7.fhir.instance.model.Resource;
+import org.hl7.fhir.instance.model.ResourceType;
+
+/**
+ * An expected resource compiled with its rule into a flat list of checks, so it can be matched against
+ * any number of actual resources without walking the expected tree again.
+ * <p>
+ * The checks are those of {@link ResourceComparer}, with paths worked out when compiling.
+ * A matcher is immutable and can be used by several threads at once.
+ */
+public class ResourceMatcher {
+
+    private enum Kind {
+        /** The property must have at least the expected number of values. */
+        COUNT,
+        /** Selects the value at a position; the checks below it are skipped if there is none. */
+        ITEM,
+        /** Selects the first unused value with a key; reported and skipped if there is none. */
+        KEYED
+    }
+
+    final private static class Step {
+
+        final Kind kind;
+
+        /** The depth of the element whose property is read; a selected value is held at depth + 1. */
+        final int depth;
+
+        final String name;
+
+        /** The position of the property among the expected element's children, tried first for elements of the same class. */
+        final int property;
+
+        final Class<?> type;
+
+        /** The expected count for COUNT, or the position for ITEM. */
+        final int count;
+
+        final String key;
+
+        /** The keyed index used by KEYED. */
+        final int group;
+
+        /** The step after the checks below an ITEM or KEYED. */
+        final int end;
+
+        final String path;
+
+        Step(Kind kind, int depth, String name, int property, Class<?> type, int count, String key, int group, int end, String path) {
+            this.kind = kind;
+            this.depth = depth;
+            this.name = name;
+            this.property = property;
+            this.type = type;
+            this.count = count;
+            this.key = key;
+            this.group = group;
+            this.end = end;
+            this.path = path;
+        }
+
+    }
+
+    final private ResourceType expectedType;
+
+    final private String expectedId;
+
+    final private Step[] steps;
+
+    final private int depth;
+
+    final private int groups;
+
+    private ResourceMatcher(ResourceType expectedType, String expectedId, Step[] steps, int depth, int groups) {
+        this.expectedType = expectedType;
+        this.expectedId = expectedId;
+        this.steps = steps;
+        this.depth = depth;
+        this.groups = groups;
+    }
+
+    /**
+     * @param expected the expected resource, or null if no resource is expected
+     * @param unordered see {@link ResourceComparer#setUnordered(boolean)}
+     */
+    public static ResourceMatcher compile(String rule, Resource expected, boolean unordered) {
+        if (!"min".equals(rule)) {
+            throw new RuntimeException("Unknown rule: " + rule);
+        }
+        if (null == expected) {
+            return new ResourceMatcher(null, null, new Step[0], 0, 0);
+        }
+        final Compiler compiler = new Compiler(unordered);
+        compiler.compileElement(expected, 0, expected.getResourceType().toString());
+        return new ResourceMatcher(expected.getResourceType(), expected.getId(), compiler.steps.toArray(new Step[compiler.steps.size()]),
+                compiler.depth, compiler.groups);
+    }
+
+    /**
+     * @return the number of checks
+     */
+    public int size() {
+        return steps.length;
+    }
+
+    /**
+     * Matches an actual resource, adding a message to errors for each difference.
+     * @param maxErrors the number of errors after which matching stops, or 0 for no limit
+     * @return true if the resource matched
+     */
+    @SuppressWarnings("unchecked")
+    public boolean match(Resource actual, List<String> errors, int maxErrors) {
+        if (null == expectedType) {
+            if (null == actual) {
+                return true;
+            } else {
+                errors.add("Found a Resource of type " + actual.getResourceType() +" ["+actual.getId()+"]" + ", but expected none.");
+                return false;
+            }
+        }
+        if (null == actual) {
+            errors.add("Expected a Resource of type " + expectedType +" ["+expectedId+"]" + ", but found none.");
+            return false;
+        }
+        if (!actual.getResourceType().equals(expectedType)) {
+            errors.add("Found a Resource of type " + actual.getResourceType() + ", but expected " + expectedType + ResourceComparer.getOutcomeDetail(actual));
+            return false;
+        }
+
+        final Base[] elements = new Base[depth + 1];
+        final List<Property>[] children = new List[depth + 1];
+        final Map<String, Deque<Base>>[] indexes = new Map[groups];
+        elements[0] = actual;
+
+        final int limit = maxErrors > 0 ? errors.size() + maxErrors : Integer.MAX_VALUE;
+        boolean ok = true;
+        int i = 0;
+        while (i < steps.length) {
+            final Step step = steps[i];
+            final List<Base> values = getValues(step, elements, children);
+            switch (step.kind) {
+            case COUNT:
+                if (values.size() < step.count) {
+                    errors.add(step.path + " - Differing numbers of children: expected " + step.count + ", found " + values.size());
+                    ok = false;
+                }
+                i++;
+                break;
+            case ITEM:
+                if (step.count < values.size()) {
+                    select(step, values.get(step.count), elements, children);
+                    i++;
+                } else {
+                    i = step.end;
+                }
+                break;
+            case KEYED:
+                Map<String, Deque<Base>> index = indexes[step.group];
+                if (null == index) {
+                    index = indexByKey(values);
+                    indexes[step.group] = index;
+                }
+                final Deque<Base> matches = index.get(step.key);
+                final Base match = null == matches ? null : matches.poll();
+                if (null == match) {
+                    errors.add(step.path + " - No match found for [" + step.key + "]");
+                    ok = false;
+                    i = step.end;
+                } else {
+                    select(step, match, elements, children);
+                    i++;
+                }
+                break;
+            }
+            if (errors.size() >= limit) {
+                errors.add("Stopped after " + maxErrors + " errors");
+                break;
+            }
+        }
+        return ok;
+    }
+
+    private static List<Base> getValues(Step step, Base[] elements, List<Property>[] children) {
+        final Base element = elements[step.depth];
+        List<Property> properties = children[step.depth];
+        if (null == properties) {
+            properties = element.children();
+            children[step.depth] = properties;
+        }
+        Property p = element.getClass() == step.type && step.property < properties.size() ? properties.get(step.property) : null;
+        if (null == p || !step.name.equals(p.getName())) {
+            p = element.getChildByName(step.name);
+        }
+        return null == p ? Collections.<Base>emptyList() : p.getValues();
+    }
+
+    private static void select(Step step, Base value, Base[] elements, List<Property>[] children) {
+        elements[step.depth + 1] = value;
+        children[step.depth + 1] = null;
+    }
+
+    private static Map<String, Deque<Base>> indexByKey(List<Base> actual) {
+        final Map<String, Deque<Base>> index = new HashMap<>(actual.size() * 2);
+        for (Base o: actual) {
+            final String key = ResourceComparer.getKey(o);
+            if (null != key) {
+                Deque<Base> matches = index.get(key);
+                if (null == matches) {
+                    matches = new ArrayDeque<>(1);
+                    index.put(key, matches);
+                }
+                matches.add(o);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Walks the expected tree once in the same order as {@link ResourceComparer}, emitting the steps.
+     */
+    final private static class Compiler {
+
+        final private boolean unordered;
+
+        final private List<Step> steps = new ArrayList<>();
+
+        private int depth;
+
+        private int groups;
+
+        Compiler(boolean unordered) {
+            this.unordered = unordered;
+        }
+
+        void compileElement(Base expected, int depth, String path) {
+            this.depth = Math.max(this.depth, depth);
+            final List<Property> properties = expected.children();
+            for (int i = 0; i < properties.size(); i++) {
+                final Property ep = properties.get(i);
+                if (!ep.getValues().isEmpty() && !"Extension".equals(ep.getName())) {
+                    compileProperty(expected.getClass(), i, ep.getName(), ep.getValues(), depth, path + "." + ep.getName());
+                }
+            }
+        }
+
+        private void compileProperty(Class<?> type, int property, String name, List<Base> expected, int depth, String path) {
+            int minExpected = 0;
+            boolean keyed = unordered;
+            for (Base o: expected) {
+                if (!(o instanceof Extension)) {
+                    minExpected++;
+                    keyed &= null != ResourceComparer.getKey(o);
+                }
+            }
+            if (minExpected == 0) {
+                return;
+            }
+            steps.add(new Step(Kind.COUNT, depth, name, property, type, minExpected, null, -1, -1, path));
+
+            if (keyed && (minExpected > 1 || ResourceComparer.isCoded(expected))) {
+                final int group = groups++;
+                for (Base o: expected) {
+                    if (!(o instanceof Extension)) {
+                        final String key = ResourceComparer.getKey(o);
+                        final int start = steps.size();
+                        steps.add(null);
+                        compileElement(o, depth + 1, path + "[" + key + "]");
+                        steps.set(start, new Step(Kind.KEYED, depth, name, property, type, -1, key, group, steps.size(), path));
+                    }
+                }
+            } else {
+                for (int i = 0; i < minExpected; i++) {
+                    final int start = steps.size();
+                    steps.add(null);
+                    compileElement(expected.get(i), depth + 1, path + "[" + i + "]");
+                    steps.set(start, new Step(Kind.ITEM, depth, name, property, type, i, null, -1, steps.size(), path));
+                }
+            }
+        }
+
+    }
+
+}
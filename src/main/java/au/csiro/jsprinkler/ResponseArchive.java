@@ -0,0 +1,194 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * An append-only archive of raw operation responses on local disk, so results can be
+ * re-compared offline after a change to a script or to {@link ResourceComparer}.
+ * <p>
+ * <code>responses.dat</code> holds the records (status, content type and body, each length prefixed)
+ * and <code>responses.idx</code> holds one line per record: test key, request hash and offset.
+ * A later record for the same test and request replaces an earlier one.
+ * For replay the data file is memory-mapped, so it is limited to 2GB.
+ */
+public class ResponseArchive implements Closeable {
+
+    final static String DATA_FILE = "responses.dat";
+
+    final static String INDEX_FILE = "responses.idx";
+
+    final private boolean replay;
+
+    private DataOutputStream data;
+
+    private Writer index;
+
+    private long length;
+
+    private MappedByteBuffer mapped;
+
+    private Map<String, Long> offsets;
+
+    private ResponseArchive(boolean replay) {
+        this.replay = replay;
+    }
+
+    /**
+     * Opens an archive for appending, creating it if necessary.
+     */
+    public static ResponseArchive record(File directory) throws IOException {
+        final ResponseArchive archive = new ResponseArchive(false);
+        directory.mkdirs();
+        final File dataFile = new File(directory, DATA_FILE);
+        archive.length = dataFile.length();
+        archive.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true)));
+        archive.index = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(new File(directory, INDEX_FILE), true)), StandardCharsets.UTF_8);
+        return archive;
+    }
+
+    /**
+     * Opens an existing archive for reading.
+     */
+    public static ResponseArchive replay(File directory) throws IOException {
+        final ResponseArchive archive = new ResponseArchive(true);
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, DATA_FILE), "r")) {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Archive too large to replay: " + directory);
+            }
+            archive.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        archive.length = archive.mapped.capacity();
+
+        archive.offsets = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(directory, INDEX_FILE)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    final long offset = Long.parseLong(line.substring(tab + 1));
+                    // a record without its data was cut short while recording
+                    if (offset < archive.length) {
+                        archive.offsets.put(line.substring(0, tab), offset);
+                    }
+                }
+            }
+        }
+        return archive;
+    }
+
+    public boolean isReplay() {
+        return replay;
+    }
+
+    /**
+     * @return the number of responses that can be replayed
+     */
+    public int size() {
+        return null == offsets ? 0 : offsets.size();
+    }
+
+    public synchronized void append(String testKey, String requestHash, HttpTransport.Response response) throws IOException {
+        if (replay) {
+            throw new IllegalStateException("Archive is open for replay");
+        }
+        final byte[] contentType = null == response.getContentType() ? new byte[0] : response.getContentType().getBytes(StandardCharsets.UTF_8);
+        final long offset = length;
+
+        data.writeInt(response.getStatus());
+        data.writeShort(contentType.length);
+        data.write(contentType);
+        data.writeInt(response.getBody().length);
+        data.write(response.getBody());
+        length += 4 + 2 + contentType.length + 4 + response.getBody().length;
+
+        index.write(key(testKey, requestHash) + "\t" + offset + "\n");
+    }
+
+    /**
+     * @return the archived response, or null if there is none
+     */
+    public HttpTransport.Response get(String testKey, String requestHash) {
+        final Long offset = offsets.get(key(testKey, requestHash));
+        if (null == offset) {
+            return null;
+        }
+
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position(offset.intValue());
+        final int status = buffer.getInt();
+        final byte[] contentType = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(contentType);
+        final byte[] body = new byte[buffer.getInt()];
+        buffer.get(body);
+
+        final Header[] headers = contentType.length == 0 ? new Header[0]
+                : new Header[] { new BasicHeader("Content-Type", new String(contentType, StandardCharsets.UTF_8)) };
+        return new HttpTransport.Response(status, headers, body);
+    }
+
+    /**
+     * Makes everything appended so far visible to readers.
+     */
+    public synchronized void flush() throws IOException {
+        if (null != data) {
+            data.flush();
+            index.flush();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (null != data) {
+            try {
+                data.close();
+            } finally {
+                index.close();
+            }
+            data = null;
+        }
+        mapped = null;
+    }
+
+    private static String key(String testKey, String requestHash) {
+        return testKey.replace('\t', ' ').replace('\n', ' ') + "\t" + requestHash;
+    }
+
+}
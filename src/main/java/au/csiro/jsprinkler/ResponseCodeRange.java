@@ -0,0 +1,67 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.Serializable;
+
+/**
+ * A parsed <code>responseCode</code> value: an exact code (<code>200</code>), a class of codes
+ * (<code>2xx</code>), or the negation of either (<code>!2xx</code>).
+ */
+public class ResponseCodeRange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final private String range;
+
+    final private boolean negated;
+
+    final private int lower;
+
+    final private int upper;
+
+    private ResponseCodeRange(String range, boolean negated, int lower, int upper) {
+        this.range = range;
+        this.negated = negated;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    public static ResponseCodeRange parse(String range) {
+        final boolean negated = range.startsWith("!");
+        final String value = negated ? range.substring(1) : range;
+
+        if (value.endsWith("xx")) {
+            final int lower = Integer.parseInt(value.substring(0, 1)) * 100;
+            return new ResponseCodeRange(range, negated, lower, lower + 100);
+        } else {
+            final int code = Integer.parseInt(value);
+            return new ResponseCodeRange(range, negated, code, code + 1);
+        }
+    }
+
+    public boolean matches(int code) {
+        return negated != (lower <= code && code < upper);
+    }
+
+    public String toString() {
+        return range;
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+/**
+ * Receives the progress and results of a run as they happen, for reports other than the console output.
+ * Suites and finished tests are reported in script order; {@link #testStarted(long, TestContext)} is called
+ * by the thread running the test, so with several threads it may be called concurrently and out of order.
+ * Listeners should be quick; wrap slow ones in an {@link AsyncResultSink}.
+ */
+public interface ResultListener {
+
+    /**
+     * @param time when the event happened, in milliseconds since the epoch, as for all events
+     */
+    void runStarted(long time, String name);
+
+    void suiteStarted(long time, String id, String name);
+
+    void testStarted(long time, TestContext test);
+
+    /**
+     * @param test the finished test, which is not changed afterwards
+     */
+    void testFinished(long time, TestContext test);
+
+    void suiteFinished(long time, String id, String name);
+
+    void runFinished(long time, int total, int failed, long elapsedNanos);
+
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom2.JDOMException;
+
+/**
+ * Runs a script's operations with {@link LoadRunner} at increasing concurrency (1, 2, 4 ... N), each
+ * level for a fixed duration, and reports throughput, error rate and latency percentiles per level as CSV
+ * together with the level at which the server stopped scaling.
+ * <p>
+ * Responses are validated against the expected resources, and only valid responses count towards the
+ * goodput used to find the knee: the first level whose extra concurrency bought less than
+ * {@link #getMinEfficiency()} of the proportional increase in goodput over the level before.
+ */
+public class SaturationSweep {
+
+    final private TestScript script;
+
+    final private LoadRunner runner;
+
+    private int[] levels = {1, 2, 4, 8, 16};
+
+    private long durationMillis = 30000;
+
+    private double minEfficiency = 0.25;
+
+    private PrintStream out = System.out;
+
+    final private List<Level> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        final List<String> testFiles = new ArrayList<>();
+        final Properties options = new Properties();
+        final String endpoint = TestScript.processArgs(testFiles, options, args);
+
+        int[] levels = null;
+        if (options.containsKey("levels")) {
+            levels = parseLevels(options.getProperty("levels"));
+        } else if (options.containsKey("threads")) {
+            levels = powersOfTwo(Integer.parseInt(options.getProperty("threads")));
+        }
+        if (null != levels) {
+            sizeTransport(options, levels[levels.length - 1]);
+        }
+
+        final TestScript script = new TestScript(endpoint);
+        TestScript.configure(script, options);
+        script.setTransport(HttpTransport.create(options));
+
+        final SaturationSweep sweep = new SaturationSweep(script);
+        if (null != levels) {
+            sweep.setLevels(levels);
+        }
+        if (options.containsKey("duration")) {
+            sweep.setDurationMillis(Long.parseLong(options.getProperty("duration")) * 1000);
+        }
+        sweep.getRunner().setDoSetup(options.containsKey("setup"));
+
+        try {
+            for (String testFile: testFiles) {
+                sweep.run(new File(testFile));
+                if (options.containsKey("csv")) {
+                    sweep.writeCsv(new File(options.getProperty("csv")));
+                } else {
+                    sweep.writeCsv(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), true));
+                }
+            }
+        } finally {
+            HttpTransport.release(script.getTransport());
+        }
+    }
+
+    public SaturationSweep(TestScript script) {
+        this.script = script;
+        this.runner = new LoadRunner(script);
+        this.runner.setValidate(true);
+    }
+
+    public LoadRunner getRunner() {
+        return runner;
+    }
+
+    public int[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * Sets the numbers of concurrent requests to run at, in increasing order.
+     */
+    public void setLevels(int[] levels) {
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] < 1 || i > 0 && levels[i] <= levels[i - 1]) {
+                throw new IllegalArgumentException("Levels must be positive and increasing: " + levels[i]);
+            }
+        }
+        this.levels = levels.clone();
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Sets how long each level runs for; 30s by default.
+     */
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public double getMinEfficiency() {
+        return minEfficiency;
+    }
+
+    /**
+     * Sets the fraction of proportional scaling below which a level is past the knee; 0.25 by default,
+     * so doubling concurrency must add at least a quarter to the goodput.
+     */
+    public void setMinEfficiency(double minEfficiency) {
+        this.minEfficiency = minEfficiency;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+        runner.setOut(out);
+    }
+
+    public List<Level> getResults() {
+        return results;
+    }
+
+    /**
+     * @return 1, 2, 4 ... up to and including max
+     */
+    static int[] powersOfTwo(int max) {
+        final List<Integer> levels = new ArrayList<>();
+        for (int level = 1; level < max; level *= 2) {
+            levels.add(level);
+        }
+        levels.add(Math.max(1, max));
+        final int[] result = new int[levels.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = levels.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Raises the connection limits to the highest level where they have not been given, so the transport
+     * does not hold back requests and the knee found is the server's.
+     */
+    static void sizeTransport(Properties options, int concurrency) {
+        if (!options.containsKey("maxPerEndpoint") && concurrency > HttpTransport.DEFAULT_MAX_PER_ENDPOINT) {
+            options.setProperty("maxPerEndpoint", Integer.toString(concurrency));
+        }
+        if (!options.containsKey("maxConnections") && concurrency > HttpTransport.DEFAULT_MAX_CONNECTIONS) {
+            options.setProperty("maxConnections", Integer.toString(concurrency));
+        }
+    }
+
+    static int[] parseLevels(String levels) {
+        final String[] parts = levels.split(",");
+        final int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    public void run(File testFile) throws JDOMException, IOException, InterruptedException {
+        run(script.getCompiler().compile(testFile));
+    }
+
+    /**
+     * Runs each level in turn; setup, if enabled, is only executed before the first.
+     * @throws IllegalArgumentException if the script's transport would queue requests at the highest level
+     */
+    public void run(ExecutionPlan plan) throws InterruptedException {
+        final int highest = levels[levels.length - 1];
+        final HttpTransport transport = script.getTransport();
+        if (highest > transport.getMaxPerEndpoint() || highest > transport.getMaxConnections()) {
+            throw new IllegalArgumentException("Concurrency " + highest + " exceeds the transport's limit of "
+                    + Math.min(transport.getMaxPerEndpoint(), transport.getMaxConnections())
+                    + " connections; raise -maxPerEndpoint and -maxConnections");
+        }
+        results.clear();
+        final boolean doSetup = runner.isDoSetup();
+        runner.setDurationMillis(durationMillis);
+        runner.setIterations(0);
+        runner.setRate(0);
+        try {
+            for (int level: levels) {
+                out.println("Concurrency " + level);
+                runner.setThreads(level);
+                runner.run(plan);
+                runner.setDoSetup(false);
+
+                final LatencyHistogram all = new LatencyHistogram();
+                for (LatencyHistogram h: runner.getLatencies().values()) {
+                    all.add(h);
+                }
+                results.add(new Level(level, all, runner.getErrorCount(), runner.getElapsedNanos()));
+            }
+        } finally {
+            runner.setDoSetup(doSetup);
+        }
+
+        final int knee = findKnee(results, minEfficiency);
+        if (knee < 0) {
+            out.println("No saturation up to " + levels[levels.length - 1] + " concurrent requests");
+        } else {
+            final Level saturated = results.get(knee);
+            out.println(String.format(Locale.ROOT, "Saturates at %d concurrent requests: %.1f valid req/s, p99 %.1fms",
+                    saturated.getConcurrency(), saturated.getGoodput(), saturated.getLatencies().getValueAtPercentile(99) / 1000.0));
+        }
+    }
+
+    /**
+     * @return the index of the last level that scaled, or -1 if every level scaled
+     */
+    static int findKnee(List<Level> levels, double minEfficiency) {
+        for (int i = 1; i < levels.size(); i++) {
+            final Level previous = levels.get(i - 1);
+            final Level current = levels.get(i);
+            final double ideal = previous.getGoodput() * ((double) current.getConcurrency() / previous.getConcurrency() - 1);
+            if (ideal <= 0 || current.getGoodput() - previous.getGoodput() < minEfficiency * ideal) {
+                return i - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the results; failures are reported rather than thrown, as the sweep itself has finished.
+     */
+    public void writeCsv(File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeCsv(new PrintWriter(writer));
+        } catch (IOException e) {
+            out.println("Unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void writeCsv(PrintWriter writer) {
+        final int knee = findKnee(results, minEfficiency);
+        writer.println("concurrency,requests,errors,error_rate,req_per_s,valid_req_per_s,p50_ms,p90_ms,p99_ms,max_ms,saturated");
+        for (int i = 0; i < results.size(); i++) {
+            final Level level = results.get(i);
+            final LatencyHistogram h = level.getLatencies();
+            writer.println(String.format(Locale.ROOT, "%d,%d,%d,%.4f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%s",
+                    level.getConcurrency(), h.getCount(), level.getErrors(), level.getErrorRate(),
+                    level.getThroughput(), level.getGoodput(),
+                    h.getValueAtPercentile(50) / 1000.0,
+                    h.getValueAtPercentile(90) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0,
+                    h.getMax() / 1000.0,
+                    knee >= 0 && i > knee));
+        }
+        writer.flush();
+    }
+
+    /**
+     * The outcome of one concurrency level.
+     */
+    public static class Level {
+
+        final private int concurrency;
+
+        final private LatencyHistogram latencies;
+
+        final private long errors;
+
+        final private long elapsedNanos;
+
+        public Level(int concurrency, LatencyHistogram latencies, long errors, long elapsedNanos) {
+            this.concurrency = concurrency;
+            this.latencies = latencies;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        /**
+         * @return request latencies in microseconds
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getErrorRate() {
+            return latencies.getCount() == 0 ? 0 : (double) errors / latencies.getCount();
+        }
+
+        /**
+         * @return requests per second
+         */
+        public double getThroughput() {
+            return latencies.getCount() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * @return valid responses per second
+         */
+        public double getGoodput() {
+            return (latencies.getCount() - errors) / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+    }
+
+}
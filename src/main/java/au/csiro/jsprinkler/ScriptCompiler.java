@@ -0,0 +1,277 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Resource;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.XMLOutputter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles TestScript XML into an {@link ExecutionPlan}.
+ * <p>
+ * Plans compiled from script text are cached in memory, keyed by a SHA-1 hash of the script,
+ * and optionally serialised to a cache directory so later processes can skip parsing too.
+ */
+public class ScriptCompiler {
+
+    final private static Logger log = LoggerFactory.getLogger(ScriptCompiler.class);
+
+    final private static ConcurrentMap<String, ExecutionPlan> PLANS = new ConcurrentHashMap<>();
+
+    private File cacheDirectory;
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Sets a directory in which compiled plans are stored; null (the default) caches in memory only.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public ExecutionPlan compile(File testFile) throws JDOMException, IOException {
+        final byte[] script = Files.readAllBytes(testFile.toPath());
+        final String key = hash(script);
+
+        ExecutionPlan plan = lookup(key);
+        if (null == plan) {
+            plan = compile(new SAXBuilder().build(new ByteArrayInputStream(script)));
+            store(key, plan);
+        }
+        return plan;
+    }
+
+    public ExecutionPlan compile(Reader testFile) throws JDOMException, IOException {
+        final StringWriter writer = new StringWriter();
+        final char[] buffer = new char[8192];
+        int n;
+        while ((n = testFile.read(buffer)) != -1) {
+            writer.write(buffer, 0, n);
+        }
+        final String script = writer.toString();
+        final String key = hash(script.getBytes(StandardCharsets.UTF_8));
+
+        ExecutionPlan plan = lookup(key);
+        if (null == plan) {
+            plan = compile(new SAXBuilder().build(new StringReader(script)));
+            store(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Compiles an already parsed script; the result is not cached.
+     */
+    public ExecutionPlan compile(Document doc) {
+        final Element root = doc.getRootElement();
+        if (!"TestScript".equals(root.getName()) || !"http://hl7.org/fhir".equals(root.getNamespaceURI())) {
+            throw new IllegalArgumentException("Unrecognised start to script: expected TestScript :: http://hl7.org/fhir");
+        }
+        final Namespace ns = root.getNamespace();
+
+        final List<ExecutionPlan.SetupAction> setup = new ArrayList<>();
+        final List<ExecutionPlan.Suite> suites = new ArrayList<>();
+        for (Element child: root.getChildren()) {
+            if ("setup".equals(child.getName())) {
+                for (Element action: child.getChildren()) {
+                    if ("action".equals(action.getName())) {
+                        setup.add(compileSetupAction(action, ns));
+                    }
+                }
+            } else if ("suite".equals(child.getName())) {
+                suites.add(compileSuite(child, ns));
+            }
+        }
+
+        return new ExecutionPlan(getChildValue(root, "name", ns), setup, suites);
+    }
+
+    ExecutionPlan.SetupAction compileSetupAction(Element element, Namespace ns) {
+        final List<Resource> updates = new ArrayList<>();
+        for (Element child: element.getChildren()) {
+            if ("update".equals(child.getName())) {
+                updates.add(getInnerResource(child));
+            }
+        }
+        return new ExecutionPlan.SetupAction(getChildValue(element, "name", ns), updates);
+    }
+
+    ExecutionPlan.Suite compileSuite(Element element, Namespace ns) {
+        final String maxDuration = getChildValue(element, "maxDuration", ns);
+        final List<ExecutionPlan.Test> tests = new ArrayList<>();
+        for (Element child: element.getChildren()) {
+            final String name = child.getName();
+
+            if ("test".equals(name)) {
+                tests.add(compileTest(child, ns, maxDuration));
+            } else if (!"name".equals(name) && !"description".equals(name) && !"maxDuration".equals(name)) {
+                throw new IllegalArgumentException("Unexpected content: " + name);
+            }
+        }
+        return new ExecutionPlan.Suite(element.getAttributeValue("id"), getChildValue(element, "name", ns), tests);
+    }
+
+    /**
+     * @param maxDuration the suite's <code>maxDuration</code>, used by operations without their own, or empty
+     */
+    ExecutionPlan.Test compileTest(Element element, Namespace ns, String maxDuration) {
+        final List<ExecutionPlan.Operation> operations = new ArrayList<>();
+        for (Element child: element.getChildren()) {
+            final String name = child.getName();
+            if ("operation".equals(name)) {
+                operations.add(compileOperation(child, ns, maxDuration));
+            } else if (!"name".equals(name) && !"description".equals(name)) {
+                throw new IllegalArgumentException("Unexpected content: " + name);
+            }
+        }
+        return new ExecutionPlan.Test(element.getAttributeValue("id"), getChildValue(element, "name", ns), operations);
+    }
+
+    ExecutionPlan.Operation compileOperation(Element element, Namespace ns, String defaultMaxDuration) {
+        final String url = getChildValue(element, "url", ns);
+        try {
+            final Element input = element.getChild("input", ns);
+            Resource inputResource = null;
+            byte[] body = null;
+            if (input != null) {
+                inputResource = getInnerResource(input);
+                body = new XmlParser().composeBytes(inputResource);
+            }
+
+            final ResponseCodeRange responseCode = ResponseCodeRange.parse(getChildValue(element, "responseCode", ns));
+            final String maxDuration = getChildValue(element, "maxDuration", ns);
+            final DurationRange duration = DurationRange.parse(null == maxDuration || maxDuration.isEmpty() ? defaultMaxDuration : maxDuration);
+
+            Element output = element.getChild("output", ns);
+            Element rules = null;
+            for (Element child: output.getChildren()) {
+                if (rules == null && "rules".equals(child.getName())) {
+                    rules = child;
+                } else if (rules != null) {
+                    output = child;
+                    break;
+                }
+            }
+            final Resource expected = getOuterResource(output);
+
+            return new ExecutionPlan.Operation(url, inputResource, body, responseCode, duration, rules.getAttributeValue("value"), expected);
+        } catch (Exception e) {
+            return ExecutionPlan.Operation.invalid(url, "[" +e.getClass().getSimpleName()+"] "+ e.getMessage());
+        }
+    }
+
+    static Resource getOuterResource(Element element) {
+        try {
+            final String xmlString = new XMLOutputter().outputString(element);
+            return new XmlParser().parse(xmlString);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    static Resource getInnerResource(Element element) {
+        final Element inner = element.getChildren().get(0);
+        return getOuterResource(inner);
+    }
+
+    static String getChildValue(Element parent, String name, Namespace ns) {
+        final Element child = parent.getChild(name, ns);
+        return child == null ? "" : child.getAttributeValue("value");
+    }
+
+    private ExecutionPlan lookup(String key) {
+        ExecutionPlan plan = PLANS.get(key);
+        if (null == plan && null != cacheDirectory) {
+            final File file = new File(cacheDirectory, key + ".plan");
+            if (file.isFile()) {
+                try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    plan = (ExecutionPlan) in.readObject();
+                    PLANS.put(key, plan);
+                } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                    log.warn("Ignoring unreadable cached plan " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return plan;
+    }
+
+    private void store(String key, ExecutionPlan plan) {
+        PLANS.put(key, plan);
+        if (null != cacheDirectory) {
+            final File file = new File(cacheDirectory, key + ".plan");
+            final File tmp = new File(cacheDirectory, key + ".plan.tmp");
+            try {
+                cacheDirectory.mkdirs();
+                try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeObject(plan);
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to cache plan in " + cacheDirectory + ": " + e.getMessage());
+                tmp.delete();
+            }
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b: digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
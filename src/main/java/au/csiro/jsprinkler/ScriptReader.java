@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+
+/**
+ * Reads a TestScript incrementally with StAX, handing over each setup action and test as soon as it
+ * has been read. Only the element being read is held as a JDOM fragment, which is compiled with
+ * {@link ScriptCompiler} and then dropped, so memory depends on the largest test rather than the script.
+ */
+public class ScriptReader {
+
+    /**
+     * Receives the parts of a script in document order.
+     */
+    public interface Handler {
+
+        /**
+         * Called before any setup action or suite.
+         */
+        void startScript(String name);
+
+        void setupAction(ExecutionPlan.SetupAction action);
+
+        /**
+         * Called before the first test of a suite.
+         */
+        void startSuite(String id, String name);
+
+        void test(ExecutionPlan.Test test);
+
+    }
+
+    final private static Namespace FHIR = Namespace.getNamespace(XmlNode.FHIR_NS);
+
+    final private ScriptCompiler compiler;
+
+    public ScriptReader(ScriptCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    public void read(InputStream in, Handler handler) throws XMLStreamException {
+        final XMLStreamReader reader = XmlNode.createReader(in);
+        try {
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT
+                    || !"TestScript".equals(reader.getLocalName()) || !XmlNode.FHIR_NS.equals(reader.getNamespaceURI())) {
+                throw new IllegalArgumentException("Unrecognised start to script: expected TestScript :: http://hl7.org/fhir");
+            }
+
+            String name = "";
+            boolean started = false;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                final String element = reader.getLocalName();
+                if (!started && "name".equals(element)) {
+                    name = reader.getAttributeValue(null, "value");
+                    XmlNode.skip(reader);
+                    continue;
+                }
+                if (!started) {
+                    handler.startScript(name);
+                    started = true;
+                }
+                if ("setup".equals(element)) {
+                    readSetup(reader, handler);
+                } else if ("suite".equals(element)) {
+                    readSuite(reader, handler);
+                } else {
+                    XmlNode.skip(reader);
+                }
+            }
+            if (!started) {
+                handler.startScript(name);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readSetup(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("action".equals(reader.getLocalName())) {
+                handler.setupAction(compiler.compileSetupAction(readElement(reader), FHIR));
+            } else {
+                XmlNode.skip(reader);
+            }
+        }
+    }
+
+    private void readSuite(XMLStreamReader reader, Handler handler) throws XMLStreamException {
+        final String id = reader.getAttributeValue(null, "id");
+        String name = "";
+        String maxDuration = "";
+        boolean started = false;
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            final String element = reader.getLocalName();
+            if ("test".equals(element)) {
+                if (!started) {
+                    handler.startSuite(id, name);
+                    started = true;
+                }
+                handler.test(compiler.compileTest(readElement(reader), FHIR, maxDuration));
+            } else if ("name".equals(element)) {
+                name = reader.getAttributeValue(null, "value");
+                XmlNode.skip(reader);
+            } else if ("maxDuration".equals(element)) {
+                if (started) {
+                    throw new IllegalArgumentException("Unexpected content: maxDuration must come before the suite's tests");
+                }
+                maxDuration = reader.getAttributeValue(null, "value");
+                XmlNode.skip(reader);
+            } else if ("description".equals(element)) {
+                XmlNode.skip(reader);
+            } else {
+                throw new IllegalArgumentException("Unexpected content: " + element);
+            }
+        }
+        if (!started) {
+            handler.startSuite(id, name);
+        }
+    }
+
+    /**
+     * Builds a JDOM fragment from the element the reader is positioned on, leaving the reader on its END_ELEMENT.
+     */
+    static Element readElement(XMLStreamReader reader) throws XMLStreamException {
+        final Element element = new Element(reader.getLocalName(), namespace(reader.getPrefix(), reader.getNamespaceURI()));
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String uri = reader.getAttributeNamespace(i);
+            if (null == uri || uri.isEmpty()) {
+                element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i), namespace(reader.getAttributePrefix(i), uri));
+            }
+        }
+
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                element.addContent(readElement(reader));
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                element.addContent(new Text(reader.getText()));
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        return element;
+    }
+
+    private static Namespace namespace(String prefix, String uri) {
+        if (null == uri || uri.isEmpty()) {
+            return Namespace.NO_NAMESPACE;
+        }
+        return Namespace.getNamespace(null == prefix ? "" : prefix, uri);
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the content hash (and ETag, if the server sent one) of each setup resource
+ * uploaded to an endpoint, so unchanged resources are not uploaded again.
+ * <p>
+ * A remembered resource is only trusted after a cheap check that the server still holds it:
+ * a conditional read with <code>If-None-Match</code> when there is an ETag, otherwise a
+ * <code>_summary</code> read. Anything that has changed, or that the server has lost, is uploaded.
+ * Entries are kept in a properties file per endpoint in the cache directory.
+ */
+public class SetupCache {
+
+    final private static Logger log = LoggerFactory.getLogger(SetupCache.class);
+
+    final private File file;
+
+    final private ConcurrentMap<String, String> entries = new ConcurrentHashMap<>();
+
+    public SetupCache(File directory, String endpoint) {
+        this.file = new File(directory, "setup-" + ScriptCompiler.hash(endpoint.getBytes(StandardCharsets.UTF_8)) + ".properties");
+        load();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param key the resource's Type/id
+     * @param hash the hash of the encoded resource about to be uploaded
+     * @param uri the resource's URI on the server
+     * @return true if the server is known to hold this exact content already
+     */
+    public boolean isCurrent(HttpTransport transport, String key, String hash, URI uri) {
+        final String entry = entries.get(key);
+        if (null == entry || !hash.equals(getHash(entry))) {
+            return false;
+        }
+
+        final String etag = getETag(entry);
+        try {
+            final HttpGet request = new HttpGet(null == etag ? URI.create(uri + "?_summary=true") : uri);
+            request.setHeader("Accept", WireFormat.XML.getMimeType());
+            if (null != etag) {
+                request.setHeader("If-None-Match", etag);
+            }
+            final HttpTransport.Response response = transport.execute(request);
+            switch (response.getStatus()) {
+            case HttpStatus.SC_NOT_MODIFIED:
+                return true;
+            case HttpStatus.SC_OK:
+                // servers that ignore If-None-Match still report the version they hold
+                return null == etag || etag.equals(response.getHeader("ETag"));
+            default:
+                return false;
+            }
+        } catch (IOException e) {
+            log.debug("Unable to check " + uri, e);
+            return false;
+        }
+    }
+
+    /**
+     * Records a successful upload.
+     */
+    public void put(String key, String hash, String etag) {
+        entries.put(key, null == etag ? hash : hash + " " + etag);
+    }
+
+    /**
+     * Forgets a resource, e.g. after a failed upload.
+     */
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the cache file; failures are logged rather than failing the run.
+     */
+    public void save() {
+        final Properties properties = new Properties();
+        properties.putAll(entries);
+
+        try {
+            PropertiesFiles.saveProperties(file, properties, null);
+        } catch (IOException e) {
+            log.warn("Unable to save setup cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable setup cache " + file + ": " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<Object, Object> entry: properties.entrySet()) {
+            entries.put((String) entry.getKey(), (String) entry.getValue());
+        }
+    }
+
+    private static String getHash(String entry) {
+        final int space = entry.indexOf(' ');
+        return space < 0 ? entry : entry.substring(0, space);
+    }
+
+    private static String getETag(String entry) {
+        final int space = entry.indexOf(' ');
+        return space < 0 ? null : entry.substring(space + 1);
+    }
+
+}
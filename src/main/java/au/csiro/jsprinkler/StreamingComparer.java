@@ -0,0 +1,339 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Applies the same rules as {@link ResourceComparer} to an XML response as it is read,
+ * without building the actual resource. Only the expected tree and the current element
+ * path are held in memory, so arbitrarily large responses can be checked.
+ * <p>
+ * In unordered mode, keyed repeating elements (see {@link ResourceComparer#setUnordered(boolean)})
+ * are matched against a hash index of the expected items that are still unmatched; each actual item
+ * is read into memory on its own, compared if its key is wanted and then discarded.
+ */
+public class StreamingComparer {
+
+    final private String rule;
+    final private XmlNode expected;
+
+    final private List<String> errors = new ArrayList<>();
+
+    final private List<String> path = new ArrayList<>();
+
+    private boolean unordered;
+
+    private int maxErrors;
+
+    public StreamingComparer(String rule, XmlNode expected) {
+        this.rule = rule;
+        this.expected = expected;
+    }
+
+    public boolean execute(InputStream actual) throws XMLStreamException, IOException {
+        if (!"min".equals(rule)) {
+            throw new RuntimeException("Unknown rule: " + rule);
+        }
+
+        // an empty body is no resource rather than malformed XML
+        final PushbackInputStream in = new PushbackInputStream(actual);
+        final int first = in.read();
+        if (first == -1) {
+            if (null == expected) {
+                return true;
+            }
+            errors.add("Expected a Resource of type " + expected.getName() + ", but found none.");
+            return false;
+        }
+        in.unread(first);
+
+        final XMLStreamReader reader = XmlNode.createReader(in);
+        try {
+            while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // find the root element
+            }
+            final boolean found = reader.isStartElement();
+
+            if (null == expected) {
+                if (!found) {
+                    return true;
+                } else {
+                    errors.add("Found a Resource of type " + reader.getLocalName() + ", but expected none.");
+                    return false;
+                }
+            }
+            if (!found) {
+                errors.add("Expected a Resource of type " + expected.getName() + ", but found none.");
+                return false;
+            }
+
+            final String type = reader.getLocalName();
+            if (!type.equals(expected.getName())) {
+                String detail = "";
+                if ("OperationOutcome".equals(type)) {
+                    detail = readDetails(reader);
+                }
+                errors.add("Found a Resource of type " + type + ", but expected " + expected.getName() + detail);
+                return false;
+            }
+
+            path.add(type);
+            final boolean ok = compareElement(expected, reader);
+            if (isExhausted()) {
+                errors.add("Stopped after " + maxErrors + " errors");
+            }
+            return ok;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public boolean isUnordered() {
+        return unordered;
+    }
+
+    public void setUnordered(boolean unordered) {
+        this.unordered = unordered;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * @see ResourceComparer#setMaxErrors(int)
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Compares the element the reader is positioned on with the expected node, leaving the reader on its END_ELEMENT.
+     */
+    protected boolean compareElement(XmlNode expected, XMLStreamReader reader) throws XMLStreamException {
+        boolean ok = true;
+        final int[] seen = new int[expected.getGroupCount()];
+        final List<Map<String, Deque<XmlNode>>> pending = new ArrayList<>(seen.length);
+        for (int group = 0; group < seen.length; group++) {
+            pending.add(unordered ? indexByKey(expected.getGroup(group)) : null);
+        }
+
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final int group = XmlNode.isCompared(reader) ? expected.indexOf(reader.getLocalName()) : -1;
+                if (group < 0 || isExhausted()) {
+                    XmlNode.skip(reader);
+                } else {
+                    final int i = seen[group]++;
+                    final List<XmlNode> expectedChildren = expected.getGroup(group);
+                    final Map<String, Deque<XmlNode>> unmatched = pending.get(group);
+                    if (null != unmatched) {
+                        if (!unmatched.isEmpty()) {
+                            final XmlNode actual = XmlNode.read(reader);
+                            final String key = getKey(actual);
+                            final Deque<XmlNode> matches = unmatched.get(key);
+                            if (null != matches) {
+                                final XmlNode match = matches.poll();
+                                if (matches.isEmpty()) {
+                                    unmatched.remove(key);
+                                }
+                                path.add(match.getName());
+                                ok &= compareNodes(match, actual);
+                                path.remove(path.size() - 1);
+                            }
+                        } else {
+                            XmlNode.skip(reader);
+                        }
+                    } else if (i < expectedChildren.size()) {
+                        path.add(expectedChildren.get(i).getName());
+                        ok &= compareElement(expectedChildren.get(i), reader);
+                        path.remove(path.size() - 1);
+                    } else {
+                        XmlNode.skip(reader);
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        for (int group = 0; group < seen.length; group++) {
+            final int minExpected = expected.getGroup(group).size();
+            if (minExpected > seen[group]) {
+                error(expected.getGroupName(group) + " - Differing numbers of children: expected " + minExpected + ", found " + seen[group]);
+                ok = false;
+            }
+            if (null != pending.get(group)) {
+                ok &= reportUnmatched(expected.getGroupName(group), pending.get(group));
+            }
+        }
+
+        return ok;
+    }
+
+    /**
+     * Compares two in-memory trees with the same rules as {@link #compareElement}.
+     */
+    protected boolean compareNodes(XmlNode expected, XmlNode actual) {
+        boolean ok = true;
+        for (int group = 0; group < expected.getGroupCount(); group++) {
+            final String name = expected.getGroupName(group);
+            final List<XmlNode> expectedChildren = expected.getGroup(group);
+            final int actualGroup = actual.indexOf(name);
+            final List<XmlNode> actualChildren = actualGroup < 0 ? new ArrayList<XmlNode>() : actual.getGroup(actualGroup);
+
+            if (expectedChildren.size() > actualChildren.size()) {
+                error(name + " - Differing numbers of children: expected " + expectedChildren.size() + ", found " + actualChildren.size());
+                ok = false;
+            }
+
+            final Map<String, Deque<XmlNode>> unmatched = unordered ? indexByKey(expectedChildren) : null;
+            path.add(name);
+            if (null != unmatched) {
+                for (XmlNode child: actualChildren) {
+                    final String key = getKey(child);
+                    final Deque<XmlNode> matches = unmatched.get(key);
+                    if (null != matches) {
+                        ok &= compareNodes(matches.poll(), child);
+                        if (matches.isEmpty()) {
+                            unmatched.remove(key);
+                        }
+                    }
+                }
+            } else {
+                final int min = Math.min(expectedChildren.size(), actualChildren.size());
+                for (int i = 0; i < min && !isExhausted(); i++) {
+                    ok &= compareNodes(expectedChildren.get(i), actualChildren.get(i));
+                }
+            }
+            path.remove(path.size() - 1);
+
+            if (null != unmatched) {
+                ok &= reportUnmatched(name, unmatched);
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * @return the expected items indexed by key, or null if any has no key or there is a single primitive
+     * (see {@link ResourceComparer#isCoded})
+     */
+    private static Map<String, Deque<XmlNode>> indexByKey(List<XmlNode> expected) {
+        if (expected.isEmpty() || expected.size() == 1 && expected.get(0).getGroupCount() == 0) {
+            return null;
+        }
+        final Map<String, Deque<XmlNode>> index = new HashMap<>(expected.size() * 2);
+        for (XmlNode node: expected) {
+            final String key = getKey(node);
+            if (null == key) {
+                return null;
+            }
+            Deque<XmlNode> matches = index.get(key);
+            if (null == matches) {
+                matches = new ArrayDeque<>(1);
+                index.put(key, matches);
+            }
+            matches.add(node);
+        }
+        return index;
+    }
+
+    /**
+     * Reports a difference below the current path, unless the error budget is used up.
+     */
+    private void error(String message) {
+        if (!isExhausted()) {
+            errors.add(getPath() + "." + message);
+        }
+    }
+
+    private boolean isExhausted() {
+        return maxErrors > 0 && errors.size() >= maxErrors;
+    }
+
+    private boolean reportUnmatched(String name, Map<String, Deque<XmlNode>> unmatched) {
+        boolean ok = true;
+        for (Map.Entry<String, Deque<XmlNode>> entry: unmatched.entrySet()) {
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                error(name + " - No match found for [" + entry.getKey() + "]");
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * @return the same key as {@link ResourceComparer#getKey} for the XML form of an item, or null
+     */
+    static String getKey(XmlNode node) {
+        if (node.getGroupCount() == 0) {
+            return node.getValue();
+        }
+        final String code = node.getChildValue("code");
+        if (null == code) {
+            return null;
+        }
+        final String system = node.getChildValue("system");
+        return (null == system ? "" : system) + "|" + code;
+    }
+
+    private String getPath() {
+        final StringBuilder sb = new StringBuilder();
+        for (String name: path) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    private String readDetails(XMLStreamReader reader) throws XMLStreamException {
+        final StringBuilder detail = new StringBuilder();
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && "details".equals(reader.getLocalName())) {
+                final String value = reader.getAttributeValue(null, "value");
+                if (null != value) {
+                    detail.append(": ").append(value);
+                }
+            }
+        }
+        return detail.toString();
+    }
+
+}
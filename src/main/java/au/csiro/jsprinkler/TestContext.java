@@ -0,0 +1,212 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the state of a single test execution so that tests can be run concurrently.
+ * Output is buffered and written out in script order once the test has finished;
+ * the outcome of each operation is also kept for {@link ResultListener}s.
+ */
+public class TestContext {
+
+    final private String suiteId;
+
+    final private String id;
+
+    final private String name;
+
+    final private StringBuilder output = new StringBuilder();
+
+    private boolean failed;
+
+    private long elapsedNanos;
+
+    final private List<OperationResult> operations = new ArrayList<>();
+
+    final private List<String> errors = new ArrayList<>();
+
+    final private PhaseTimings timings = new PhaseTimings();
+
+    public TestContext(String id, String name) {
+        this(null, id, name);
+    }
+
+    public TestContext(String suiteId, String id, String name) {
+        this.suiteId = suiteId;
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * @return the id of the suite the test belongs to, or null if it is not known
+     */
+    public String getSuiteId() {
+        return suiteId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @see ExecutionPlan.Test#getKey()
+     */
+    public String getKey() {
+        return null == id ? name : id;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public void fail() {
+        failed = true;
+    }
+
+    /**
+     * @return the time taken by the test's measured operations
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public void addElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos += elapsedNanos;
+    }
+
+    /**
+     * @return the phases and bytes of the test's operations added together
+     */
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Records the outcome of an operation.
+     * @param status the HTTP status, or -1 if there was no response
+     * @param errors the differences found, empty if the operation passed
+     */
+    public void addOperation(String url, int status, long elapsedNanos, List<String> errors) {
+        operations.add(new OperationResult(url, status, elapsedNanos, errors));
+    }
+
+    public List<OperationResult> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Records a failure of the test as a whole rather than of one operation.
+     */
+    public void addError(String error) {
+        errors.add(error);
+    }
+
+    /**
+     * @return the errors recorded with {@link #addError}, without those of the test's operations
+     */
+    List<String> getTestErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return the test's own errors followed by those of its operations
+     */
+    public List<String> getErrors() {
+        final List<String> all = new ArrayList<>(errors);
+        for (OperationResult operation: operations) {
+            all.addAll(operation.getErrors());
+        }
+        return all;
+    }
+
+    public void print(final String line) {
+        output.append(line);
+    }
+
+    public void println(final String line) {
+        output.append(line).append('\n');
+    }
+
+    public String getOutput() {
+        return output.toString();
+    }
+
+    /**
+     * Fails a test whose operations all passed, turning the verdict of its last operation into a failure
+     * so its output does not show both.
+     */
+    void failPassed(String error) {
+        fail();
+        addError(error);
+        final int index = output.lastIndexOf("Passed (");
+        if (index >= 0) {
+            output.replace(index, index + "Passed".length(), "Failed");
+            output.insert(output.indexOf("\n", index) + 1, "    " + error + "\n");
+        } else {
+            println("    Failed: " + error);
+        }
+    }
+
+    public static class OperationResult {
+
+        final private String url;
+
+        final private int status;
+
+        final private long elapsedNanos;
+
+        final private List<String> errors;
+
+        OperationResult(String url, int status, long elapsedNanos, List<String> errors) {
+            this.url = url;
+            this.status = status;
+            this.elapsedNanos = elapsedNanos;
+            this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public boolean isPassed() {
+            return errors.isEmpty();
+        }
+    }
+
+}
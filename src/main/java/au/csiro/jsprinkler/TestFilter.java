@@ -0,0 +1,286 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Property;
+import org.hl7.fhir.instance.model.Resource;
+
+/**
+ * Selects the tests of a script to run.
+ * <p>
+ * Test and suite ids are matched against comma separated globs (<code>*</code> and <code>?</code>),
+ * tags against words in the test name, ignoring case. A test must satisfy every criterion that is set;
+ * with none set every test runs.
+ */
+public class TestFilter {
+
+    private String testIds;
+
+    private String suiteIds;
+
+    private String tags;
+
+    private List<Pattern> testPatterns;
+
+    private List<Pattern> suitePatterns;
+
+    private List<String> tagWords;
+
+    private Set<String> keys;
+
+    public String getTestIds() {
+        return testIds;
+    }
+
+    /**
+     * @param testIds comma separated globs matched against test ids, or null for any
+     */
+    public void setTestIds(String testIds) {
+        this.testIds = testIds;
+        this.testPatterns = null == testIds ? null : globs(testIds);
+    }
+
+    public String getSuiteIds() {
+        return suiteIds;
+    }
+
+    /**
+     * @param suiteIds comma separated globs matched against suite ids, or null for any
+     */
+    public void setSuiteIds(String suiteIds) {
+        this.suiteIds = suiteIds;
+        this.suitePatterns = null == suiteIds ? null : globs(suiteIds);
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    /**
+     * @param tags comma separated words, at least one of which must appear in the test name, or null for any
+     */
+    public void setTags(String tags) {
+        this.tags = tags;
+        if (null == tags) {
+            this.tagWords = null;
+        } else {
+            this.tagWords = new ArrayList<>();
+            for (String tag: tags.split(",")) {
+                if (!tag.trim().isEmpty()) {
+                    tagWords.add(tag.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+    }
+
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Restricts the run to the tests with the given keys (see {@link ExecutionPlan.Test#getKey()}), or null for any.
+     */
+    public void setKeys(Set<String> keys) {
+        this.keys = keys;
+    }
+
+    public boolean isEmpty() {
+        return null == testPatterns && null == suitePatterns && null == tagWords && null == keys;
+    }
+
+    public boolean matches(String suiteId, ExecutionPlan.Test test) {
+        if (null != suitePatterns && !matchesAny(suitePatterns, suiteId)) {
+            return false;
+        }
+        if (null != testPatterns && !matchesAny(testPatterns, test.getId())) {
+            return false;
+        }
+        if (null != keys && !keys.contains(test.getKey())) {
+            return false;
+        }
+        if (null != tagWords) {
+            final String name = String.valueOf(test.getName()).toLowerCase(Locale.ROOT);
+            for (String tag: tagWords) {
+                if (name.contains(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the tests of the plan that match, in script order
+     */
+    public List<ExecutionPlan.Test> select(ExecutionPlan plan) {
+        final List<ExecutionPlan.Test> tests = new ArrayList<>();
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                if (matches(suite.getId(), test)) {
+                    tests.add(test);
+                }
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * Keeps only the setup resources the given tests refer to, directly or through other setup resources.
+     * A resource is referred to by its <code>Type/id</code>, its canonical <code>url</code> or, for a ValueSet that
+     * defines a code system, its <code>codeSystem.system</code> appearing in an operation's URL or body, or in a
+     * resource already kept. Actions left with nothing to upload are dropped.
+     */
+    public static List<ExecutionPlan.SetupAction> trimSetup(List<ExecutionPlan.SetupAction> setup, Collection<ExecutionPlan.Test> tests) {
+        final StringBuilder text = new StringBuilder();
+        for (ExecutionPlan.Test test: tests) {
+            for (ExecutionPlan.Operation operation: test.getOperations()) {
+                text.append(operation.getUrl()).append('\n');
+                if (null != operation.getBody()) {
+                    text.append(new String(operation.getBody(), StandardCharsets.UTF_8)).append('\n');
+                }
+            }
+        }
+
+        final List<Resource> resources = new ArrayList<>();
+        for (ExecutionPlan.SetupAction action: setup) {
+            resources.addAll(action.getUpdates());
+        }
+        final boolean[] needed = new boolean[resources.size()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < resources.size(); i++) {
+                if (!needed[i] && isReferenced(text, resources.get(i))) {
+                    needed[i] = true;
+                    changed = true;
+                    text.append(encode(resources.get(i))).append('\n');
+                }
+            }
+        }
+
+        final List<ExecutionPlan.SetupAction> trimmed = new ArrayList<>();
+        int i = 0;
+        for (ExecutionPlan.SetupAction action: setup) {
+            final List<Resource> updates = new ArrayList<>();
+            for (Resource resource: action.getUpdates()) {
+                if (needed[i++]) {
+                    updates.add(resource);
+                }
+            }
+            if (!updates.isEmpty()) {
+                trimmed.add(updates.size() == action.getUpdates().size() ? action : new ExecutionPlan.SetupAction(action.getName(), updates));
+            }
+        }
+        return trimmed;
+    }
+
+    private static boolean isReferenced(StringBuilder text, Resource resource) {
+        if (contains(text, resource.getResourceType() + "/" + resource.getId())) {
+            return true;
+        }
+        final String url = ResourceComparer.getPrimitiveChild(resource, "url");
+        if (null != url && contains(text, url)) {
+            return true;
+        }
+        // other value sets include a DSTU2 code system by its system URI
+        final Property codeSystem = resource.getChildByName("codeSystem");
+        if (null != codeSystem && !codeSystem.getValues().isEmpty()) {
+            final String system = ResourceComparer.getPrimitiveChild(codeSystem.getValues().get(0), "system");
+            return null != system && contains(text, system);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the reference occurs in the text and is not just the start of a longer id
+     */
+    static boolean contains(StringBuilder text, String reference) {
+        int i = text.indexOf(reference);
+        while (i >= 0) {
+            final int end = i + reference.length();
+            if (end == text.length() || !isIdChar(text.charAt(end))) {
+                return true;
+            }
+            i = text.indexOf(reference, i + 1);
+        }
+        return false;
+    }
+
+    private static boolean isIdChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '.' || c == '_';
+    }
+
+    private static String encode(Resource resource) {
+        try {
+            return new String(new XmlParser().composeBytes(resource), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String value) {
+        if (null == value) {
+            return false;
+        }
+        for (Pattern pattern: patterns) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static List<Pattern> globs(String globs) {
+        final List<Pattern> patterns = new ArrayList<>();
+        for (String glob: globs.split(",")) {
+            final String g = glob.trim();
+            if (g.isEmpty()) {
+                continue;
+            }
+            final StringBuilder regex = new StringBuilder();
+            int start = 0;
+            for (int i = 0; i < g.length(); i++) {
+                final char c = g.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (i > start) {
+                        regex.append(Pattern.quote(g.substring(start, i)));
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                    start = i + 1;
+                }
+            }
+            if (start < g.length()) {
+                regex.append(Pattern.quote(g.substring(start)));
+            }
+            patterns.add(Pattern.compile(regex.toString()));
+        }
+        return patterns;
+    }
+
+}
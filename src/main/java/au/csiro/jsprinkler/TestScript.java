@@ -18,30 +18,53 @@
 
 package au.csiro.jsprinkler;
 
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.commons.lang3.time.StopWatch;
-import org.hl7.fhir.instance.client.ClientUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.hl7.fhir.instance.client.EFhirClientException;
-import org.hl7.fhir.instance.client.FHIRSimpleClient;
-import org.hl7.fhir.instance.client.ResourceRequest;
 import org.hl7.fhir.instance.formats.XmlParser;
 import org.hl7.fhir.instance.model.OperationOutcome;
-import org.hl7.fhir.instance.model.Parameters;
 import org.hl7.fhir.instance.model.Resource;
 import org.hl7.fhir.instance.model.ValueSet;
 import org.jdom2.Document;
-import org.jdom2.Element;
 import org.jdom2.JDOMException;
-import org.jdom2.Namespace;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.output.XMLOutputter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,42 +72,121 @@ public class TestScript {
 
     final private static Logger log = LoggerFactory.getLogger(TestScript.class);
 
-    private static String testId;
+    final private static List<String> VALUE_OPTIONS = Arrays.asList("testId", "threads", "duration", "rate", "iterations", "cacheDir", "setupThreads", "setupCache", "record", "replay", "metricsFile",
+            "maxConnections", "maxPerEndpoint", "connectTimeout", "readTimeout", "maxErrors", "suite", "tag", "lastRun",
+            "pageSize", "pageThreads", "operationTimeout", "breakerThreshold", "breakerCoolDown", "deadline",
+            "baseline", "maxSlowdown", "levels", "csv", "warmRepeats",
+            "workers", "port", "workerTimeout", "format", "jsonl", "junit", "requestEncoding");
 
+    final private static List<String> FLAG_OPTIONS = Arrays.asList("noSetup", "setup", "stream", "unordered", "phases", "streamScript", "rerunFailed", "validate", "warmup", "quiet", "compress");
 
     final private String endpoint;
 
-    final private FHIRSimpleClient client;
+    private HttpTransport transport = HttpTransport.getDefault();
 
-    private int total = 0;
+    private WireFormat format = WireFormat.XML;
 
-    private List<String> fail = new ArrayList<>();
+    final private List<TestContext> results = new ArrayList<>();
 
-    private Namespace ns;
+    final private ScriptCompiler compiler = new ScriptCompiler();
 
     private boolean doSetup = true;
 
-    private String currentTest;
+    final private TestFilter filter = new TestFilter();
+
+    private LastRun lastRun;
+
+    private LatencyBaseline baseline;
+
+    private boolean trimSetup;
+
+    private int pageSize;
+
+    private int pageThreads = 4;
+
+    private PagedExpander expander;
+
+    private long deadlineMillis;
+
+    private volatile long deadline;
+
+    final private PagedExpander.Throughput expandThroughput = new PagedExpander.Throughput();
+
+    private int warmRepeats;
+
+    private boolean warmup;
+
+    final private WarmProfile warmProfile = new WarmProfile();
+
+    private int threads = 1;
+
+    private int setupThreads = 1;
+
+    private SetupCache setupCache;
+
+    private ResponseArchive archive;
+
+    final private Metrics metrics;
+
+    private boolean showPhases;
+
+    private File metricsFile;
+
+    private boolean streaming;
+
+    private boolean unordered;
+
+    private int maxErrors;
+
+    private ResultListener resultListener;
+
+    private boolean quiet;
+
+    private PrintStream out = System.out;
 
     public static void main(String[] args) throws Exception {
         final List<String> testFiles = new ArrayList<>();
-        final String endpoint = processArgs(testFiles, args);
+        final Properties options = new Properties();
+        final String endpoint = processArgs(testFiles, options, args);
 
-        for (String testFile: testFiles) {
-            TestScript script = new TestScript(endpoint);
-            script.run(testFile);
+        final HttpTransport transport = HttpTransport.create(options);
+        try {
+            for (String testFile: testFiles) {
+                TestScript script = new TestScript(endpoint);
+                configure(script, options);
+                script.setTransport(transport);
+                try {
+                    if (options.containsKey("streamScript")) {
+                        script.runStreamed(new File(testFile));
+                    } else {
+                        script.run(testFile);
+                    }
+                } finally {
+                    if (null != script.getArchive()) {
+                        script.getArchive().close();
+                    }
+                    if (script.getResultListener() instanceof Closeable) {
+                        ((Closeable) script.getResultListener()).close();
+                    }
+                }
+            }
+        } finally {
+            HttpTransport.release(transport);
         }
     }
 
-    private static String processArgs(List<String> files, String[] args) {
+    static String processArgs(List<String> files, Properties options, String[] args) {
         String endpoint = null;
 
         for (int i = 0; i < args.length; i++) {
             String a = args[i];
             if (a.startsWith("-")) {
-                if ("-testId".equals(a)) {
+                final String option = a.substring(1);
+                if (VALUE_OPTIONS.contains(option)) {
                     i++;
-                    testId = args[i];
+                    options.setProperty(option, args[i]);
+                } else if (FLAG_OPTIONS.contains(option)) {
+                    options.setProperty(option, "true");
                 }
             } else {
                 endpoint = a;
@@ -98,60 +200,276 @@ public class TestScript {
         return endpoint;
     }
 
+    static void configure(TestScript script, Properties options) throws IOException {
+        script.setTestId(options.getProperty("testId"));
+        script.getFilter().setSuiteIds(options.getProperty("suite"));
+        script.getFilter().setTags(options.getProperty("tag"));
+        if (options.containsKey("pageSize")) {
+            script.setPageSize(Integer.parseInt(options.getProperty("pageSize")));
+        }
+        if (options.containsKey("pageThreads")) {
+            script.setPageThreads(Integer.parseInt(options.getProperty("pageThreads")));
+        }
+        if (options.containsKey("deadline")) {
+            script.setDeadlineMillis(Long.parseLong(options.getProperty("deadline")) * 1000);
+        }
+        if (options.containsKey("lastRun")) {
+            script.setLastRun(new LastRun(new File(options.getProperty("lastRun"))));
+        }
+        if (options.containsKey("baseline")) {
+            script.setBaseline(new LatencyBaseline(new File(options.getProperty("baseline"))));
+            if (options.containsKey("maxSlowdown")) {
+                script.getBaseline().setMaxSlowdownPercent(Integer.parseInt(options.getProperty("maxSlowdown")));
+            }
+        }
+        if (options.containsKey("rerunFailed")) {
+            if (null == script.getLastRun()) {
+                throw new IllegalArgumentException("-rerunFailed requires -lastRun");
+            }
+            script.getFilter().setKeys(script.getLastRun().getFailed());
+            script.setTrimSetup(true);
+        }
+        script.setDoSetup(!options.containsKey("noSetup"));
+        if (options.containsKey("threads")) {
+            script.setThreads(Integer.parseInt(options.getProperty("threads")));
+        }
+        if (options.containsKey("setupThreads")) {
+            script.setSetupThreads(Integer.parseInt(options.getProperty("setupThreads")));
+        }
+        if (options.containsKey("format")) {
+            script.setFormat(WireFormat.valueOf(options.getProperty("format").toUpperCase(Locale.ROOT)));
+        }
+        script.setStreaming(options.containsKey("stream"));
+        script.setUnordered(options.containsKey("unordered"));
+        if (options.containsKey("maxErrors")) {
+            script.setMaxErrors(Integer.parseInt(options.getProperty("maxErrors")));
+        }
+        script.setShowPhases(options.containsKey("phases"));
+        script.setQuiet(options.containsKey("quiet"));
+        final List<ResultListener> listeners = new ArrayList<>();
+        if (options.containsKey("jsonl")) {
+            listeners.add(new JsonLinesWriter(new File(options.getProperty("jsonl"))));
+        }
+        if (options.containsKey("junit")) {
+            listeners.add(new JUnitXmlWriter(new File(options.getProperty("junit"))));
+        }
+        if (!listeners.isEmpty()) {
+            script.setResultListener(new AsyncResultSink(listeners));
+        }
+        if (options.containsKey("warmRepeats") && options.containsKey("warmup")) {
+            throw new IllegalArgumentException("Only one of -warmRepeats and -warmup may be given");
+        }
+        if (options.containsKey("warmRepeats")) {
+            script.setWarmRepeats(Integer.parseInt(options.getProperty("warmRepeats")));
+        }
+        script.setWarmup(options.containsKey("warmup"));
+        if (options.containsKey("metricsFile")) {
+            script.setMetricsFile(new File(options.getProperty("metricsFile")));
+        }
+        if (options.containsKey("cacheDir")) {
+            script.getCompiler().setCacheDirectory(new File(options.getProperty("cacheDir")));
+        }
+        if (options.containsKey("setupCache")) {
+            script.setSetupCache(new SetupCache(new File(options.getProperty("setupCache")), script.getEndpoint()));
+        }
+        if (options.containsKey("record") && options.containsKey("replay")) {
+            throw new IllegalArgumentException("Only one of -record and -replay may be given");
+        } else if (options.containsKey("record")) {
+            script.setArchive(ResponseArchive.record(new File(options.getProperty("record"))));
+        } else if (options.containsKey("replay")) {
+            script.setArchive(ResponseArchive.replay(new File(options.getProperty("replay"))));
+        }
+    }
+
     public TestScript(String endpoint) throws URISyntaxException {
+        new URI(endpoint);
         this.endpoint = endpoint;
-        this.client = new FHIRSimpleClient();
-
-        client.initialize(endpoint);
+        this.metrics = new Metrics(endpoint);
     }
 
     public int run(String testFile) throws JDOMException, IOException {
-        return run(new FileReader(testFile));
+        return run(compiler.compile(new File(testFile)));
     }
 
     public int run(Reader testFile) throws JDOMException, IOException {
-        final Document doc = new SAXBuilder().build(testFile);
+        return run(compiler.compile(testFile));
+    }
+
+    public int run(Document doc) {
+        return run(compiler.compile(doc));
+    }
 
-        final Element root = doc.getRootElement();
-        if (!"TestScript".equals(root.getName()) || !"http://hl7.org/fhir".equals(root.getNamespaceURI())) {
-            throw new IllegalArgumentException("Unrecognised start to script: expected TestScript :: http://hl7.org/fhir");
+    /**
+     * Runs a compiled script; plans are read-only so one may be shared between scripts.
+     */
+    public int run(ExecutionPlan plan) {
+        println("Running Test Script: " + plan.getName());
+        if (null != resultListener) {
+            resultListener.runStarted(System.currentTimeMillis(), plan.getName());
         }
+        metrics.register();
+
+        final StopWatch sw = new StopWatch();
+        sw.start();
 
-        ns = root.getNamespace();
+        results.clear();
+        startRun();
 
-        System.out.println("Running Test Script: " + getChildValue(root, "name"));
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            // setup is always complete before any test is scheduled
+            final List<ExecutionPlan.SetupAction> setup = trimSetup ? TestFilter.trimSetup(plan.getSetup(), filter.select(plan)) : plan.getSetup();
+            if (doSetup && !isReplaying() && !setup.isEmpty()) {
+                executeSetup(setup);
+            }
+
+            final List<SuiteRun> suites = new ArrayList<>();
+            for (ExecutionPlan.Suite suite: plan.getSuites()) {
+                suites.add(scheduleSuite(suite, executor));
+            }
+
+            for (SuiteRun suite: suites) {
+                reportSuite(suite, executor == null);
+            }
+        } finally {
+            if (null != executor) {
+                executor.shutdownNow();
+            }
+            endRun();
+        }
+        sw.stop();
+
+        return finish(sw);
+    }
+
+    /**
+     * Runs a script as it is read rather than compiling it first, so the first test starts before the
+     * script has been parsed and only the tests in flight are held in memory. Setup actions are
+     * collected and executed before the first suite, untrimmed since the tests are not yet known. Plans are not cached.
+     */
+    public int runStreamed(File testFile) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(testFile))) {
+            return runStreamed(in);
+        }
+    }
+
+    public int runStreamed(InputStream script) throws XMLStreamException {
+        metrics.register();
 
         final StopWatch sw = new StopWatch();
         sw.start();
 
-        for (Element child: root.getChildren()) {
-            if (doSetup && "setup".equals(child.getName())) {
-                executeSetup(child);
-            }
-            if ("suite".equals(child.getName())) {
-                executeSuite(child);
+        results.clear();
+        startRun();
+
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            final StreamedRun run = new StreamedRun(executor);
+            new ScriptReader(compiler).read(script, run);
+            run.finish();
+        } finally {
+            if (null != executor) {
+                executor.shutdownNow();
             }
+            endRun();
         }
         sw.stop();
 
-        System.out.println("Finish Test Script. Elapsed Time = " + sw);
-        System.out.println("Tests: " + total +"\tPassed: " + (total-fail.size()) +"\tFailed: " + fail.size());
+        return finish(sw);
+    }
+
+    /**
+     * Prepares for running tests; called by each run, and by a {@link Worker} before running the tests it is given.
+     */
+    void startRun() {
+        deadline = deadlineMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : 0;
+        expandThroughput.reset();
+        warmProfile.clear();
+        if (pageSize > 0) {
+            expander = new PagedExpander(transport, pageSize, pageThreads);
+        }
+    }
+
+    void endRun() {
+        if (null != expander) {
+            expander.close();
+        }
+        flushArchive();
+    }
+
+    private int finish(StopWatch sw) {
+        if (null != lastRun) {
+            lastRun.record(results);
+            lastRun.save();
+        }
+        if (null != baseline && !isReplaying()) {
+            baseline.save();
+        }
+
+        final int fail = getFail();
+        if (null != resultListener) {
+            resultListener.runFinished(System.currentTimeMillis(), results.size(), fail, sw.getNanoTime());
+        }
+        println("Finish Test Script. Elapsed Time = " + sw);
+        println("Tests: " + results.size() +"\tPassed: " + (results.size()-fail) +"\tFailed: " + fail);
+        println(transport.getStatistics());
+        final PhaseTimings total = new PhaseTimings();
+        for (TestContext context: results) {
+            total.add(context.getTimings());
+        }
+        if (total.getBytesReceived() > 0) {
+            println("Bandwidth: " + total.getBandwidth());
+        }
+        if (null != expander && expander.getThroughput().getFetches() > 0) {
+            println("Paged $expand (" + pageSize + " per page, " + pageThreads + " in flight): " + expander.getThroughput());
+        } else if (expandThroughput.getFetches() > 0) {
+            println("Single-shot $expand: " + expandThroughput);
+        }
+        expander = null;
+        if (!warmProfile.getEntries().isEmpty()) {
+            println("Cold and warm latency (" + warmRepeats + " warm calls per operation)");
+            warmProfile.print(out);
+        }
+        if (null != metricsFile) {
+            writeMetrics(metricsFile, Collections.singletonList(metrics));
+        }
+
+        return fail;
+    }
 
-        return fail.size();
+    /**
+     * Writes metrics in the Prometheus text format; failures are logged rather than failing the run.
+     */
+    static void writeMetrics(File file, List<Metrics> metrics) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            Metrics.writePrometheus(writer, metrics);
+        } catch (IOException e) {
+            log.warn("Unable to write metrics to " + file + ": " + e.getMessage());
+        }
     }
 
     public int getTotal() {
-        return total;
+        return results.size();
     }
 
     public int getFail() {
-        return fail.size();
+        return getFailedTests().size();
     }
 
     public List<String> getFailedTests() {
+        final List<String> fail = new ArrayList<>();
+        for (TestContext context: results) {
+            if (context.isFailed()) {
+                fail.add(context.getName());
+            }
+        }
         return fail;
     }
 
+    public List<TestContext> getResults() {
+        return results;
+    }
+
     public boolean isDoSetup() {
         return doSetup;
     }
@@ -160,181 +478,847 @@ public class TestScript {
         this.doSetup = doSetup;
     }
 
+    public String getTestId() {
+        return filter.getTestIds();
+    }
+
+    /**
+     * @param testId comma separated globs matched against test ids, or null for any
+     */
+    public void setTestId(String testId) {
+        filter.setTestIds(testId);
+    }
+
+    public TestFilter getFilter() {
+        return filter;
+    }
+
+    public LastRun getLastRun() {
+        return lastRun;
+    }
+
+    /**
+     * Sets a file that the outcome of each test is merged into at the end of each run.
+     */
+    public void setLastRun(LastRun lastRun) {
+        this.lastRun = lastRun;
+    }
+
+    public LatencyBaseline getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * Sets where test latencies are kept between runs; tests slower than their baseline fail. Replayed runs are not checked.
+     */
+    public void setBaseline(LatencyBaseline baseline) {
+        this.baseline = baseline;
+    }
+
+    public boolean isTrimSetup() {
+        return trimSetup;
+    }
+
+    /**
+     * When set, only the setup resources that the selected tests refer to are uploaded.
+     * @see TestFilter#trimSetup(List, java.util.Collection)
+     */
+    public void setTrimSetup(boolean trimSetup) {
+        this.trimSetup = trimSetup;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public ScriptCompiler getCompiler() {
+        return compiler;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the transport used for every request; scripts share {@link HttpTransport#getDefault()} unless given another.
+     */
+    public void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
 
-    private void executeSuite(Element element) {
-        println("Execute Suite " + getChildValue(element, "name"));
-        for (Element child: element.getChildren()) {
-            final String name = child.getName();
+    /**
+     * Sets the format responses are requested in and inputs are sent in; XML by default.
+     * Streaming comparison always uses XML.
+     */
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of worker threads used to run tests; 1 (the default) runs them in sequence.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
-            if ("test".equals(name)) {
-                executeTest(child);
-            } else if (!"name".equals(name) && !"description".equals(name)) {
-                throw new IllegalArgumentException("Unexpected content: " + name);
+    public int getSetupThreads() {
+        return setupThreads;
+    }
+
+    /**
+     * Sets the number of setup resources uploaded at once, across and within actions; 1 (the default) uploads
+     * them in sequence. Updates are independent PUTs, so no ordering between them is guaranteed when this is
+     * more than 1, though actions are still reported in script order.
+     */
+    public void setSetupThreads(int setupThreads) {
+        this.setupThreads = setupThreads;
+    }
+
+    public SetupCache getSetupCache() {
+        return setupCache;
+    }
+
+    /**
+     * Sets a cache of previously uploaded setup resources; resources the server already holds unchanged are skipped.
+     */
+    public void setSetupCache(SetupCache setupCache) {
+        this.setupCache = setupCache;
+    }
+
+    public ResponseArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Sets an archive that every operation response is recorded to or, if it was opened for replay, read from
+     * instead of the server. Setup is skipped when replaying.
+     */
+    public void setArchive(ResponseArchive archive) {
+        this.archive = archive;
+    }
+
+    private boolean isReplaying() {
+        return null != archive && archive.isReplay();
+    }
+
+    private void flushArchive() {
+        if (null != archive) {
+            try {
+                archive.flush();
+            } catch (IOException e) {
+                log.warn("Unable to write response archive: " + e.getMessage());
             }
         }
     }
 
-    private void executeTest(Element element) {
-        final String id = element.getAttributeValue("id");
-        if (testId == null || testId.equals(id)) {
-            currentTest = getChildValue(element, "name") + (id == null ? "" : " ["+id+"]");
-            print("  Test " + currentTest + ": ");
-            total++;
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isShowPhases() {
+        return showPhases;
+    }
+
+    /**
+     * When set, the time spent in each phase of every operation and the bytes it moved are printed after its result.
+     */
+    public void setShowPhases(boolean showPhases) {
+        this.showPhases = showPhases;
+    }
+
+    public ResultListener getResultListener() {
+        return resultListener;
+    }
+
+    /**
+     * Sets a listener told of each suite and test as the run progresses, in addition to the console output.
+     * @see AsyncResultSink
+     */
+    public void setResultListener(ResultListener resultListener) {
+        this.resultListener = resultListener;
+    }
+
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * When set, only failed tests and the summary are printed; listeners still get every test.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    public File getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Sets a file that the metrics are written to, in the Prometheus text format, at the end of each run.
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Sets how long a run may take, in milliseconds; 0 (the default) for no limit. Operations and setup uploads
+     * not started by then fail at once. Requests already in flight are bounded by the transport's operation timeout.
+     * @see HttpTransport#setOperationTimeout(int)
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    private boolean isPastDeadline() {
+        final long d = deadline;
+        return d != 0 && System.nanoTime() - d > 0;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of entries fetched per request for GET <code>$expand</code> operations; 0 (the default)
+     * fetches each expansion in one request. Paging applies to buffered, non-archived operations only.
+     * @see PagedExpander
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getPageThreads() {
+        return pageThreads;
+    }
+
+    /**
+     * Sets the number of pages fetched at once, across all operations; the default is 4.
+     */
+    public void setPageThreads(int pageThreads) {
+        this.pageThreads = pageThreads;
+    }
+
+    public int getWarmRepeats() {
+        return warmRepeats;
+    }
+
+    /**
+     * Sets how many times each operation is repeated after its checked, cold, call to measure its warm latency;
+     * 0 (the default) measures each operation once. Not applied when replaying.
+     */
+    public void setWarmRepeats(int warmRepeats) {
+        this.warmRepeats = warmRepeats;
+    }
+
+    public boolean isWarmup() {
+        return warmup;
+    }
+
+    /**
+     * Sets whether each operation is sent once, unmeasured and unchecked, before the call that is timed and
+     * checked, so timings reflect a warm server. Not applied when replaying.
+     */
+    public void setWarmup(boolean warmup) {
+        this.warmup = warmup;
+    }
+
+    public WarmProfile getWarmProfile() {
+        return warmProfile;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * When set, responses are requested as XML and compared with a {@link StreamingComparer} as they
+     * are read, rather than being parsed into a Resource first. This bounds memory for huge expansions.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isUnordered() {
+        return unordered;
+    }
+
+    /**
+     * When set, repeating elements in expected resources are matched by key rather than by position.
+     * @see ResourceComparer#setUnordered(boolean)
+     */
+    public void setUnordered(boolean unordered) {
+        this.unordered = unordered;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Sets the number of differences reported for an operation before its comparison stops; 0 reports them all.
+     * @see ResourceComparer#setMaxErrors(int)
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
 
-            for (Element child: element.getChildren()) {
-                final String name = child.getName();
-                if ("operation".equals(name)) {
-                    executeOperation(child);
-                } else if (!"name".equals(name) && !"description".equals(name)) {
-                    throw new IllegalArgumentException("Unexpected content: " + name);
+    private SuiteRun scheduleSuite(ExecutionPlan.Suite element, ExecutorService executor) {
+        final SuiteRun suite = new SuiteRun(element.getId(), element.getName());
+        for (final ExecutionPlan.Test test: element.getTests()) {
+            if (filter.matches(element.getId(), test)) {
+                final FutureTask<TestContext> task = newTestTask(test, element.getId());
+                suite.tests.add(task);
+                if (null != executor) {
+                    executor.execute(task);
                 }
             }
+        }
+        return suite;
+    }
+
+    /**
+     * Runs one test on the calling thread, without setup or reporting.
+     */
+    TestContext runTest(ExecutionPlan.Test test) {
+        final FutureTask<TestContext> task = newTestTask(test, null);
+        task.run();
+        return getResult(task);
+    }
+
+    private FutureTask<TestContext> newTestTask(final ExecutionPlan.Test test, String suiteId) {
+        final TestContext context = new TestContext(suiteId, test.getId(), test.getDisplayName());
+        return new FutureTask<>(new Runnable() {
+            public void run() {
+                executeTest(test, context);
+            }
+        }, context);
+    }
+
+    private void reportSuite(SuiteRun suite, boolean runInline) {
+        println("Execute Suite " + suite.name);
+        if (null != resultListener) {
+            resultListener.suiteStarted(System.currentTimeMillis(), suite.id, suite.name);
+        }
+        for (FutureTask<TestContext> task: suite.tests) {
+            if (runInline) {
+                task.run();
+            }
+            reportTest(task);
+        }
+        if (null != resultListener) {
+            resultListener.suiteFinished(System.currentTimeMillis(), suite.id, suite.name);
+        }
+    }
+
+    private void reportTest(FutureTask<TestContext> task) {
+        final TestContext context = getResult(task);
+        checkBaseline(context);
+        results.add(context);
+        if (null != resultListener) {
+            resultListener.testFinished(System.currentTimeMillis(), context);
+        }
+        if (!quiet || context.isFailed()) {
+            print(context.getOutput());
+        }
+    }
+
+    /**
+     * Compares a passing test with its baseline, failing it if it is slower, or else adds it to the baseline.
+     * Called before the test's output is printed; also called by a {@link Coordinator} for the results its
+     * workers send back.
+     */
+    void checkBaseline(TestContext context) {
+        if (null == baseline || isReplaying() || context.isFailed()) {
+            return;
+        }
+        final String slowdown = baseline.check(context.getKey(), context.getElapsedNanos());
+        if (null != slowdown) {
+            context.failPassed(slowdown);
+        } else {
+            baseline.record(context.getKey(), context.getElapsedNanos());
+        }
+    }
 
+    private static <T> T getResult(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
         }
     }
 
-    private void executeOperation(Element element) {
+    private void executeTest(ExecutionPlan.Test test, TestContext context) {
+        if (null != resultListener) {
+            resultListener.testStarted(System.currentTimeMillis(), context);
+        }
+        context.print("  Test " + context.getName() + ": ");
+
+        for (ExecutionPlan.Operation operation: test.getOperations()) {
+            executeOperation(operation, context);
+        }
+        final boolean compressed = transport.isCompression() || null != transport.getRequestEncoding();
+        if ((compressed || showPhases) && context.getTimings().getBytesReceived() > 0) {
+            context.println("    Bandwidth: " + context.getTimings().getBandwidth());
+        }
+    }
+
+    private void executeOperation(ExecutionPlan.Operation operation, TestContext context) {
+        if (!operation.isValid()) {
+            context.fail();
+            context.addOperation(operation.getUrl(), -1, 0, Collections.singletonList(operation.getError()));
+            context.println("Failed\n    " + operation.getError());
+            return;
+        }
+        if (isPastDeadline()) {
+            final String error = "Not attempted: the run deadline of " + deadlineMillis / 1000 + "s has passed";
+            context.fail();
+            context.addOperation(operation.getUrl(), -1, 0, Collections.singletonList(error));
+            context.println("Failed\n    " + error);
+            return;
+        }
+
+        if (warmup && !isReplaying()) {
+            try {
+                timeOperation(operation);
+            } catch (Exception e) {
+                // the measured call reports any failure
+            }
+        }
+
+        final PhaseTimings timings = new PhaseTimings();
+        final long start = System.nanoTime();
+        final boolean passed;
+        if (streaming) {
+            passed = executeStreamingOperation(operation, context, timings);
+        } else {
+            passed = executeBufferedOperation(operation, context, timings);
+        }
+        final long elapsed = System.nanoTime() - start;
+        context.addElapsedNanos(elapsed);
+        context.getTimings().add(timings);
+
+        metrics.record(timings, !passed);
+        if (showPhases) {
+            context.println("    " + timings);
+        }
+        if (warmRepeats > 0 && passed && !isReplaying()) {
+            profileOperation(operation, context, elapsed - timings.getNanos(PhaseTimings.Phase.COMPARE));
+        }
+    }
+
+    /**
+     * Repeats an operation that has just had its cold call, recording the warm latencies against the cold one.
+     */
+    private void profileOperation(ExecutionPlan.Operation operation, TestContext context, long coldNanos) {
+        final LatencyHistogram warm = new LatencyHistogram();
+        try {
+            for (int i = 0; i < warmRepeats; i++) {
+                warm.record(TimeUnit.NANOSECONDS.toMicros(timeOperation(operation)));
+            }
+        } catch (Exception e) {
+            context.println("    Warm calls stopped after " + warm.getCount() + ": [" + e.getClass().getSimpleName() + "] " + e.getMessage());
+        }
+        context.println("    " + warmProfile.record(context.getKey(), operation.getUrl(), coldNanos, warm));
+    }
+
+    /**
+     * Sends an operation the way a checked call would and parses the response, without checking it.
+     * A streamed operation is read through a streaming comparer, as the checked call reads it, and its result ignored.
+     * @return the time taken
+     */
+    private long timeOperation(ExecutionPlan.Operation operation) throws Exception {
+        final PhaseTimings timings = new PhaseTimings();
+        final long start = System.nanoTime();
+        if (streaming && null == archive) {
+            executeStreaming(operation, newStreamingComparer(operation), timings);
+        } else if (null != expander && null == archive && expander.isPaged(operation)) {
+            expander.expand(operation.getUri(endpoint), format, timings);
+        } else {
+            parseResource(send(operation, format, timings));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private boolean executeBufferedOperation(ExecutionPlan.Operation operation, TestContext context, PhaseTimings timings) {
         final StopWatch sw = new StopWatch();
         sw.start();
 
         try {
-            final String url = getChildValue(element, "url");
-            final Element input = element.getChild("input", ns);
+            final boolean pageable = null == archive && PagedExpander.isPageable(operation);
+            if (pageable && null != expander && expander.isPaged(operation)) {
+                final OperationResponse response = expander.expand(operation.getUri(endpoint), format, timings);
+                sw.stop();
 
-            Resource result;
-            int actualResponse = -1;
+                return checkResult(operation, response.getResource(), response.getStatus(), sw, context, timings);
+            }
 
-            try {
-                final ResourceRequest<Resource> request;
-                if (input != null) {
-                    final Parameters paramList = (Parameters) getInnerResource(input);
+            final long fetchStart = System.nanoTime();
+            final HttpTransport.Response response = fetch(operation, context, format, timings);
+            final long start = System.nanoTime();
+            final Resource resource = parseResource(response);
+            timings.add(PhaseTimings.Phase.PARSE, System.nanoTime() - start);
+            sw.stop();
+            if (pageable) {
+                expandThroughput.record(PagedExpander.countItems(resource), System.nanoTime() - fetchStart);
+            }
 
-                    final byte[] bytes = new XmlParser().composeBytes(paramList);
-                    final URI uri = URI.create(endpoint+"/"+url);
+            return checkResult(operation, resource, response.getStatus(), sw, context, timings);
+        } catch (Exception e) {
+            if (!sw.isStopped()) {
+                sw.stop();
+            }
+            final String error = "[" + e.getClass().getSimpleName() + "] " + e.getMessage();
+            context.fail();
+            context.addOperation(operation.getUrl(), -1, sw.getNanoTime(), Collections.singletonList(error));
+            context.println("Failed (" + sw + ")\n    " + error);
+            return false;
+        }
+    }
 
-                    request = ClientUtils.issuePostRequest(uri, bytes, client.getPreferredResourceFormat(), null);
-                } else {
-                    final URI uri = URI.create(endpoint+"/"+url);
+    private boolean executeStreamingOperation(ExecutionPlan.Operation operation, TestContext context, PhaseTimings timings) {
+        final StopWatch sw = new StopWatch();
+        sw.start();
 
-                    request = ClientUtils.issueGetResourceRequest(uri, client.getPreferredResourceFormat(), null);
-                }
-                actualResponse = request.getHttpStatus();
-                result = request.getPayload();
-            } catch (EFhirClientException e) {
-                if (e.hasServerErrors() && e.getServerErrors().size() == 1) {
-                    result = e.getServerErrors().get(0);
-                } else {
-                    throw e;
-                }
+        try {
+            final StreamingComparer comp = newStreamingComparer(operation);
+            if (null != archive) {
+                // archived responses are held whole anyway
+                final HttpTransport.Response response = fetch(operation, context, WireFormat.XML, timings);
+                final long start = System.nanoTime();
+                comp.execute(response.getContent());
+                timings.add(PhaseTimings.Phase.COMPARE, System.nanoTime() - start);
+                sw.stop();
+
+                return reportResult(comp.getErrors().isEmpty(), comp.getErrors(), operation, response.getStatus(), sw, context);
             }
+
+            final int status = executeStreaming(operation, comp, timings);
             sw.stop();
 
-            checkResult(element, result, actualResponse, sw);
+            return reportResult(comp.getErrors().isEmpty(), comp.getErrors(), operation, status, sw, context);
         } catch (Exception e) {
             if (!sw.isStopped()) {
                 sw.stop();
             }
-            fail.add(currentTest);
-            println("Failed (" + sw + ")\n    [" +e.getClass().getSimpleName()+"] "+ e.getMessage());
+            final String error = "[" + e.getClass().getSimpleName() + "] " + e.getMessage();
+            context.fail();
+            context.addOperation(operation.getUrl(), -1, sw.getNanoTime(), Collections.singletonList(error));
+            context.println("Failed (" + sw + ")\n    " + error);
+            return false;
         }
     }
 
-    protected boolean checkRange(String range, int code) {
-        if (range.startsWith("!")) {
-            return !checkRange(range.substring(1), code);
-        } else if (range.endsWith("xx")) {
-            int lower = Integer.parseInt(range.substring(0, 1)) * 100;
-            int upper = lower + 100;
-            return lower <= code && code < upper;
+    private StreamingComparer newStreamingComparer(ExecutionPlan.Operation operation) {
+        final StreamingComparer comp = new StreamingComparer(operation.getRule(), operation.getExpectedNode());
+        comp.setUnordered(unordered);
+        comp.setMaxErrors(maxErrors);
+        return comp;
+    }
+
+    /**
+     * Sends an operation as XML and compares the response as it arrives.
+     * @return the response status
+     */
+    private int executeStreaming(ExecutionPlan.Operation operation, final StreamingComparer comp, PhaseTimings timings) throws Exception {
+        final HttpUriRequest request;
+        if (operation.getBody() != null) {
+            final HttpPost post = new HttpPost(operation.getUri(endpoint));
+            post.setEntity(new ByteArrayEntity(operation.getBody(), ContentType.create(WireFormat.XML.getMimeType(), "UTF-8")));
+            request = post;
         } else {
-            return code == Integer.parseInt(range);
+            request = new HttpGet(operation.getUri(endpoint));
         }
+        request.setHeader("Accept", WireFormat.XML.getMimeType());
+
+        return transport.execute(request, new HttpTransport.ResponseHandler<Integer>() {
+            public Integer handle(HttpResponse response, InputStream body) throws Exception {
+                comp.execute(null == body ? new ByteArrayInputStream(new byte[0]) : body);
+                return response.getStatusLine().getStatusCode();
+            }
+        }, timings);
+    }
+
+    /**
+     * Issues the request described by an operation.
+     * Error responses are returned with their status; any resource they carry (usually an OperationOutcome) is the payload.
+     */
+    OperationResponse issueOperation(ExecutionPlan.Operation operation) throws Exception {
+        final HttpTransport.Response response = send(operation, format, null);
+        return new OperationResponse(response.getStatus(), parseResource(response));
     }
 
-    protected void checkResult(Element element, final Resource result, int responseStatus, StopWatch sw) {
-        final String expectedResponse = getChildValue(element, "responseCode");
+    private HttpTransport.Response send(ExecutionPlan.Operation operation, WireFormat format, PhaseTimings timings) throws IOException {
+        final URI uri = operation.getUri(endpoint);
+        if (operation.getBody() != null) {
+            return transport.post(uri, operation.getBody(format), format, timings);
+        } else {
+            return transport.get(uri, format, timings);
+        }
+    }
 
-        Element output = element.getChild("output", ns);
-        Element rules = null;
-        for (Element child: output.getChildren()) {
-            if (rules == null && "rules".equals(child.getName())) {
-                rules = child;
-            } else if (rules != null) {
-                output = child;
-                break;
+    /**
+     * Sends an operation, recording the response if there is an archive, or reads it back from an archive being replayed.
+     */
+    private HttpTransport.Response fetch(ExecutionPlan.Operation operation, TestContext context, WireFormat format, PhaseTimings timings) throws IOException {
+        final String testKey = context.getKey();
+        if (isReplaying()) {
+            final HttpTransport.Response response = archive.get(testKey, operation.getRequestHash());
+            if (null == response) {
+                throw new IOException("No archived response for " + operation.getUrl());
             }
+            return response;
         }
-        final Resource expected = getOuterResource(output);
 
-        final ResourceComparer comp = new ResourceComparer(rules.getAttributeValue("value"), expected, result);
-        if (comp.execute()) {
-            if (checkRange(expectedResponse, responseStatus)) {
-                println("Passed (" + sw + ")");
-                return;
+        final HttpTransport.Response response = send(operation, format, timings);
+        if (null != archive) {
+            archive.append(testKey, operation.getRequestHash(), response);
+        }
+        return response;
+    }
+
+    /**
+     * @return the resource in a response body, or null if the body is empty
+     */
+    private Resource parseResource(HttpTransport.Response response) throws Exception {
+        if (response.getBody().length == 0) {
+            return null;
+        }
+        return WireFormat.forContentType(response.getContentType(), format).newParser().parse(response.getContent());
+    }
+
+    protected boolean checkRange(String range, int code) {
+        return ResponseCodeRange.parse(range).matches(code);
+    }
+
+    /**
+     * @return true if the operation passed
+     */
+    protected boolean checkResult(ExecutionPlan.Operation operation, final Resource result, int responseStatus, StopWatch sw, TestContext context, PhaseTimings timings) {
+        final long start = System.nanoTime();
+        final List<String> errors = new ArrayList<>();
+        final boolean matched = operation.getMatcher(unordered).match(result, errors, maxErrors);
+        timings.add(PhaseTimings.Phase.COMPARE, System.nanoTime() - start);
+
+        return reportResult(matched, errors, operation, responseStatus, sw, context);
+    }
+
+    private boolean reportResult(boolean matched, List<String> errors, ExecutionPlan.Operation operation, int responseStatus, StopWatch sw, TestContext context) {
+        final ResponseCodeRange expectedResponse = operation.getResponseCode();
+        final DurationRange maxDuration = isReplaying() ? null : operation.getMaxDuration();
+        if (matched) {
+            if (!expectedResponse.matches(responseStatus)) {
+                errors.add(0, "Response code mismatch - expected " + expectedResponse + " got " + responseStatus);
+            } else if (null != maxDuration && !maxDuration.matches(sw.getNanoTime())) {
+                errors.add(0, maxDuration.describe(sw.getNanoTime()));
             } else {
-                comp.getErrors().add(0, "Response code mismatch - expected " + expectedResponse + " got " + responseStatus);
+                context.addOperation(operation.getUrl(), responseStatus, sw.getNanoTime(), Collections.<String>emptyList());
+                context.println("Passed (" + sw + ")");
+                return true;
             }
         }
 
-        fail.add(currentTest);
-        println("Failed (" + sw + ")");
-        for (String err: comp.getErrors()) {
-            println("    "+err);
+        context.fail();
+        context.addOperation(operation.getUrl(), responseStatus, sw.getNanoTime(), errors);
+        context.println("Failed (" + sw + ")");
+        for (String err: errors) {
+            context.println("    "+err);
         }
+        return false;
     }
 
-    private void executeSetup(Element element) {
+    /**
+     * Uploads the updates of the setup actions, up to {@link #getSetupThreads()} at a time, and reports each
+     * action in script order once its updates are done.
+     */
+    void executeSetup(List<ExecutionPlan.SetupAction> actions) {
         println("Setup");
-        for (Element child: element.getChildren()) {
-            if ("action".equals(child.getName())) {
-                final StopWatch sw = new StopWatch();
-                sw.start();
-                print(" " + getChildValue(child, "name"));
-                try {
-                    executeSetupAction(child);
-                } catch (EFhirClientException e) {
-                    print(" Failed " + e.getMessage());
+
+        int count = 0;
+        for (ExecutionPlan.SetupAction action: actions) {
+            count += action.getUpdates().size();
+        }
+        final ExecutorService executor = setupThreads > 1 && count > 1
+                ? Executors.newFixedThreadPool(Math.min(setupThreads, count)) : null;
+        try {
+            final List<List<FutureTask<Update>>> tasks = new ArrayList<>();
+            for (ExecutionPlan.SetupAction action: actions) {
+                final List<FutureTask<Update>> updates = new ArrayList<>();
+                for (Resource resource: action.getUpdates()) {
+                    final FutureTask<Update> task = new FutureTask<>(new Update(resource));
+                    updates.add(task);
+                    if (null != executor) {
+                        executor.execute(task);
+                    }
                 }
-                sw.stop();
-                println(" (" + sw + ")");
+                tasks.add(updates);
+            }
+
+            for (int i = 0; i < actions.size(); i++) {
+                println(reportSetupAction(actions.get(i), tasks.get(i), null == executor));
+            }
+        } finally {
+            if (null != executor) {
+                executor.shutdownNow();
+            }
+            if (null != setupCache) {
+                setupCache.save();
             }
         }
     }
 
-    private void executeSetupAction(Element element) {
-        for (Element child: element.getChildren()) {
-            if ("update".equals(child.getName())) {
-                executeUpdate(child);
+    /**
+     * Waits for an action's updates, running them in turn if runInline is set and stopping at the first failure.
+     * @return the report line for the action, timed from its first update starting to its last finishing
+     */
+    private String reportSetupAction(ExecutionPlan.SetupAction action, List<FutureTask<Update>> updates, boolean runInline) {
+        final StringBuilder sb = new StringBuilder(" " + action.getName());
+        int uploaded = 0;
+        long start = 0;
+        long end = 0;
+        String error = null;
+        for (FutureTask<Update> task: updates) {
+            if (runInline) {
+                if (null != error) {
+                    break;
+                }
+                task.run();
             }
+            final Update update = getResult(task);
+            if (update.uploaded) {
+                uploaded++;
+            }
+            if (null == error) {
+                error = update.error;
+            }
+            if (0 == start || update.startNanos - start < 0) {
+                start = update.startNanos;
+            }
+            if (0 == end || update.endNanos - end > 0) {
+                end = update.endNanos;
+            }
+        }
+        if (null != error) {
+            sb.append(" Failed " + error);
+        } else if (uploaded == 0 && !updates.isEmpty()) {
+            sb.append(" Unchanged");
         }
+        sb.append(" (" + DurationFormatUtils.formatDurationHMS(TimeUnit.NANOSECONDS.toMillis(end - start)) + ")");
+        return sb.toString();
     }
 
-    private void executeUpdate(Element element) {
-        final Resource resource = getInnerResource(element);
+    /**
+     * One resource of a setup action, uploaded as a task of its own.
+     */
+    private class Update implements Callable<Update> {
 
-        final Class<Resource> resourceClass = (Class<Resource>) resource.getClass();
-        final String id = resource.getId();
+        final private Resource resource;
 
-        Resource result = client.update(resourceClass, resource, id);
+        private boolean uploaded;
+
+        private String error;
+
+        private long startNanos;
+
+        private long endNanos;
+
+        Update(Resource resource) {
+            this.resource = resource;
+        }
+
+        public Update call() {
+            startNanos = System.nanoTime();
+            try {
+                if (isPastDeadline()) {
+                    throw new IOException("Not attempted: the run deadline of " + deadlineMillis / 1000 + "s has passed");
+                }
+                uploaded = executeUpdate(resource);
+            } catch (EFhirClientException | IOException e) {
+                error = e.getMessage();
+            }
+            endNanos = System.nanoTime();
+            return this;
+        }
 
-        handleResult(result);
     }
 
+    /**
+     * PUTs a resource to [endpoint]/[type]/[id], always as XML, unless the setup cache shows the server has it already.
+     * @return true if the resource was uploaded
+     */
+    private boolean executeUpdate(Resource resource) throws IOException {
+        final String key = resource.getResourceType() + "/" + resource.getId();
+        final URI uri = URI.create(endpoint + "/" + key);
+        final byte[] body;
+        try {
+            body = new XmlParser().composeBytes(resource);
+        } catch (Exception e) {
+            throw new EFhirClientException("Could not encode " + resource.getResourceType() + "/" + resource.getId(), e);
+        }
+
+        final String hash = null == setupCache ? null : ScriptCompiler.hash(body);
+        if (null != setupCache && setupCache.isCurrent(transport, key, hash, uri)) {
+            return false;
+        }
 
-    private static Resource getOuterResource(Element element) {
+        final HttpTransport.Response response = transport.put(uri, body, WireFormat.XML);
+        Resource result = null;
         try {
-            final String xmlString = new XMLOutputter().outputString(element);
-            return new XmlParser().parse(xmlString);
+            result = parseResource(response);
         } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
+            log.debug("Unreadable update response from " + uri, e);
+        }
+        if (response.getStatus() >= 400) {
+            if (null != setupCache) {
+                setupCache.remove(key);
+            }
+            throw new EFhirClientException("HTTP " + response.getStatus() + " from " + uri + outcomeDetails(result));
         }
+        if (null != setupCache) {
+            setupCache.put(key, hash, response.getHeader("ETag"));
+        }
+
+        handleResult(result);
+        return true;
     }
 
-    protected static Resource getInnerResource(Element element) {
-        final Element inner = element.getChildren().get(0);
-        return getOuterResource(inner);
+    private static String outcomeDetails(Resource result) {
+        final StringBuilder sb = new StringBuilder();
+        if (result instanceof OperationOutcome) {
+            for (OperationOutcome.OperationOutcomeIssueComponent issue: ((OperationOutcome) result).getIssue()) {
+                sb.append(": ").append(issue.getDetails());
+            }
+        }
+        return sb.toString();
     }
 
+
     protected static void handleResult(Resource result) {
         if (result instanceof OperationOutcome) {
             final OperationOutcome outcome = (OperationOutcome) result;
@@ -350,22 +1334,110 @@ public class TestScript {
         }
     }
 
-    private Element getChild(Element parent, String name) {
-        return parent.getChild(name, ns);
+    private void print(final String line) {
+        out.print(line);
     }
 
-    private String getChildValue(Element parent, String name) {
-        final Element child = parent
-                .getChild(name, ns);
-        return child == null ? "" : child.getAttributeValue("value");
+    private void println(final String line) {
+        out.println(line);
     }
 
-    private void print(final String line) {
-        System.out.print(line);
+    /**
+     * Runs tests as {@link ScriptReader} produces them, reporting them in script order.
+     * At most two tests per thread are read ahead of the one being reported.
+     */
+    private class StreamedRun implements ScriptReader.Handler {
+        final private ExecutorService executor;
+        final private List<ExecutionPlan.SetupAction> setup = new ArrayList<>();
+        final private Deque<FutureTask<TestContext>> pending = new ArrayDeque<>();
+        private String suiteId;
+        private String suiteName;
+        private boolean setupDone;
+
+        StreamedRun(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        public void startScript(String name) {
+            println("Running Test Script: " + name);
+            if (null != resultListener) {
+                resultListener.runStarted(System.currentTimeMillis(), name);
+            }
+        }
+
+        public void setupAction(ExecutionPlan.SetupAction action) {
+            setup.add(action);
+        }
+
+        public void startSuite(String id, String name) {
+            executeSetupOnce();
+            drain();
+            finishSuite();
+            suiteId = id;
+            suiteName = name;
+            println("Execute Suite " + name);
+            if (null != resultListener) {
+                resultListener.suiteStarted(System.currentTimeMillis(), id, name);
+            }
+        }
+
+        public void test(ExecutionPlan.Test test) {
+            if (!filter.matches(suiteId, test)) {
+                return;
+            }
+            final FutureTask<TestContext> task = newTestTask(test, suiteId);
+            if (null == executor) {
+                task.run();
+                reportTest(task);
+            } else {
+                while (pending.size() >= threads * 2) {
+                    reportTest(pending.poll());
+                }
+                executor.execute(task);
+                pending.add(task);
+            }
+        }
+
+        void finish() {
+            executeSetupOnce();
+            drain();
+            finishSuite();
+        }
+
+        private void finishSuite() {
+            if (null != resultListener && null != suiteName) {
+                resultListener.suiteFinished(System.currentTimeMillis(), suiteId, suiteName);
+            }
+            suiteName = null;
+        }
+
+        private void executeSetupOnce() {
+            if (!setupDone) {
+                setupDone = true;
+                // setup is always complete before any test is scheduled
+                if (doSetup && !isReplaying() && !setup.isEmpty()) {
+                    executeSetup(setup);
+                }
+                setup.clear();
+            }
+        }
+
+        private void drain() {
+            while (!pending.isEmpty()) {
+                reportTest(pending.poll());
+            }
+        }
     }
 
-    private void println(final String line) {
-        System.out.println(line);
+    private static class SuiteRun {
+        final private String id;
+        final private String name;
+        final private List<FutureTask<TestContext>> tests = new ArrayList<>();
+
+        SuiteRun(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
     }
 
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency of each operation's first, cold, call against that of repeated warm calls, to show how much
+ * of a server's response time depends on its caches. Entries may be recorded by concurrent tests.
+ */
+public class WarmProfile {
+
+    final private List<Entry> entries = new ArrayList<>();
+
+    public synchronized Entry record(String testKey, String url, long coldNanos, LatencyHistogram warm) {
+        final Entry entry = new Entry(testKey, url, coldNanos, warm);
+        entries.add(entry);
+        return entry;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Prints one line per operation, those most affected by warming first.
+     */
+    public void print(PrintStream out) {
+        final List<Entry> sorted = getEntries();
+        Collections.sort(sorted, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.getRatio(), a.getRatio());
+            }
+        });
+        out.println("Cold\tWarm p50\tp90\tmax (ms)\tRatio\tTest\tURL");
+        for (Entry entry: sorted) {
+            final LatencyHistogram warm = entry.getWarm();
+            out.println(String.format(Locale.ROOT, "%.1f\t%.1f\t%.1f\t%.1f\t%.1fx\t%s\t%s",
+                    entry.getColdNanos() / 1e6,
+                    warm.getValueAtPercentile(50) / 1000.0,
+                    warm.getValueAtPercentile(90) / 1000.0,
+                    warm.getMax() / 1000.0,
+                    entry.getRatio(), entry.getTestKey(), entry.getUrl()));
+        }
+    }
+
+    public static class Entry {
+
+        final private String testKey;
+
+        final private String url;
+
+        final private long coldNanos;
+
+        final private LatencyHistogram warm;
+
+        Entry(String testKey, String url, long coldNanos, LatencyHistogram warm) {
+            this.testKey = testKey;
+            this.url = url;
+            this.coldNanos = coldNanos;
+            this.warm = warm;
+        }
+
+        public String getTestKey() {
+            return testKey;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public long getColdNanos() {
+            return coldNanos;
+        }
+
+        /**
+         * @return warm latencies in microseconds
+         */
+        public LatencyHistogram getWarm() {
+            return warm;
+        }
+
+        /**
+         * @return the cold latency over the median warm latency, or 0 if there were no warm calls
+         */
+        public double getRatio() {
+            if (warm.getCount() == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMicros(coldNanos) / (double) Math.max(1, warm.getValueAtPercentile(50));
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT, "Cold %.1fms, warm p50 %.1fms p90 %.1fms max %.1fms over %d calls (%.1fx)",
+                    coldNanos / 1e6,
+                    warm.getValueAtPercentile(50) / 1000.0,
+                    warm.getValueAtPercentile(90) / 1000.0,
+                    warm.getMax() / 1000.0,
+                    warm.getCount(), getRatio());
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import org.hl7.fhir.instance.formats.IParser;
+import org.hl7.fhir.instance.formats.JsonParser;
+import org.hl7.fhir.instance.formats.XmlParser;
+
+/**
+ * The FHIR resource formats used on the wire.
+ */
+public enum WireFormat {
+
+    XML("application/xml+fhir"),
+
+    JSON("application/json+fhir");
+
+    final private String mimeType;
+
+    private WireFormat(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return a new parser; parsers are not thread-safe
+     */
+    public IParser newParser() {
+        return this == JSON ? new JsonParser() : new XmlParser();
+    }
+
+    /**
+     * @return the format of a response with the given Content-Type, or the default if it is not recognised
+     */
+    public static WireFormat forContentType(String contentType, WireFormat defaultFormat) {
+        if (null == contentType) {
+            return defaultFormat;
+        } else if (contentType.contains("json")) {
+            return JSON;
+        } else if (contentType.contains("xml")) {
+            return XML;
+        }
+        return defaultFormat;
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the tests a {@link Coordinator} hands out, one at a time, and sends back each test's outcome and output.
+ * The script, endpoint and options all come from the coordinator; setup is left to the coordinator.
+ * <p>
+ * Usage: <code>Worker host:port</code>
+ */
+public class Worker {
+
+    final private static Logger log = LoggerFactory.getLogger(Worker.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 || args[0].lastIndexOf(':') < 0) {
+            throw new IllegalArgumentException("Usage: Worker host:port");
+        }
+        final String address = args[0];
+        final int colon = address.lastIndexOf(':');
+        run(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Connects to a coordinator and runs tests until it has none left.
+     * @return the number of tests run
+     */
+    public static int run(String host, int port) throws Exception {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            WorkerProtocol.writeLine(out, WorkerProtocol.HELLO + " " + ManagementFactory.getRuntimeMXBean().getName());
+            out.flush();
+
+            final Properties options = new Properties();
+            String endpoint = null;
+            String scriptText = null;
+            while (null == scriptText) {
+                final String line = WorkerProtocol.readLine(in);
+                if (null == line) {
+                    throw new IOException("Coordinator closed the connection before sending the script");
+                } else if (line.startsWith(WorkerProtocol.OPTION + " ")) {
+                    final String option = WorkerProtocol.argument(line, WorkerProtocol.OPTION);
+                    final int space = option.indexOf(' ');
+                    options.setProperty(space < 0 ? option : option.substring(0, space), space < 0 ? "true" : option.substring(space + 1));
+                } else if (line.startsWith(WorkerProtocol.ENDPOINT + " ")) {
+                    endpoint = WorkerProtocol.argument(line, WorkerProtocol.ENDPOINT);
+                } else if (line.startsWith(WorkerProtocol.SCRIPT + " ")) {
+                    scriptText = new String(WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(line)), StandardCharsets.UTF_8);
+                } else {
+                    throw new IOException("Unexpected message: " + line);
+                }
+            }
+
+            final TestScript script = new TestScript(endpoint);
+            TestScript.configure(script, options);
+            script.setDoSetup(false);
+            final ExecutionPlan plan = script.getCompiler().compile(new StringReader(scriptText));
+            final Map<String, ExecutionPlan.Test> tests = new HashMap<>();
+            for (ExecutionPlan.Suite suite: plan.getSuites()) {
+                for (ExecutionPlan.Test test: suite.getTests()) {
+                    tests.put(test.getKey(), test);
+                }
+            }
+
+            int count = 0;
+            script.setTransport(HttpTransport.create(options));
+            script.startRun();
+            try {
+                String line;
+                while (null != (line = WorkerProtocol.readLine(in)) && !WorkerProtocol.DONE.equals(line)) {
+                    if (!line.startsWith(WorkerProtocol.TEST + " ")) {
+                        throw new IOException("Unexpected message: " + line);
+                    }
+                    final String key = WorkerProtocol.argument(line, WorkerProtocol.TEST);
+                    final TestContext context = runTest(script, tests.get(key), key);
+                    for (String error: context.getTestErrors()) {
+                        WorkerProtocol.write(out, WorkerProtocol.ERROR, error.getBytes(StandardCharsets.UTF_8));
+                    }
+                    for (TestContext.OperationResult operation: context.getOperations()) {
+                        WorkerProtocol.write(out, WorkerProtocol.OPERATION + " " + operation.getStatus() + " " + operation.getElapsedNanos(),
+                                operation.getUrl().getBytes(StandardCharsets.UTF_8));
+                        for (String error: operation.getErrors()) {
+                            WorkerProtocol.write(out, WorkerProtocol.ERROR, error.getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    WorkerProtocol.write(out, WorkerProtocol.RESULT + " " + (context.isFailed() ? WorkerProtocol.FAILED : WorkerProtocol.PASSED)
+                            + " " + context.getElapsedNanos(), context.getOutput().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    count++;
+                }
+            } finally {
+                script.endRun();
+                HttpTransport.release(script.getTransport());
+            }
+            log.debug("Ran " + count + " tests for " + host + ":" + port);
+            return count;
+        }
+    }
+
+    private static TestContext runTest(TestScript script, ExecutionPlan.Test test, String key) {
+        if (null == test) {
+            final TestContext context = new TestContext(null, key);
+            context.fail();
+            context.addError("No such test in the worker's copy of the script");
+            context.println("  Test " + key + ": Failed\n    No such test in the worker's copy of the script");
+            return context;
+        }
+        return script.runTest(test);
+    }
+
+}
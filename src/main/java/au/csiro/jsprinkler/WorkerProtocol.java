@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The protocol between a {@link Coordinator} and its {@link Worker}s. Each message is a UTF-8 line of space
+ * separated fields; a message with a payload gives its length in bytes as its last field and is followed by it.
+ * <pre>
+ * worker       HELLO name
+ * coordinator  OPTION key value     (any number)
+ * coordinator  ENDPOINT url
+ * coordinator  SCRIPT length        followed by the script
+ * coordinator  TEST key             (repeated for each test)
+ * worker       ERROR length         followed by an error of the test as a whole (any number)
+ * worker       OPERATION status elapsedNanos length      followed by the operation's URL (any number),
+ * worker       ERROR length         each followed by an error of the operation (any number)
+ * worker       RESULT passed|failed elapsedNanos length   followed by the test's output
+ * coordinator  DONE
+ * </pre>
+ */
+final class WorkerProtocol {
+
+    final static String HELLO = "HELLO";
+
+    final static String OPTION = "OPTION";
+
+    final static String ENDPOINT = "ENDPOINT";
+
+    final static String SCRIPT = "SCRIPT";
+
+    final static String TEST = "TEST";
+
+    final static String ERROR = "ERROR";
+
+    final static String OPERATION = "OPERATION";
+
+    final static String RESULT = "RESULT";
+
+    final static String DONE = "DONE";
+
+    final static String PASSED = "passed";
+
+    final static String FAILED = "failed";
+
+    private WorkerProtocol() {
+    }
+
+    /**
+     * @return the next line without its terminator, or null at the end of the stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed mid-message");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readPayload(InputStream in, int length) throws IOException {
+        final byte[] payload = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(payload, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed mid-message");
+            }
+            read += n;
+        }
+        return payload;
+    }
+
+    static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    static void write(OutputStream out, String header, byte[] payload) throws IOException {
+        writeLine(out, header + " " + payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * @return the text after the command, or an empty string
+     */
+    static String argument(String line, String command) {
+        return line.length() > command.length() ? line.substring(command.length() + 1) : "";
+    }
+
+    /**
+     * @return the payload length, the last field of a line
+     */
+    static int payloadLength(String line) throws IOException {
+        try {
+            return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed message: " + line);
+        }
+    }
+
+}
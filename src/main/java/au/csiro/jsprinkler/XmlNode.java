@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 CSIRO Australian e-Health Research Centre (http://aehrc.com).
+ *
+ * All rights reserved. Use is subject to license terms and conditions.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.csiro.jsprinkler;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A minimal, immutable tree of FHIR XML elements: the element name, its <code>value</code>
+ * attribute and its FHIR children grouped by name in document order.
+ * Extensions and narrative XHTML are dropped, mirroring what {@link ResourceComparer} compares.
+ */
+public class XmlNode {
+
+    final static String FHIR_NS = "http://hl7.org/fhir";
+
+    final private static XMLInputFactory FACTORY = createFactory();
+
+    final private String name;
+
+    final private String value;
+
+    final private String[] groupNames;
+
+    final private List<List<XmlNode>> groups;
+
+    private XmlNode(String name, String value, String[] groupNames, List<List<XmlNode>> groups) {
+        this.name = name;
+        this.value = value;
+        this.groupNames = groupNames;
+        this.groups = groups;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public int getGroupCount() {
+        return groupNames.length;
+    }
+
+    public String getGroupName(int group) {
+        return groupNames[group];
+    }
+
+    public List<XmlNode> getGroup(int group) {
+        return groups.get(group);
+    }
+
+    /**
+     * @return the index of the group of children with the given name, or -1 if there are none
+     */
+    public int indexOf(String childName) {
+        for (int i = 0; i < groupNames.length; i++) {
+            if (groupNames[i].equals(childName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of the first child with the given name, or null
+     */
+    public String getChildValue(String childName) {
+        final int i = indexOf(childName);
+        return i < 0 ? null : groups.get(i).get(0).getValue();
+    }
+
+    public static XmlNode parse(InputStream in) throws XMLStreamException {
+        final XMLStreamReader reader = createReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return read(reader);
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the element the reader is positioned on, leaving the reader on its END_ELEMENT.
+     */
+    public static XmlNode read(XMLStreamReader reader) throws XMLStreamException {
+        final String name = reader.getLocalName();
+        final String value = reader.getAttributeValue(null, "value");
+
+        final List<String> names = new ArrayList<>();
+        final List<List<XmlNode>> groups = new ArrayList<>();
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (isCompared(reader)) {
+                    final XmlNode child = read(reader);
+                    int i = names.indexOf(child.getName());
+                    if (i < 0) {
+                        i = names.size();
+                        names.add(child.getName());
+                        groups.add(new ArrayList<XmlNode>());
+                    }
+                    groups.get(i).add(child);
+                } else {
+                    skip(reader);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < groups.size(); i++) {
+            groups.set(i, Collections.unmodifiableList(groups.get(i)));
+        }
+        return new XmlNode(name, value, names.toArray(new String[names.size()]), Collections.unmodifiableList(groups));
+    }
+
+    /**
+     * Skips the element the reader is positioned on, leaving the reader on its END_ELEMENT.
+     */
+    static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return true if the element the reader is positioned on takes part in a comparison
+     */
+    static boolean isCompared(XMLStreamReader reader) {
+        final String localName = reader.getLocalName();
+        return FHIR_NS.equals(reader.getNamespaceURI())
+                && !"extension".equals(localName) && !"modifierExtension".equals(localName);
+    }
+
+    static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+        return FACTORY.createXMLStreamReader(in);
+    }
+
+    private static XMLInputFactory createFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+}
@@ -0,0 +1,59 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker("http://localhost:1", 3, 60000);
+        breaker.failure(new ConnectException("Connection refused"));
+        breaker.failure(new ConnectException("Connection refused"));
+        breaker.success();
+        breaker.failure(new SocketTimeoutException("Read timed out"));
+        breaker.failure(new SocketTimeoutException("Read timed out"));
+        assertFalse(breaker.isOpen());
+        breaker.check();
+
+        breaker.failure(new SocketTimeoutException("Read timed out"));
+        assertTrue(breaker.isOpen());
+        try {
+            breaker.check();
+            fail("expected the breaker to refuse");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("failed 3 times in a row (last: SocketTimeoutException Read timed out)"));
+        }
+    }
+
+    @Test
+    public void testProbeAfterCoolDown() throws IOException {
+        final CircuitBreaker breaker = new CircuitBreaker("http://localhost:1", 1, 0);
+        breaker.failure(new ConnectException("Connection refused"));
+        assertTrue(breaker.isOpen());
+
+        // one request is let through, and a failure opens the breaker again
+        breaker.check();
+        breaker.failure(new ConnectException("Connection refused"));
+        assertTrue(breaker.isOpen());
+
+        breaker.check();
+        breaker.success();
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void testConnectionFailures() {
+        assertTrue(CircuitBreaker.isConnectionFailure(new ConnectException()));
+        assertTrue(CircuitBreaker.isConnectionFailure(new SocketTimeoutException()));
+        assertFalse(CircuitBreaker.isConnectionFailure(new IOException("Bad response")));
+    }
+
+}
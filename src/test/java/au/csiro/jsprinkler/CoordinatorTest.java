@@ -0,0 +1,285 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CoordinatorTest {
+
+    private static final String SCRIPT = "/tx_test_script.xml";
+
+    @Test
+    public void testProtocol() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WorkerProtocol.writeLine(bytes, "TEST vs-\u00e9");
+        WorkerProtocol.write(bytes, "RESULT passed 1234", "  Test x: Passed\n".getBytes(StandardCharsets.UTF_8));
+
+        final InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        assertEquals("vs-\u00e9", WorkerProtocol.argument(WorkerProtocol.readLine(in), "TEST"));
+        final String result = WorkerProtocol.readLine(in);
+        assertEquals("RESULT passed 1234 17", result);
+        assertEquals("  Test x: Passed\n", new String(WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(result)), StandardCharsets.UTF_8));
+        assertNull(WorkerProtocol.readLine(in));
+    }
+
+    @Test(timeout = 60000)
+    public void testDistributedRun() throws Exception {
+        final String scriptText = read(SCRIPT);
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT), StandardCharsets.UTF_8));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            final Coordinator coordinator = new Coordinator(new TestScript(server.start()), new Properties());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            coordinator.setOut(new PrintStream(output, true));
+            coordinator.setWorkers(0);
+            final int port = freePort();
+            coordinator.setPort(port);
+
+            final FutureTask<Integer> run = new FutureTask<>(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return coordinator.run(scriptText);
+                }
+            });
+            new Thread(run).start();
+
+            final List<FutureTask<Integer>> workers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                final FutureTask<Integer> worker = new FutureTask<>(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        while (true) {
+                            try {
+                                return Worker.run("localhost", port);
+                            } catch (ConnectException e) {
+                                // the coordinator is still running setup
+                                Thread.sleep(50);
+                            }
+                        }
+                    }
+                });
+                workers.add(worker);
+                new Thread(worker).start();
+            }
+
+            assertEquals(output.toString(), 0, run.get().intValue());
+            int tests = 0;
+            for (FutureTask<Integer> worker: workers) {
+                tests += worker.get();
+            }
+            assertEquals(55, tests);
+            assertEquals(55, coordinator.getResults().size());
+            assertEquals(3, coordinator.getWorkerStats().size());
+            assertEquals("setup once and operations", 7 + 55, server.getRequestCount());
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testWorkerProcesses() throws Exception {
+        final String scriptText = read(SCRIPT);
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT), StandardCharsets.UTF_8));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            final Coordinator coordinator = new Coordinator(new TestScript(server.start()), new Properties());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            coordinator.setOut(new PrintStream(output, true));
+            coordinator.setWorkers(2);
+
+            assertEquals(output.toString(), 0, coordinator.run(scriptText));
+            assertEquals(55, coordinator.getResults().size());
+            assertEquals(2, coordinator.getWorkerStats().size());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testErrorsReturned() throws Exception {
+        final String scriptText = read(SCRIPT);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final TestScript script = new TestScript("http://localhost:" + server.getAddress().getPort() + "/fhir");
+            script.setDoSetup(false);
+            final Coordinator coordinator = new Coordinator(script, new Properties());
+            coordinator.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+            coordinator.setWorkers(0);
+            final int port = freePort();
+            coordinator.setPort(port);
+
+            final FutureTask<Integer> run = new FutureTask<>(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return coordinator.run(scriptText);
+                }
+            });
+            new Thread(run).start();
+            while (true) {
+                try {
+                    Worker.run("localhost", port);
+                    break;
+                } catch (ConnectException e) {
+                    Thread.sleep(50);
+                }
+            }
+
+            assertEquals(55, run.get().intValue());
+            final TestContext context = coordinator.getResults().get(0);
+            assertFalse(context.getOperations().isEmpty());
+            assertEquals(404, context.getOperations().get(0).getStatus());
+            assertFalse(context.getOperations().get(0).isPassed());
+            assertFalse(context.getErrors().isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testHungWorker() throws Exception {
+        final String scriptText = read(SCRIPT);
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT), StandardCharsets.UTF_8));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            final Coordinator coordinator = new Coordinator(new TestScript(server.start()), new Properties());
+            coordinator.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+            coordinator.setWorkers(0);
+            coordinator.setWorkerTimeoutMillis(500);
+            final int port = freePort();
+            coordinator.setPort(port);
+
+            final FutureTask<Integer> run = new FutureTask<>(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return coordinator.run(scriptText);
+                }
+            });
+            new Thread(run).start();
+
+            // takes a test and never answers
+            Socket hung = null;
+            while (null == hung) {
+                try {
+                    hung = new Socket("localhost", port);
+                } catch (ConnectException e) {
+                    Thread.sleep(50);
+                }
+            }
+            try {
+                final InputStream in = new BufferedInputStream(hung.getInputStream());
+                final OutputStream out = hung.getOutputStream();
+                WorkerProtocol.writeLine(out, WorkerProtocol.HELLO + " hung");
+                out.flush();
+                String line;
+                while (null != (line = WorkerProtocol.readLine(in)) && !line.startsWith(WorkerProtocol.TEST + " ")) {
+                    if (line.startsWith(WorkerProtocol.SCRIPT + " ")) {
+                        WorkerProtocol.readPayload(in, WorkerProtocol.payloadLength(line));
+                    }
+                }
+
+                assertEquals(55, Worker.run("localhost", port));
+                assertEquals(0, run.get().intValue());
+                assertEquals(55, coordinator.getResults().size());
+            } finally {
+                hung.close();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testDeadline() throws Exception {
+        final String scriptText = read(SCRIPT);
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT), StandardCharsets.UTF_8));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            final TestScript script = new TestScript(server.start());
+            script.setDeadlineMillis(1);
+            final Coordinator coordinator = new Coordinator(script, new Properties());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            coordinator.setOut(new PrintStream(output, true));
+            coordinator.setWorkers(0);
+            final int port = freePort();
+            coordinator.setPort(port);
+
+            final FutureTask<Integer> run = new FutureTask<>(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return coordinator.run(scriptText);
+                }
+            });
+            new Thread(run).start();
+
+            // joins once the deadline has passed, and is given nothing to do
+            int tests = -1;
+            while (tests < 0) {
+                try {
+                    tests = Worker.run("localhost", port);
+                } catch (ConnectException e) {
+                    Thread.sleep(50);
+                }
+            }
+            assertEquals(0, tests);
+            assertEquals(55, run.get().intValue());
+            assertTrue(output.toString(), output.toString().contains("Not attempted: the run deadline"));
+        }
+    }
+
+    @Test
+    public void testUnsupportedOptions() throws Exception {
+        for (String option: new String[] {"record", "replay", "metricsFile"}) {
+            final Properties options = new Properties();
+            options.setProperty(option, "out");
+            try {
+                new Coordinator(new TestScript("http://localhost/fhir"), options);
+                fail("expected -" + option + " to be refused");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("-" + option));
+            }
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private String read(String resource) throws Exception {
+        try (InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(resource), StandardCharsets.UTF_8)) {
+            final StringWriter writer = new StringWriter();
+            final char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, n);
+            }
+            return writer.toString();
+        }
+    }
+
+}
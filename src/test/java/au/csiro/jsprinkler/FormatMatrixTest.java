@@ -0,0 +1,90 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FormatMatrixTest {
+
+    @Test
+    public void testParity() {
+        final List<FormatMatrix.Sample> samples = Arrays.asList(
+                sample(0, "ValueSet/$expand?identifier=a", WireFormat.XML, WireFormat.XML, null),
+                sample(0, "ValueSet/$expand?identifier=a", WireFormat.JSON, WireFormat.JSON, null),
+                sample(1, "ValueSet/$expand?identifier=b", WireFormat.XML, WireFormat.XML, null),
+                sample(1, "ValueSet/$expand?identifier=b", WireFormat.JSON, WireFormat.JSON, "Differing numbers of children"),
+                sample(2, "ValueSet/$expand?identifier=c", WireFormat.XML, WireFormat.XML, "No match"),
+                sample(2, "ValueSet/$expand?identifier=c", WireFormat.JSON, WireFormat.XML, "No match"));
+
+        final List<String> failures = FormatMatrix.findParityFailures(samples);
+        assertEquals(2, failures.size());
+        assertEquals("ValueSet/$expand?identifier=b - JSON failed: Differing numbers of children", failures.get(0));
+        // failing in both formats is not a parity failure, but being answered in the wrong one is
+        assertEquals("ValueSet/$expand?identifier=c - JSON was served as XML", failures.get(1));
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                // answers in the format asked for, except that a JSON bundle search is answered in XML
+                final boolean json = exchange.getRequestHeaders().getFirst("Accept").contains("json")
+                        && !exchange.getRequestURI().getPath().endsWith("Bundle");
+                exchange.getResponseHeaders().set("Content-Type", json ? WireFormat.JSON.getMimeType() : WireFormat.XML.getMimeType());
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            final TestScript script = new TestScript("http://localhost:" + server.getAddress().getPort() + "/fhir");
+            final ExecutionPlan plan = new ExecutionPlan("formats", Collections.<ExecutionPlan.SetupAction>emptyList(), Collections.singletonList(
+                    new ExecutionPlan.Suite("s", "Suite", Arrays.asList(test("ValueSet"), test("Bundle")))));
+
+            final FormatMatrix matrix = new FormatMatrix(script);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            matrix.setOut(new PrintStream(output, true));
+
+            assertEquals(output.toString(), 1, matrix.run(plan));
+            assertEquals(4, matrix.getSamples().size());
+            // formats alternate in order between operations
+            assertEquals(WireFormat.XML, matrix.getSamples().get(0).getFormat());
+            assertEquals(WireFormat.JSON, matrix.getSamples().get(2).getFormat());
+            assertTrue(output.toString(), output.toString().contains("Bundle - JSON was served as XML"));
+
+            final StringWriter csv = new StringWriter();
+            matrix.writeCsv(new PrintWriter(csv));
+            final String[] lines = csv.toString().split("\r?\n");
+            assertEquals(5, lines.length);
+            assertTrue(lines[1], lines[1].startsWith("ValueSet,XML,XML,200,0,"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static ExecutionPlan.Test test(String url) {
+        return new ExecutionPlan.Test(url, url, Collections.singletonList(
+                new ExecutionPlan.Operation(url, null, null, ResponseCodeRange.parse("200"), "min", null)));
+    }
+
+    private static FormatMatrix.Sample sample(int operation, String url, WireFormat format, WireFormat served, String error) {
+        return new FormatMatrix.Sample(operation, url, format, served, 200, 1000, 1000000, 100000, 200000, error);
+    }
+
+}
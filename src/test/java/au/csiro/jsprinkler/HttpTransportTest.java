@@ -0,0 +1,347 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpTransportTest {
+
+    private HttpServer server;
+
+    private URI uri;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("slow")) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                final byte[] body = exchange.getRequestHeaders().getFirst("Accept").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(exchange.getRequestURI().getPath().endsWith("missing") ? 404 : 200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.createContext("/compressed", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                InputStream in = exchange.getRequestBody();
+                if ("gzip".equals(contentEncoding)) {
+                    in = new GZIPInputStream(in);
+                } else if ("deflate".equals(contentEncoding)) {
+                    in = new InflaterInputStream(in);
+                }
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                copy(in, content);
+                for (int i = 0; i < 1000; i++) {
+                    content.write("<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>".getBytes(StandardCharsets.UTF_8));
+                }
+
+                byte[] body = content.toByteArray();
+                final String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (null != accept && accept.contains("gzip")) {
+                    final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+                    try (OutputStream out = new GZIPOutputStream(gzip)) {
+                        out.write(body);
+                    }
+                    body = gzip.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/xml+fhir");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/ValueSet");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionReuse() throws IOException {
+        try (HttpTransport transport = new HttpTransport(2, 1, 5000, 5000)) {
+            for (int i = 0; i < 5; i++) {
+                final HttpTransport.Response response = transport.get(uri, WireFormat.XML);
+                assertEquals(200, response.getStatus());
+                assertEquals(WireFormat.XML.getMimeType(), new String(response.getBody(), StandardCharsets.UTF_8));
+            }
+            assertEquals(5, transport.getRequestCount());
+            assertEquals(4, transport.getReusedCount());
+            assertTrue(transport.getStatistics(), transport.getStatistics().contains("(80.0%)"));
+        }
+    }
+
+    @Test
+    public void testPhaseTimings() throws IOException {
+        try (HttpTransport transport = new HttpTransport()) {
+            final PhaseTimings first = new PhaseTimings();
+            final HttpTransport.Response response = transport.get(uri, WireFormat.XML, first);
+            assertTrue(first.toString(), first.getNanos(PhaseTimings.Phase.CONNECT) > 0);
+            assertTrue(first.toString(), first.getNanos(PhaseTimings.Phase.FIRST_BYTE) > 0);
+            assertTrue(first.toString(), first.getBytesSent() > 0);
+            assertTrue(first.toString(), first.getBytesReceived() > response.getBody().length);
+
+            final PhaseTimings second = new PhaseTimings();
+            transport.get(uri, WireFormat.XML, second);
+            assertEquals("reused connection", 0, second.getNanos(PhaseTimings.Phase.CONNECT));
+            assertEquals(first.getBytesReceived(), second.getBytesReceived());
+        }
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        final URI compressed = URI.create("http://localhost:" + server.getAddress().getPort() + "/compressed");
+        try (HttpTransport transport = new HttpTransport()) {
+            final PhaseTimings plain = new PhaseTimings();
+            final byte[] expected = transport.get(compressed, WireFormat.XML, plain).getBody();
+            assertEquals(expected.length, plain.getContentBytesReceived());
+            assertEquals(expected.length, plain.getBodyBytesReceived());
+            assertTrue(plain.getBandwidth(), plain.getBandwidth().contains("(0.0% saved)"));
+
+            transport.setCompression(true);
+            final PhaseTimings gzip = new PhaseTimings();
+            final HttpTransport.Response response = transport.get(compressed, WireFormat.XML, gzip);
+            assertEquals("gzip", response.getHeader("Content-Encoding"));
+            assertArrayEquals(expected, response.getBody());
+            assertEquals(expected.length, gzip.getContentBytesReceived());
+            assertTrue(gzip.getBandwidth(), gzip.getBytesReceived() * 10 < plain.getBytesReceived());
+            assertTrue(gzip.getBandwidth(), gzip.getBodyBytesReceived() < gzip.getBytesReceived());
+            assertTrue(gzip.getBandwidth(), gzip.getBandwidth().contains("% saved)"));
+        }
+    }
+
+    @Test
+    public void testRequestEncoding() throws IOException {
+        final URI compressed = URI.create("http://localhost:" + server.getAddress().getPort() + "/compressed");
+        final byte[] body = "<Parameters xmlns=\"http://hl7.org/fhir\"/>".getBytes(StandardCharsets.UTF_8);
+        try (HttpTransport transport = new HttpTransport()) {
+            for (String encoding: new String[] {"gzip", "deflate"}) {
+                transport.setRequestEncoding(encoding);
+                final PhaseTimings timings = new PhaseTimings();
+                final HttpTransport.Response response = transport.post(compressed, body, WireFormat.XML, timings);
+                assertTrue(encoding, new String(response.getBody(), StandardCharsets.UTF_8).startsWith("<Parameters"));
+                assertEquals(body.length, timings.getContentBytesSent());
+            }
+            try {
+                transport.setRequestEncoding("br");
+                fail("expected an unsupported encoding");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeRawDeflate() throws IOException {
+        final byte[] content = "<ValueSet xmlns=\"http://hl7.org/fhir\"/>".getBytes(StandardCharsets.UTF_8);
+        for (boolean raw: new boolean[] {false, true}) {
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            try (OutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, raw))) {
+                out.write(content);
+            }
+            final ByteArrayEntity entity = new ByteArrayEntity(deflated.toByteArray());
+            entity.setContentEncoding("deflate");
+            final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            try (InputStream in = HttpTransport.decode(entity, entity.getContent())) {
+                copy(in, decoded);
+            }
+            assertArrayEquals("raw " + raw, content, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    public void testErrorStatus() throws IOException {
+        try (HttpTransport transport = new HttpTransport()) {
+            final HttpTransport.Response response = transport.get(URI.create(uri + "/missing"), WireFormat.JSON);
+            assertEquals(404, response.getStatus());
+            assertEquals(WireFormat.JSON.getMimeType(), new String(response.getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOperationTimeout() throws IOException {
+        try (HttpTransport transport = new HttpTransport()) {
+            transport.setOperationTimeout(200);
+            final long start = System.nanoTime();
+            try {
+                transport.get(URI.create(uri + "/slow"), WireFormat.XML);
+                fail("expected a timeout");
+            } catch (SocketTimeoutException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("200ms"));
+            }
+            assertTrue("aborted early", System.nanoTime() - start < 1500000000L);
+            // the server handles one exchange at a time and is still sleeping
+            transport.setOperationTimeout(0);
+            assertEquals(200, transport.get(uri, WireFormat.XML).getStatus());
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final URI dead = URI.create("http://localhost:" + port + "/ValueSet");
+        try (HttpTransport transport = new HttpTransport()) {
+            transport.setBreakerThreshold(2);
+            transport.setBreakerCoolDown(60000);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    transport.get(dead, WireFormat.XML);
+                    fail("expected a connection failure");
+                } catch (ConnectException e) {
+                    // expected
+                }
+            }
+            assertTrue(transport.getBreaker(dead).isOpen());
+            try {
+                transport.get(dead, WireFormat.XML);
+                fail("expected the breaker to refuse");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Circuit open"));
+            }
+            // other endpoints are unaffected
+            assertFalse(transport.getBreaker(uri).isOpen());
+            assertEquals(200, transport.get(uri, WireFormat.XML).getStatus());
+        }
+    }
+
+    @Test
+    public void testProbeHandlerFailure() throws Exception {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final URI revived = URI.create("http://localhost:" + port + "/ValueSet");
+        try (HttpTransport transport = new HttpTransport()) {
+            transport.setBreakerThreshold(1);
+            transport.setBreakerCoolDown(0);
+            try {
+                transport.get(revived, WireFormat.XML);
+                fail("expected a connection failure");
+            } catch (ConnectException e) {
+                // expected
+            }
+            assertTrue(transport.getBreaker(revived).isOpen());
+
+            final HttpServer other = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+            other.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                }
+            });
+            other.start();
+            try {
+                // the probe gets a response that the handler cannot use
+                try {
+                    transport.execute(new HttpGet(revived), new HttpTransport.ResponseHandler<Object>() {
+                        public Object handle(HttpResponse response, InputStream body) throws Exception {
+                            assertEquals(200, response.getStatusLine().getStatusCode());
+                            throw new IllegalStateException("Unparseable");
+                        }
+                    });
+                    fail("expected the handler's failure");
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                assertFalse(transport.getBreaker(revived).isOpen());
+                assertEquals(200, transport.get(revived, WireFormat.XML).getStatus());
+            } finally {
+                other.stop(0);
+            }
+        }
+    }
+
+    @Test
+    public void testProbeInterrupted() throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final URI dead = URI.create("http://localhost:" + port + "/ValueSet");
+        try (HttpTransport transport = new HttpTransport()) {
+            transport.setBreakerThreshold(1);
+            transport.setBreakerCoolDown(0);
+            try {
+                transport.get(dead, WireFormat.XML);
+                fail("expected a connection failure");
+            } catch (ConnectException e) {
+                // expected
+            }
+
+            // the probe is granted, then interrupted waiting for a connection
+            Thread.currentThread().interrupt();
+            try {
+                transport.get(dead, WireFormat.XML);
+                fail("expected an interruption");
+            } catch (InterruptedIOException e) {
+                // expected
+            } finally {
+                Thread.interrupted();
+            }
+
+            // the next request probes rather than being refused
+            try {
+                transport.get(dead, WireFormat.XML);
+                fail("expected a connection failure");
+            } catch (ConnectException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LastRunTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMerge() {
+        final File file = new File(folder.getRoot(), "last-run.properties");
+        final LastRun first = new LastRun(file);
+        first.record(Arrays.asList(context("t1", false), context("t2", true), context(null, true)));
+        first.save();
+
+        final LastRun second = new LastRun(file);
+        assertEquals(3, second.size());
+        assertEquals(Arrays.asList("Unnamed", "t2"), Arrays.asList(second.getFailed().toArray()));
+
+        // a rerun of the failures that fixes one keeps the other outcomes
+        second.record(Collections.singletonList(context("t2", false)));
+        second.save();
+        assertEquals(Collections.singletonList("Unnamed"), Arrays.asList(new LastRun(file).getFailed().toArray()));
+    }
+
+    private static TestContext context(String id, boolean failed) {
+        final TestContext context = new TestContext(id, null == id ? "Unnamed" : "Test " + id);
+        if (failed) {
+            context.fail();
+        }
+        return context;
+    }
+
+}
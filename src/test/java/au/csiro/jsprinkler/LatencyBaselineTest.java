@@ -0,0 +1,91 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LatencyBaselineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSlowdown() {
+        final File file = new File(folder.getRoot(), "baseline.properties");
+        final LatencyBaseline first = new LatencyBaseline(file);
+        assertNull("no baseline yet", first.check("t1", millis(500)));
+        for (long sample: new long[] {100, 110, 900, 105}) {
+            first.record("t1", millis(sample));
+        }
+        first.save();
+
+        final LatencyBaseline second = new LatencyBaseline(file);
+        // the median ignores the one slow run
+        assertEquals(110, second.getBaselineMillis("t1"));
+        assertNull(second.check("t1", millis(130)));
+        final String slowdown = second.check("t1", millis(200));
+        assertNotNull(slowdown);
+        assertTrue(slowdown, slowdown.startsWith("Slower than baseline - 200ms against 110ms over the last 4 runs (+81%"));
+
+        second.setMaxSlowdownPercent(100);
+        assertNull(second.check("t1", millis(200)));
+    }
+
+    @Test
+    public void testJitterInFastTests() {
+        final LatencyBaseline baseline = new LatencyBaseline(new File(folder.getRoot(), "baseline.properties"));
+        baseline.record("t1", millis(2));
+        assertNull(baseline.check("t1", millis(8)));
+        assertNotNull(baseline.check("t1", millis(20)));
+    }
+
+    @Test
+    public void testOldestSamplesDropped() {
+        final LatencyBaseline baseline = new LatencyBaseline(new File(folder.getRoot(), "baseline.properties"));
+        baseline.setMaxSamples(3);
+        for (long sample: new long[] {1000, 1000, 100, 100, 100}) {
+            baseline.record("t1", millis(sample));
+        }
+        assertEquals(100, baseline.getBaselineMillis("t1"));
+    }
+
+    @Test
+    public void testSlowTestFails() throws Exception {
+        final TestScript script = new TestScript("http://localhost/fhir");
+        script.setBaseline(new LatencyBaseline(new File(folder.getRoot(), "baseline.properties")));
+        script.getBaseline().record("t1", millis(100));
+
+        final TestContext context = new TestContext("t1", "Test 1");
+        context.print("  Test Test 1: ");
+        context.println("Passed (0:00:00.200)");
+        context.addElapsedNanos(millis(200));
+        script.checkBaseline(context);
+
+        assertTrue(context.isFailed());
+        assertEquals(1, context.getErrors().size());
+        assertEquals("  Test Test 1: Failed (0:00:00.200)\n    " + context.getErrors().get(0) + "\n", context.getOutput());
+        // only passing runs join the baseline
+        assertEquals(100, script.getBaseline().getBaselineMillis("t1"));
+
+        final TestContext passed = new TestContext("t1", "Test 1");
+        passed.println("Passed (0:00:00.110)");
+        passed.addElapsedNanos(millis(110));
+        script.checkBaseline(passed);
+        assertFalse(passed.isFailed());
+        assertEquals(110, script.getBaseline().getBaselineMillis("t1"));
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+}
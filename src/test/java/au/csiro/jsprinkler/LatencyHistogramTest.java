@@ -0,0 +1,47 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long v = 0; v < 1L << 20; v++) {
+            final int index = LatencyHistogram.index(v);
+            assertTrue(v + " below bucket", LatencyHistogram.lowestEquivalent(index) <= v);
+            assertTrue(v + " above bucket", LatencyHistogram.highestEquivalent(index) >= v);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            h.record(i * 100);
+        }
+
+        assertEquals(10000, h.getCount());
+        assertEquals(1000000, h.getMax());
+        assertEquals(500000, h.getValueAtPercentile(50), 500000 * 0.04);
+        assertEquals(990000, h.getValueAtPercentile(99), 990000 * 0.04);
+        assertEquals(1000000, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        final LatencyHistogram a = new LatencyHistogram();
+        final LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(20);
+        b.record(5000);
+
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(5000, a.getMax());
+        assertEquals(20, a.getValueAtPercentile(50));
+    }
+
+}
@@ -0,0 +1,54 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testRecord() {
+        final Metrics metrics = new Metrics("http://localhost/fhir");
+        metrics.record(timings(5000000, 100, 2000), false);
+        metrics.record(timings(0, 100, 2000), true);
+
+        assertEquals(2, metrics.getOperations());
+        assertEquals(1, metrics.getFailures());
+        assertEquals(200, metrics.getBytesSent());
+        assertEquals(4000, metrics.getBytesReceived());
+        // connecting is only counted when a connection was opened
+        assertEquals(1, metrics.getHistogram(PhaseTimings.Phase.CONNECT).getCount());
+        assertEquals(2, metrics.getHistogram(PhaseTimings.Phase.COMPARE).getCount());
+        assertEquals(5.0, metrics.getMeanMillis().get("connect"), 0.1);
+    }
+
+    @Test
+    public void testPrometheus() throws IOException {
+        final Metrics metrics = new Metrics("http://localhost/\"fhir\"");
+        metrics.record(timings(5000000, 100, 2000), false);
+
+        final StringWriter out = new StringWriter();
+        Metrics.writePrometheus(out, Arrays.asList(metrics));
+        final String text = out.toString();
+
+        assertTrue(text, text.contains("# TYPE jsprinkler_phase_seconds summary\n"));
+        assertTrue(text, text.contains("jsprinkler_phase_seconds_count{endpoint=\"http://localhost/\\\"fhir\\\"\",phase=\"connect\"} 1\n"));
+        assertTrue(text, text.contains("jsprinkler_operations_total{endpoint=\"http://localhost/\\\"fhir\\\"\"} 1\n"));
+        assertTrue(text, text.contains("jsprinkler_response_bytes_total{endpoint=\"http://localhost/\\\"fhir\\\"\"} 2000\n"));
+    }
+
+    private static PhaseTimings timings(long connectNanos, long sent, long received) {
+        final PhaseTimings timings = new PhaseTimings();
+        timings.add(PhaseTimings.Phase.CONNECT, connectNanos);
+        timings.add(PhaseTimings.Phase.FIRST_BYTE, 20000000);
+        timings.add(PhaseTimings.Phase.COMPARE, 1000000);
+        timings.addBytes(sent, received);
+        return timings;
+    }
+
+}
@@ -0,0 +1,47 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class MultiEndpointRunnerTest {
+
+    private static final ExecutionPlan EMPTY = new ExecutionPlan("empty",
+            Collections.<ExecutionPlan.SetupAction>emptyList(), Collections.<ExecutionPlan.Suite>emptyList());
+
+    @Test
+    public void testEndpointRun() throws Exception {
+        final MultiEndpointRunner runner = new MultiEndpointRunner(Arrays.asList("http://localhost:1/fhir"));
+        final List<MultiEndpointRunner.EndpointResult> results = runner.run(EMPTY);
+
+        assertEquals(1, results.size());
+        assertNull(results.get(0).getError());
+        assertEquals(0, results.get(0).getTotal());
+    }
+
+    @Test
+    public void testEndpointError() throws Exception {
+        final Properties options = new Properties();
+        options.setProperty("threads", "many");
+        final MultiEndpointRunner runner = new MultiEndpointRunner(Arrays.asList("http://localhost:1/fhir"), options);
+        final List<MultiEndpointRunner.EndpointResult> results = runner.run(EMPTY);
+
+        assertEquals(1, results.size());
+        final String error = results.get(0).getError();
+        assertTrue(String.valueOf(error), null != error && error.startsWith("[NumberFormatException]"));
+
+        final ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        runner.printSummary(new PrintStream(summary, true));
+        assertTrue(summary.toString(), summary.toString().contains("-\t-\thttp://localhost:1/fhir\tNot run: [NumberFormatException]"));
+    }
+
+}
@@ -0,0 +1,141 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.ValueSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PagedExpanderTest {
+
+    private static final int TOTAL = 25;
+
+    private HttpServer server;
+
+    private URI uri;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        // serves an expansion of TOTAL codes, honouring offset and count
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                final String query = exchange.getRequestURI().getQuery();
+                final int offset = getParameter(query, "offset", 0);
+                final int count = getParameter(query, "count", TOTAL);
+                final StringBuilder sb = new StringBuilder("<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/>"
+                        + "<expansion><identifier value=\"urn:uuid:1\"/><timestamp value=\"2015-01-01\"/>");
+                sb.append("<total value=\"").append(TOTAL).append("\"/><offset value=\"").append(offset).append("\"/>");
+                for (int i = offset; i < Math.min(TOTAL, offset + count); i++) {
+                    sb.append("<contains><system value=\"http://example.org\"/><code value=\"").append(i).append("\"/></contains>");
+                }
+                sb.append("</expansion></ValueSet>");
+                final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", WireFormat.XML.getMimeType());
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/ValueSet/big/$expand?_count=100000");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testPageUrl() {
+        assertEquals("ValueSet/x/$expand?offset=0&count=10", PagedExpander.getPageUrl("ValueSet/x/$expand", 0, 10));
+        assertEquals("ValueSet/x/$expand?filter=a&offset=20&count=10",
+                PagedExpander.getPageUrl("ValueSet/x/$expand?_count=100000&filter=a&offset=5", 20, 10));
+    }
+
+    @Test
+    public void testExpand() throws Exception {
+        try (HttpTransport transport = new HttpTransport();
+                PagedExpander expander = new PagedExpander(transport, 10, 2)) {
+            final PhaseTimings timings = new PhaseTimings();
+            final OperationResponse response = expander.expand(uri, WireFormat.XML, timings);
+
+            assertEquals(200, response.getStatus());
+            final ValueSet valueSet = (ValueSet) response.getResource();
+            assertEquals(TOTAL, valueSet.getExpansion().getContains().size());
+            assertEquals(3, requests.get());
+            assertEquals(1, expander.getThroughput().getFetches());
+            assertEquals(TOTAL, expander.getThroughput().getItems());
+            assertTrue(timings.toString(), timings.getBytesReceived() > 0);
+        }
+    }
+
+    @Test
+    public void testCountAndOffset() throws Exception {
+        assertEquals(-1, PagedExpander.getCount("ValueSet/x/$expand"));
+        assertEquals(100000, PagedExpander.getCount("ValueSet/x/$expand?_count=100000"));
+        assertEquals(12, PagedExpander.getCount("ValueSet/x/$expand?filter=a&count=12"));
+        assertEquals(0, PagedExpander.getOffset("ValueSet/x/$expand?count=12"));
+        assertEquals(5, PagedExpander.getOffset("ValueSet/x/$expand?offset=5&count=12"));
+
+        try (HttpTransport transport = new HttpTransport();
+                PagedExpander expander = new PagedExpander(transport, 10, 2)) {
+            assertTrue(expander.isPaged(expand("ValueSet/x/$expand")));
+            assertTrue(expander.isPaged(expand("ValueSet/x/$expand?count=11")));
+            assertFalse(expander.isPaged(expand("ValueSet/x/$expand?count=10")));
+            assertFalse(expander.isPaged(expand("ValueSet/x/$expand?_count=3&offset=20")));
+        }
+    }
+
+    @Test
+    public void testExpandWindow() throws Exception {
+        final URI window = URI.create("http://localhost:" + server.getAddress().getPort() + "/ValueSet/big/$expand?offset=5&count=12");
+        try (HttpTransport transport = new HttpTransport();
+                PagedExpander expander = new PagedExpander(transport, 10, 2)) {
+            final OperationResponse response = expander.expand(window, WireFormat.XML, new PhaseTimings());
+
+            final ValueSet valueSet = (ValueSet) response.getResource();
+            final List<ValueSet.ValueSetExpansionContainsComponent> contains = valueSet.getExpansion().getContains();
+            assertEquals(12, contains.size());
+            assertEquals("5", contains.get(0).getCode());
+            assertEquals("16", contains.get(11).getCode());
+            assertEquals(5, valueSet.getExpansion().getOffset());
+            assertEquals(2, requests.get());
+        }
+    }
+
+    private static ExecutionPlan.Operation expand(String url) {
+        return new ExecutionPlan.Operation(url, null, null, ResponseCodeRange.parse("200"), "min", new ValueSet());
+    }
+
+    private static int getParameter(String query, String name, int defaultValue) {
+        if (null != query) {
+            for (String parameter: query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return Integer.parseInt(parameter.substring(name.length() + 1));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+}
@@ -0,0 +1,81 @@
+package au.csiro.jsprinkler;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares every expected resource in the test script with a parsed, optionally padded, copy of itself,
+ * either with a new {@link ResourceComparer} each time or with the operation's precompiled {@link ResourceMatcher}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ResourceComparerBenchmark {
+
+    @Param({"0", "1000"})
+    public int padding;
+
+    @Param({"false", "true"})
+    public boolean unordered;
+
+    private final List<Resource> expected = new ArrayList<>();
+
+    private final List<Resource> actual = new ArrayList<>();
+
+    private final List<ResourceMatcher> matchers = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        final ExecutionPlan plan = new ScriptCompiler().compile(
+                new InputStreamReader(getClass().getResourceAsStream("/tx_test_script.xml"), StandardCharsets.UTF_8));
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                for (ExecutionPlan.Operation operation: test.getOperations()) {
+                    if (operation.isValid() && null != operation.getExpected()) {
+                        expected.add(operation.getExpected());
+                        actual.add(new XmlParser().parse(StandInServer.getBody(operation, padding)));
+                        matchers.add(operation.getMatcher(unordered));
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void compare(Blackhole bh) {
+        for (int i = 0; i < expected.size(); i++) {
+            final ResourceComparer comp = new ResourceComparer("min", expected.get(i), actual.get(i));
+            comp.setUnordered(unordered);
+            bh.consume(comp.execute());
+        }
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (int i = 0; i < matchers.size(); i++) {
+            bh.consume(matchers.get(i).match(actual.get(i), new ArrayList<String>(), 0));
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Test;
+
+public class ResourceMatcherTest {
+
+    private static final String EXPECTED =
+            "<ValueSet xmlns=\"http://hl7.org/fhir\">"
+            + "<status value=\"draft\"/>"
+            + "<expansion>"
+            + "<identifier value=\"urn:uuid:1\"/><timestamp value=\"2015-01-01\"/>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains>"
+            + "</expansion>"
+            + "</ValueSet>";
+
+    private static final String SHORT =
+            "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/>"
+            + "<expansion><identifier value=\"urn:uuid:2\"/><timestamp value=\"2015-01-02\"/>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains>"
+            + "</expansion>"
+            + "</ValueSet>";
+
+    private static final String REVERSED =
+            "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/>"
+            + "<expansion><identifier value=\"urn:uuid:3\"/><timestamp value=\"2015-01-03\"/>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+            + "</expansion>"
+            + "</ValueSet>";
+
+    private static final String OTHER =
+            "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/>"
+            + "<expansion><identifier value=\"urn:uuid:4\"/><timestamp value=\"2015-01-04\"/>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"3\"/></contains>"
+            + "</expansion>"
+            + "</ValueSet>";
+
+    @Test
+    public void testMatch() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(EXPECTED), false);
+        final List<String> errors = new ArrayList<>();
+
+        assertTrue(errors.toString(), matcher.match(parse(EXPECTED), errors, 0));
+        assertTrue(errors.toString(), matcher.match(parse(REVERSED), errors, 0));
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testMissingChildren() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(EXPECTED), false);
+        final List<String> errors = new ArrayList<>();
+
+        assertFalse(matcher.match(parse(SHORT), errors, 0));
+        assertEquals(1, errors.size());
+        assertEquals("ValueSet.expansion.contains - Differing numbers of children: expected 2, found 1", errors.get(0));
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(EXPECTED), true);
+        final List<String> errors = new ArrayList<>();
+
+        assertTrue(errors.toString(), matcher.match(parse(REVERSED), errors, 0));
+        assertFalse(matcher.match(parse(SHORT), errors, 0));
+        assertEquals(2, errors.size());
+        assertEquals("ValueSet.expansion.contains - No match found for [http://loinc.org|1]", errors.get(1));
+    }
+
+    @Test
+    public void testUnorderedSingleCode() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(SHORT), true);
+        List<String> errors = new ArrayList<>();
+
+        assertTrue(errors.toString(), matcher.match(parse(EXPECTED), errors, 0));
+        assertFalse(matcher.match(parse(OTHER), errors, 0));
+        assertEquals(1, errors.size());
+        assertEquals("ValueSet.expansion.contains - No match found for [http://loinc.org|2]", errors.get(0));
+
+        for (String actual: new String[] {EXPECTED, OTHER}) {
+            final ResourceComparer comp = new ResourceComparer("min", parse(SHORT), parse(actual));
+            comp.setUnordered(true);
+            errors = new ArrayList<>();
+            assertEquals(comp.execute(), matcher.match(parse(actual), errors, 0));
+        }
+    }
+
+    @Test
+    public void testSameResultAsComparer() throws Exception {
+        for (boolean unordered: new boolean[] {false, true}) {
+            final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(EXPECTED), unordered);
+            for (String actual: new String[] {EXPECTED, SHORT, REVERSED}) {
+                final ResourceComparer comp = new ResourceComparer("min", parse(EXPECTED), parse(actual));
+                comp.setUnordered(unordered);
+                assertEquals(comp.execute(), matcher.match(parse(actual), new ArrayList<String>(), 0));
+            }
+        }
+    }
+
+    @Test
+    public void testMaxErrors() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", parse(EXPECTED), true);
+        final List<String> errors = new ArrayList<>();
+
+        assertFalse(matcher.match(parse(SHORT), errors, 1));
+        assertEquals(2, errors.size());
+        assertEquals("Stopped after 1 errors", errors.get(1));
+    }
+
+    @Test
+    public void testNoneExpected() throws Exception {
+        final ResourceMatcher matcher = ResourceMatcher.compile("min", null, false);
+        final List<String> errors = new ArrayList<>();
+
+        assertTrue(matcher.match(null, errors, 0));
+        assertFalse(matcher.match(parse(EXPECTED), errors, 0));
+        assertEquals("Found a Resource of type ValueSet [null], but expected none.", errors.get(0));
+    }
+
+    private static Resource parse(String xml) throws Exception {
+        return new XmlParser().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
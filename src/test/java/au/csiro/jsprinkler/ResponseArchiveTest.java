@@ -0,0 +1,53 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResponseArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordAndReplay() throws IOException {
+        try (ResponseArchive archive = ResponseArchive.record(folder.getRoot())) {
+            archive.append("t1", "aaa", response(200, "application/xml+fhir", "<ValueSet/>"));
+            archive.append("t2", "bbb", response(404, null, ""));
+        }
+        // appending again replaces the earlier response
+        try (ResponseArchive archive = ResponseArchive.record(folder.getRoot())) {
+            archive.append("t1", "aaa", response(200, "application/json+fhir", "{}"));
+        }
+
+        try (ResponseArchive archive = ResponseArchive.replay(folder.getRoot())) {
+            assertEquals(2, archive.size());
+
+            final HttpTransport.Response first = archive.get("t1", "aaa");
+            assertEquals(200, first.getStatus());
+            assertEquals("application/json+fhir", first.getContentType());
+            assertEquals("{}", new String(first.getBody(), StandardCharsets.UTF_8));
+
+            final HttpTransport.Response second = archive.get("t2", "bbb");
+            assertEquals(404, second.getStatus());
+            assertNull(second.getContentType());
+            assertEquals(0, second.getBody().length);
+
+            assertNull(archive.get("t1", "bbb"));
+        }
+    }
+
+    private static HttpTransport.Response response(int status, String contentType, String body) {
+        final Header[] headers = null == contentType ? new Header[0] : new Header[] { new BasicHeader("Content-Type", contentType) };
+        return new HttpTransport.Response(status, headers, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,214 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jdom2.Element;
+import org.junit.Test;
+
+public class ResultSinkTest {
+
+    @Test
+    public void testJsonLines() throws Exception {
+        final StringWriter out = new StringWriter();
+        final JsonLinesWriter writer = new JsonLinesWriter(out);
+        writer.runStarted(1000L, "Script");
+        writer.suiteStarted(1001L, "s1", "Suite \"one\"");
+        writer.testFinished(1002L, failedTest());
+        writer.runFinished(1003L, 1, 1, 2500000L);
+        writer.flush();
+
+        final String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("{\"event\":\"runStarted\",\"time\":1000,\"script\":\"Script\"}", lines[0]);
+        assertEquals("{\"event\":\"suiteStarted\",\"time\":1001,\"suite\":\"s1\",\"name\":\"Suite \\\"one\\\"\"}", lines[1]);
+        assertEquals("{\"event\":\"testFinished\",\"time\":1002,\"suite\":\"s1\",\"test\":\"t1\",\"name\":\"Test one\","
+                + "\"passed\":false,\"elapsedMs\":12.500,\"bytesSent\":300,\"bytesReceived\":1200,"
+                + "\"bodyBytesSent\":0,\"bodyBytesReceived\":1000,\"contentBytesSent\":0,\"contentBytesReceived\":9000,\"errors\":[\"Response code mismatch - expected 200 got 404\"],"
+                + "\"operations\":[{\"url\":\"ValueSet/a\",\"status\":200,\"elapsedMs\":5.000,\"passed\":true,\"errors\":[]},"
+                + "{\"url\":\"ValueSet/b\",\"status\":404,\"elapsedMs\":7.500,\"passed\":false,"
+                + "\"errors\":[\"Response code mismatch - expected 200 got 404\"]}]}", lines[2]);
+        assertEquals("{\"event\":\"runFinished\",\"time\":1003,\"tests\":1,\"failed\":1,\"elapsedMs\":2.500}", lines[3]);
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("null", JsonLinesWriter.quote(null));
+        assertEquals("\"a\\\\b\\n\\t\\u0001\"", JsonLinesWriter.quote("a\\b\n\t\u0001"));
+    }
+
+    @Test
+    public void testJUnitXml() throws Exception {
+        final JUnitXmlWriter writer = new JUnitXmlWriter(new File("unused.xml"));
+        writer.runStarted(0L, "Script");
+        writer.suiteStarted(0L, "s1", "Suite one");
+        writer.testFinished(0L, failedTest());
+        final TestContext passed = new TestContext("s1", "t2", "Test two");
+        passed.addElapsedNanos(1000000000L);
+        writer.testFinished(0L, passed);
+        writer.suiteFinished(0L, "s1", "Suite one");
+
+        final Element root = writer.toXml(2000000000L);
+        assertEquals("testsuites", root.getName());
+        assertEquals("2", root.getAttributeValue("tests"));
+        assertEquals("1", root.getAttributeValue("failures"));
+        assertEquals("2.000", root.getAttributeValue("time"));
+
+        final Element suite = root.getChildren("testsuite").get(0);
+        assertEquals("Suite one", suite.getAttributeValue("name"));
+        assertEquals("1", suite.getAttributeValue("failures"));
+        final List<Element> cases = suite.getChildren("testcase");
+        assertEquals(2, cases.size());
+        assertEquals("Test one", cases.get(0).getAttributeValue("name"));
+        assertEquals("Response code mismatch - expected 200 got 404", cases.get(0).getChild("failure").getAttributeValue("message"));
+        assertEquals("1.000", cases.get(1).getAttributeValue("time"));
+        assertEquals(null, cases.get(1).getChild("failure"));
+    }
+
+    @Test
+    public void testJUnitXmlSuitesWithoutIds() throws Exception {
+        final JUnitXmlWriter writer = new JUnitXmlWriter(new File("unused.xml"));
+        writer.runStarted(0L, "Script");
+        writer.suiteStarted(0L, null, "Suite one");
+        writer.testFinished(0L, new TestContext(null, "t1", "Test one"));
+        writer.suiteFinished(0L, null, "Suite one");
+        writer.suiteStarted(0L, null, "Suite two");
+        writer.testFinished(0L, new TestContext(null, "t2", "Test two"));
+        writer.testFinished(0L, new TestContext(null, "t3", "Test three"));
+        writer.suiteFinished(0L, null, "Suite two");
+
+        final Element root = writer.toXml(0L);
+        assertEquals("3", root.getAttributeValue("tests"));
+        final List<Element> suites = root.getChildren("testsuite");
+        assertEquals(2, suites.size());
+        assertEquals("Suite one", suites.get(0).getAttributeValue("name"));
+        assertEquals("1", suites.get(0).getAttributeValue("tests"));
+        assertEquals("Suite two", suites.get(1).getAttributeValue("name"));
+        assertEquals("2", suites.get(1).getAttributeValue("tests"));
+    }
+
+    @Test
+    public void testAsyncDelivery() throws Exception {
+        final Recorder recorder = new Recorder();
+        final ResultListener broken = new Recorder() {
+            @Override
+            public void suiteStarted(long time, String id, String name) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        final AsyncResultSink sink = new AsyncResultSink(Arrays.asList(broken, recorder));
+        sink.runStarted(0L, "Script");
+        for (int i = 0; i < 100; i++) {
+            sink.suiteStarted(0L, "s" + i, "Suite " + i);
+        }
+        sink.flush();
+
+        assertEquals(101, recorder.events.size());
+        assertEquals("runStarted Script", recorder.events.get(0));
+        assertEquals("suiteStarted s99", recorder.events.get(100));
+        assertTrue(recorder.flushes > 0);
+
+        sink.runFinished(0L, 0, 0, 0L);
+        sink.close();
+        assertEquals("runFinished", recorder.events.get(101));
+        assertTrue(recorder.closed);
+        try {
+            sink.runStarted(0L, "Again");
+            fail("Expected the closed sink to refuse events");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testListenerFlushFails() throws Exception {
+        final Recorder recorder = new Recorder();
+        final ResultListener broken = new Recorder() {
+            @Override
+            public void flush() {
+                throw new IllegalStateException("broken");
+            }
+
+            @Override
+            public void close() {
+                throw new IllegalStateException("broken");
+            }
+        };
+        final AsyncResultSink sink = new AsyncResultSink(Arrays.asList(broken, recorder));
+        sink.runStarted(0L, "Script");
+        sink.flush();
+        assertEquals(Arrays.asList("runStarted Script"), recorder.events);
+
+        // the sink keeps delivering after a listener fails to flush
+        sink.runFinished(0L, 0, 0, 0L);
+        sink.flush();
+        assertEquals("runFinished", recorder.events.get(1));
+        sink.close();
+        assertTrue(recorder.closed);
+    }
+
+    private static TestContext failedTest() {
+        final TestContext context = new TestContext("s1", "t1", "Test one");
+        context.addOperation("ValueSet/a", 200, 5000000L, Collections.<String>emptyList());
+        context.addOperation("ValueSet/b", 404, 7500000L, Arrays.asList("Response code mismatch - expected 200 got 404"));
+        context.addElapsedNanos(12500000L);
+        context.getTimings().addBytes(300, 1200);
+        context.getTimings().addBodyBytes(0, 1000);
+        context.getTimings().addContentBytes(0, 9000);
+        context.fail();
+        return context;
+    }
+
+    private static class Recorder implements ResultListener, Flushable, Closeable {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        volatile int flushes;
+
+        volatile boolean closed;
+
+        public void runStarted(long time, String name) {
+            events.add("runStarted " + name);
+        }
+
+        public void suiteStarted(long time, String id, String name) {
+            events.add("suiteStarted " + id);
+        }
+
+        public void testStarted(long time, TestContext test) {
+            events.add("testStarted " + test.getKey());
+        }
+
+        public void testFinished(long time, TestContext test) {
+            events.add("testFinished " + test.getKey());
+        }
+
+        public void suiteFinished(long time, String id, String name) {
+            events.add("suiteFinished " + id);
+        }
+
+        public void runFinished(long time, int total, int failed, long elapsedNanos) {
+            events.add("runFinished");
+        }
+
+        public void flush() {
+            flushes++;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+}
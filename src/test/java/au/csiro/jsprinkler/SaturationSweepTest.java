@@ -0,0 +1,98 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SaturationSweepTest {
+
+    @Test
+    public void testLevels() {
+        assertArrayEquals(new int[] {1, 2, 4, 8}, SaturationSweep.powersOfTwo(8));
+        assertArrayEquals(new int[] {1, 2, 4, 8, 12}, SaturationSweep.powersOfTwo(12));
+        assertArrayEquals(new int[] {1}, SaturationSweep.powersOfTwo(1));
+        assertArrayEquals(new int[] {1, 3, 10}, SaturationSweep.parseLevels("1, 3,10"));
+    }
+
+    @Test
+    public void testKnee() {
+        // scales to 4, then flattens
+        final List<SaturationSweep.Level> levels = levels(new int[] {1, 2, 4, 8, 16}, new long[] {100, 195, 380, 420, 410}, new long[5]);
+        assertEquals(2, SaturationSweep.findKnee(levels, 0.25));
+
+        // errors count against the goodput
+        final List<SaturationSweep.Level> failing = levels(new int[] {1, 2, 4}, new long[] {100, 200, 400}, new long[] {0, 0, 200});
+        assertEquals(1, SaturationSweep.findKnee(failing, 0.25));
+
+        final List<SaturationSweep.Level> scaling = levels(new int[] {1, 2, 4}, new long[] {100, 200, 400}, new long[3]);
+        assertEquals(-1, SaturationSweep.findKnee(scaling, 0.25));
+    }
+
+    @Test
+    public void testTransportLimit() throws Exception {
+        final SaturationSweep sweep = new SaturationSweep(new TestScript("http://localhost:1/fhir"));
+        sweep.setLevels(new int[] {1, HttpTransport.DEFAULT_MAX_PER_ENDPOINT + 1});
+        try {
+            sweep.run(new ExecutionPlan("empty", Collections.<ExecutionPlan.SetupAction>emptyList(),
+                    Collections.<ExecutionPlan.Suite>emptyList()));
+            fail("Expected a level above the transport's limit to be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("-maxPerEndpoint"));
+        }
+        assertTrue(sweep.getResults().isEmpty());
+
+        final Properties options = new Properties();
+        SaturationSweep.sizeTransport(options, 64);
+        assertEquals("64", options.getProperty("maxPerEndpoint"));
+        assertEquals("64", options.getProperty("maxConnections"));
+
+        final Properties given = new Properties();
+        given.setProperty("maxPerEndpoint", "8");
+        SaturationSweep.sizeTransport(given, 16);
+        assertEquals("8", given.getProperty("maxPerEndpoint"));
+        assertFalse(given.containsKey("maxConnections"));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        final SaturationSweep sweep = new SaturationSweep(new TestScript("http://localhost:1/fhir"));
+        sweep.getResults().addAll(levels(new int[] {1, 2}, new long[] {100, 100}, new long[] {0, 10}));
+        final StringWriter csv = new StringWriter();
+        sweep.writeCsv(new PrintWriter(csv));
+
+        final String[] lines = csv.toString().split("\r?\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("concurrency,requests,errors,error_rate,req_per_s,valid_req_per_s"));
+        assertTrue(lines[1], lines[1].startsWith("1,100,0,0.0000,100.0,100.0,"));
+        assertTrue(lines[2], lines[2].startsWith("2,100,10,0.1000,100.0,90.0,"));
+        assertTrue(lines[2], lines[2].endsWith(",true"));
+    }
+
+    /**
+     * @return levels that each ran for a second, with the given requests all taking 1ms
+     */
+    private static List<SaturationSweep.Level> levels(int[] concurrency, long[] requests, long[] errors) {
+        final List<SaturationSweep.Level> levels = new ArrayList<>();
+        for (int i = 0; i < concurrency.length; i++) {
+            final LatencyHistogram h = new LatencyHistogram();
+            for (long n = 0; n < requests[i]; n++) {
+                h.record(1000);
+            }
+            levels.add(new SaturationSweep.Level(concurrency[i], h, errors[i], TimeUnit.SECONDS.toNanos(1)));
+        }
+        return levels;
+    }
+
+}
@@ -0,0 +1,84 @@
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.Resource;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the test script: parsing and compiling it from scratch, finding it in the plan cache
+ * as {@link TestScript#run(String)} does, and converting a single expected resource.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ScriptCompilerBenchmark {
+
+    private byte[] script;
+
+    private Element output;
+
+    @Setup
+    public void setup() throws IOException, JDOMException {
+        try (InputStream in = getClass().getResourceAsStream("/tx_test_script.xml")) {
+            script = StandInServer.readAll(in);
+        }
+        output = findExpected(new SAXBuilder().build(new ByteArrayInputStream(script)).getRootElement());
+    }
+
+    @Benchmark
+    public ExecutionPlan compile() throws JDOMException, IOException {
+        final Document doc = new SAXBuilder().build(new ByteArrayInputStream(script));
+        return new ScriptCompiler().compile(doc);
+    }
+
+    @Benchmark
+    public ExecutionPlan compileCached() throws JDOMException, IOException {
+        return new ScriptCompiler().compile(new StringReader(new String(script, StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public Resource getOuterResource() {
+        return ScriptCompiler.getOuterResource(output);
+    }
+
+    /**
+     * @return the expected resource of the first operation, which follows the rules in its output
+     */
+    private static Element findExpected(Element element) {
+        if ("output".equals(element.getName())) {
+            final List<Element> children = element.getChildren();
+            return children.get(children.size() - 1);
+        }
+        for (Element child: element.getChildren()) {
+            final Element found = findExpected(child);
+            if (null != found) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,65 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ScriptCompilerTest {
+
+    private static final String SCRIPT = "/tx_test_script.xml";
+
+    @Test
+    public void testCompile() throws Exception {
+        final ScriptCompiler compiler = new ScriptCompiler();
+        final ExecutionPlan plan = compiler.compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
+
+        assertEquals(7, plan.getSetup().size());
+        assertEquals(4, plan.getSuites().size());
+
+        int tests = 0;
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                tests++;
+                for (ExecutionPlan.Operation operation: test.getOperations()) {
+                    assertTrue(operation.getError(), operation.isValid());
+                    assertNotNull(operation.getExpected());
+                }
+            }
+        }
+        assertEquals(55, tests);
+
+        // same script text, same plan
+        assertSame(plan, compiler.compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT))));
+    }
+
+    @Test
+    public void testResponseCodeRange() {
+        assertTrue(ResponseCodeRange.parse("200").matches(200));
+        assertFalse(ResponseCodeRange.parse("200").matches(201));
+        assertTrue(ResponseCodeRange.parse("2xx").matches(204));
+        assertFalse(ResponseCodeRange.parse("2xx").matches(300));
+        assertTrue(ResponseCodeRange.parse("!2xx").matches(404));
+        assertTrue(ResponseCodeRange.parse("!2xx").matches(-1));
+        assertFalse(ResponseCodeRange.parse("!2xx").matches(200));
+    }
+
+    @Test
+    public void testDurationRange() {
+        assertNull(DurationRange.parse(""));
+        assertTrue(DurationRange.parse("500").matches(TimeUnit.MILLISECONDS.toNanos(500)));
+        assertFalse(DurationRange.parse("500ms").matches(TimeUnit.MILLISECONDS.toNanos(501)));
+        assertTrue(DurationRange.parse("1.5s").matches(TimeUnit.MILLISECONDS.toNanos(1400)));
+        assertFalse(DurationRange.parse("100ms-2s").matches(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(DurationRange.parse("100ms-2s").matches(TimeUnit.SECONDS.toNanos(2)));
+        assertEquals("Too slow - expected 500ms took 734ms", DurationRange.parse("500ms").describe(TimeUnit.MILLISECONDS.toNanos(734)));
+    }
+
+}
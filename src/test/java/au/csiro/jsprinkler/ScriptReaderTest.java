@@ -0,0 +1,91 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ScriptReaderTest {
+
+    private static final String SCRIPT = "/tx_test_script.xml";
+
+    @Test
+    public void testSameAsCompiled() throws Exception {
+        final ScriptCompiler compiler = new ScriptCompiler();
+        final ExecutionPlan plan = compiler.compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("script " + plan.getName());
+        for (ExecutionPlan.SetupAction action: plan.getSetup()) {
+            expected.add("setup " + action.getName() + " " + action.getUpdates().size());
+        }
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            expected.add("suite " + suite.getId() + " " + suite.getName());
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                expected.add(describe(test));
+            }
+        }
+
+        final List<String> events = new ArrayList<>();
+        new ScriptReader(compiler).read(getClass().getResourceAsStream(SCRIPT), new Recorder(events));
+
+        assertEquals(expected, events);
+    }
+
+    @Test
+    public void testEmptySuite() throws Exception {
+        final String script = "<TestScript xmlns=\"http://hl7.org/fhir\"><name value=\"empty\"/>"
+                + "<suite id=\"s1\"><name value=\"Nothing\"/><description value=\"no tests\"/></suite>"
+                + "</TestScript>";
+        final List<String> events = new ArrayList<>();
+        new ScriptReader(new ScriptCompiler()).read(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), new Recorder(events));
+
+        assertEquals(2, events.size());
+        assertEquals("script empty", events.get(0));
+        assertEquals("suite s1 Nothing", events.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAScript() throws Exception {
+        final String script = "<ValueSet xmlns=\"http://hl7.org/fhir\"/>";
+        new ScriptReader(new ScriptCompiler()).read(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), new Recorder(new ArrayList<String>()));
+    }
+
+    private static String describe(ExecutionPlan.Test test) {
+        final StringBuilder sb = new StringBuilder("test ").append(test.getDisplayName());
+        for (ExecutionPlan.Operation operation: test.getOperations()) {
+            sb.append(' ').append(operation.getRequestHash()).append(operation.isValid() ? "" : " invalid");
+        }
+        return sb.toString();
+    }
+
+    private static class Recorder implements ScriptReader.Handler {
+        private final List<String> events;
+
+        Recorder(List<String> events) {
+            this.events = events;
+        }
+
+        public void startScript(String name) {
+            events.add("script " + name);
+        }
+
+        public void setupAction(ExecutionPlan.SetupAction action) {
+            events.add("setup " + action.getName() + " " + action.getUpdates().size());
+        }
+
+        public void startSuite(String id, String name) {
+            events.add("suite " + id + " " + name);
+        }
+
+        public void test(ExecutionPlan.Test test) {
+            events.add(describe(test));
+        }
+    }
+
+}
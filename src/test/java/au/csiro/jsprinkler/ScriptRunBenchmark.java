@@ -0,0 +1,79 @@
+package au.csiro.jsprinkler;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs every operation of the test script end to end against a {@link StandInServer}, so the
+ * result is JSprinkler's own overhead plus loopback HTTP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ScriptRunBenchmark {
+
+    @Param({"0", "1000"})
+    public int padding;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"1", "8"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private ExecutionPlan plan;
+
+    private StandInServer server;
+
+    private TestScript script;
+
+    @Setup
+    public void setup() throws Exception {
+        plan = new ScriptCompiler().compile(
+                new InputStreamReader(getClass().getResourceAsStream("/tx_test_script.xml"), StandardCharsets.UTF_8));
+        server = new StandInServer(plan, padding);
+        server.setLatencyMillis(latencyMillis);
+
+        script = new TestScript(server.start());
+        script.setDoSetup(false);
+        script.setThreads(threads);
+        script.setStreaming(streaming);
+        script.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public int run() {
+        return script.run(plan);
+    }
+
+}
@@ -0,0 +1,94 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SetupCacheTest {
+
+    private static final String ETAG = "W/\"1\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+
+    private String endpoint;
+
+    private HttpTransport transport;
+
+    @Before
+    public void startServer() throws IOException {
+        // holds ValueSet/held at version 1 only
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                final String path = exchange.getRequestURI().getPath();
+                int status = 404;
+                if (path.endsWith("/ValueSet/held")) {
+                    status = ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ? 304 : 200;
+                    exchange.getResponseHeaders().set("ETag", ETAG);
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        endpoint = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+        transport = new HttpTransport();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConditionalRead() {
+        final SetupCache cache = new SetupCache(folder.getRoot(), endpoint);
+        cache.put("ValueSet/held", "abc", ETAG);
+        cache.put("ValueSet/lost", "abc", ETAG);
+        cache.put("ValueSet/untagged", "abc", null);
+
+        assertTrue(cache.isCurrent(transport, "ValueSet/held", "abc", uri("ValueSet/held")));
+        assertFalse("content changed", cache.isCurrent(transport, "ValueSet/held", "def", uri("ValueSet/held")));
+        assertFalse("never uploaded", cache.isCurrent(transport, "ValueSet/other", "abc", uri("ValueSet/other")));
+        assertFalse("server reset", cache.isCurrent(transport, "ValueSet/lost", "abc", uri("ValueSet/lost")));
+        assertFalse("server reset", cache.isCurrent(transport, "ValueSet/untagged", "abc", uri("ValueSet/untagged")));
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        final SetupCache cache = new SetupCache(folder.getRoot(), endpoint);
+        cache.put("ValueSet/held", "abc", ETAG);
+        cache.put("ValueSet/untagged", "abc", null);
+        cache.save();
+
+        final SetupCache loaded = new SetupCache(folder.getRoot(), endpoint);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.isCurrent(transport, "ValueSet/held", "abc", uri("ValueSet/held")));
+
+        final SetupCache other = new SetupCache(folder.getRoot(), endpoint + "2");
+        assertEquals(0, other.size());
+    }
+
+    private URI uri(String key) {
+        return URI.create(endpoint + "/" + key);
+    }
+
+}
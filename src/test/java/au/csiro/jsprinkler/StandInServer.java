@@ -0,0 +1,220 @@
+package au.csiro.jsprinkler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for a FHIR terminology server that answers each operation of a
+ * compiled script with its expected resource, so scripts can be run and measured without a network.
+ * Responses can be padded with extra expansion entries and delayed to model larger or slower servers.
+ * Setup PUTs are accepted and discarded.
+ */
+public class StandInServer implements Closeable {
+
+    private static final String BASE_PATH = "/fhir";
+
+    private static final int[] STATUS_CODES = {200, 201, 400, 404, 422, 500};
+
+    private final Map<String, Integer> statuses = new HashMap<>();
+
+    private final Map<String, byte[]> bodies = new HashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final Set<String> updates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private volatile long latencyMillis;
+
+    public StandInServer(ExecutionPlan plan) throws Exception {
+        this(plan, 0);
+    }
+
+    /**
+     * @param padding the number of extra <code>contains</code> entries added to each expansion
+     */
+    public StandInServer(ExecutionPlan plan, int padding) throws Exception {
+        for (ExecutionPlan.Suite suite: plan.getSuites()) {
+            for (ExecutionPlan.Test test: suite.getTests()) {
+                for (ExecutionPlan.Operation operation: test.getOperations()) {
+                    if (operation.isValid()) {
+                        statuses.put(operation.getRequestHash(), getStatus(operation.getResponseCode()));
+                        bodies.put(operation.getRequestHash(), getBody(operation, padding));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the server on a free local port.
+     * @return the endpoint to run scripts against
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(BASE_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return getEndpoint();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Sets a delay added before every response.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the paths, below the endpoint, of the resources PUT so far
+     */
+    public Set<String> getUpdates() {
+        return updates;
+    }
+
+    public void close() {
+        if (null != server) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final byte[] request = readAll(exchange.getRequestBody());
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if ("PUT".equals(exchange.getRequestMethod())) {
+            updates.add(exchange.getRequestURI().getRawPath().substring(BASE_PATH.length() + 1));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        final String key = getRequestHash(exchange.getRequestURI(), request);
+        final Integer status = statuses.get(key);
+        if (null == status) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        final byte[] body = bodies.get(key);
+        if (body.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", WireFormat.XML.getMimeType() + ";charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return the same hash as {@link ExecutionPlan.Operation#getRequestHash()} for the received request
+     */
+    private static String getRequestHash(URI uri, byte[] body) {
+        String url = uri.getRawPath().substring(BASE_PATH.length() + 1);
+        if (null != uri.getRawQuery()) {
+            url += "?" + uri.getRawQuery();
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        bytes.write(urlBytes, 0, urlBytes.length);
+        if (body.length > 0) {
+            bytes.write('\n');
+            bytes.write(body, 0, body.length);
+        }
+        return ScriptCompiler.hash(bytes.toByteArray());
+    }
+
+    private static int getStatus(ResponseCodeRange range) {
+        for (int code: STATUS_CODES) {
+            if (range.matches(code)) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("No status code for " + range);
+    }
+
+    static byte[] getBody(ExecutionPlan.Operation operation, int padding) throws Exception {
+        if (null == operation.getExpected()) {
+            return new byte[0];
+        }
+        String xml = new String(new XmlParser().composeBytes(operation.getExpected()), StandardCharsets.UTF_8);
+        final int end = xml.lastIndexOf("</expansion>");
+        if (padding > 0 && end > 0) {
+            final StringBuilder sb = new StringBuilder(xml.length() + padding * 120);
+            sb.append(xml, 0, end);
+            for (int i = 0; i < padding; i++) {
+                sb.append("<contains><system value=\"http://example.org/padding\"/><code value=\"p").append(i)
+                    .append("\"/><display value=\"Padding entry ").append(i).append("\"/></contains>");
+            }
+            sb.append(xml, end, xml.length());
+            xml = sb.toString();
+        }
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,81 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Test;
+
+public class StandInServerTest {
+
+    private static final String SCRIPT = "/tx_test_script.xml";
+
+    @Test
+    public void testScriptPasses() throws Exception {
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
+
+        try (StandInServer server = new StandInServer(plan, 100)) {
+            final TestScript script = new TestScript(server.start());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            script.setOut(new PrintStream(output, true));
+            script.setThreads(4);
+            script.run(plan);
+
+            assertEquals(output.toString(), 55, script.getTotal());
+            assertEquals(output.toString(), 0, script.getFail());
+            assertEquals("setup and operations", 7 + 55, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testParallelSetup() throws Exception {
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            server.setLatencyMillis(20);
+            final TestScript script = new TestScript(server.start());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            script.setOut(new PrintStream(output, true));
+            script.setSetupThreads(4);
+            script.executeSetup(plan.getSetup());
+
+            final Set<String> expected = new HashSet<>();
+            for (ExecutionPlan.SetupAction action: plan.getSetup()) {
+                for (Resource resource: action.getUpdates()) {
+                    expected.add(resource.getResourceType() + "/" + resource.getId());
+                }
+            }
+            assertEquals(expected, server.getUpdates());
+
+            final String[] lines = output.toString().split("\r?\n");
+            assertEquals(output.toString(), plan.getSetup().size() + 1, lines.length);
+            for (int i = 0; i < plan.getSetup().size(); i++) {
+                assertTrue(lines[i + 1], lines[i + 1].startsWith(" " + plan.getSetup().get(i).getName() + " ("));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamedScriptPasses() throws Exception {
+        final ExecutionPlan plan = new ScriptCompiler().compile(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
+
+        try (StandInServer server = new StandInServer(plan)) {
+            final TestScript script = new TestScript(server.start());
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            script.setOut(new PrintStream(output, true));
+            script.setThreads(4);
+            script.runStreamed(getClass().getResourceAsStream(SCRIPT));
+
+            assertEquals(output.toString(), 55, script.getTotal());
+            assertEquals(output.toString(), 0, script.getFail());
+            assertEquals("setup and operations", 7 + 55, server.getRequestCount());
+        }
+    }
+
+}
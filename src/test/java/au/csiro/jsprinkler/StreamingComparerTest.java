@@ -0,0 +1,139 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class StreamingComparerTest {
+
+    private static final String EXPECTED =
+            "<ValueSet xmlns=\"http://hl7.org/fhir\">"
+            + "<id><extension url=\"http://example.org/pattern\"><valueString value=\"%uuid\"/></extension></id>"
+            + "<status value=\"draft\"/>"
+            + "<expansion>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+            + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains>"
+            + "</expansion>"
+            + "</ValueSet>";
+
+    @Test
+    public void testMatch() throws Exception {
+        final StreamingComparer comp = new StreamingComparer("min", node(EXPECTED));
+        final boolean ok = comp.execute(stream(
+                "<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"x\"/><status value=\"draft\"/>"
+                + "<text><div xmlns=\"http://www.w3.org/1999/xhtml\"><p>narrative</p></div></text>"
+                + "<expansion><timestamp value=\"2015\"/>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/><display value=\"Two\"/></contains>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"3\"/></contains>"
+                + "</expansion></ValueSet>"));
+
+        assertTrue(comp.getErrors().toString(), ok);
+    }
+
+    @Test
+    public void testMissingChildren() throws Exception {
+        final StreamingComparer comp = new StreamingComparer("min", node(EXPECTED));
+        final boolean ok = comp.execute(stream(
+                "<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"x\"/>"
+                + "<expansion><contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains></expansion>"
+                + "</ValueSet>"));
+
+        assertFalse(ok);
+        assertEquals(2, comp.getErrors().size());
+        assertEquals("ValueSet.expansion.contains - Differing numbers of children: expected 2, found 1", comp.getErrors().get(0));
+        assertEquals("ValueSet.status - Differing numbers of children: expected 1, found 0", comp.getErrors().get(1));
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        final String actual = "<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"x\"/><status value=\"draft\"/>"
+                + "<expansion>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"3\"/></contains>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+                + "<contains><system value=\"http://snomed.info/sct\"/><code value=\"2\"/></contains>"
+                + "</expansion></ValueSet>";
+
+        final StreamingComparer ordered = new StreamingComparer("min", node(EXPECTED));
+        assertTrue(ordered.execute(stream(actual)));
+
+        final StreamingComparer unordered = new StreamingComparer("min", node(EXPECTED));
+        unordered.setUnordered(true);
+        assertFalse(unordered.execute(stream(actual)));
+        assertEquals(1, unordered.getErrors().size());
+        assertEquals("ValueSet.expansion.contains - No match found for [http://loinc.org|2]", unordered.getErrors().get(0));
+    }
+
+    @Test
+    public void testUnorderedSingleCode() throws Exception {
+        final String expected = "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/>"
+                + "<expansion><contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains></expansion>"
+                + "</ValueSet>";
+
+        final StreamingComparer later = new StreamingComparer("min", node(expected));
+        later.setUnordered(true);
+        assertTrue(later.getErrors().toString(), later.execute(stream(
+                "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"active\"/><expansion>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"2\"/></contains>"
+                + "</expansion></ValueSet>")));
+
+        final StreamingComparer missing = new StreamingComparer("min", node(expected));
+        missing.setUnordered(true);
+        assertFalse(missing.execute(stream(
+                "<ValueSet xmlns=\"http://hl7.org/fhir\"><status value=\"draft\"/><expansion>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains>"
+                + "<contains><system value=\"http://loinc.org\"/><code value=\"3\"/></contains>"
+                + "</expansion></ValueSet>")));
+        assertEquals(1, missing.getErrors().size());
+        assertEquals("ValueSet.expansion.contains - No match found for [http://loinc.org|2]", missing.getErrors().get(0));
+    }
+
+    @Test
+    public void testWrongResourceType() throws Exception {
+        final StreamingComparer comp = new StreamingComparer("min", node(EXPECTED));
+        final boolean ok = comp.execute(stream(
+                "<OperationOutcome xmlns=\"http://hl7.org/fhir\"><issue><details value=\"too costly\"/></issue></OperationOutcome>"));
+
+        assertFalse(ok);
+        assertEquals("Found a Resource of type OperationOutcome, but expected ValueSet: too costly", comp.getErrors().get(0));
+    }
+
+    @Test
+    public void testMaxErrors() throws Exception {
+        final StreamingComparer comp = new StreamingComparer("min", node(EXPECTED));
+        comp.setMaxErrors(1);
+        final boolean ok = comp.execute(stream(
+                "<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"x\"/>"
+                + "<expansion><contains><system value=\"http://loinc.org\"/><code value=\"1\"/></contains></expansion>"
+                + "</ValueSet>"));
+
+        assertFalse(ok);
+        assertEquals(2, comp.getErrors().size());
+        assertEquals("ValueSet.expansion.contains - Differing numbers of children: expected 2, found 1", comp.getErrors().get(0));
+        assertEquals("Stopped after 1 errors", comp.getErrors().get(1));
+    }
+
+    @Test
+    public void testEmptyBody() throws Exception {
+        final StreamingComparer comp = new StreamingComparer("min", node(EXPECTED));
+
+        assertFalse(comp.execute(stream("")));
+        assertEquals("Expected a Resource of type ValueSet, but found none.", comp.getErrors().get(0));
+    }
+
+    private static XmlNode node(String xml) throws Exception {
+        return XmlNode.parse(stream(xml));
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
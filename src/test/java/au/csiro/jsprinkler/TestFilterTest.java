@@ -0,0 +1,114 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.hl7.fhir.instance.formats.XmlParser;
+import org.hl7.fhir.instance.model.Resource;
+import org.junit.Test;
+
+public class TestFilterTest {
+
+    private static final ExecutionPlan.Test EXPAND = test("expand-1", "Expand intensional value set");
+
+    private static final ExecutionPlan.Test VALIDATE = test("validate-10", "Validate code with display");
+
+    private static final ExecutionPlan.Test UNNAMED = test(null, "Lookup");
+
+    @Test
+    public void testEmpty() {
+        final TestFilter filter = new TestFilter();
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.matches("s1", EXPAND));
+        assertTrue(filter.matches(null, UNNAMED));
+    }
+
+    @Test
+    public void testIdGlobs() {
+        final TestFilter filter = new TestFilter();
+        filter.setTestIds("expand-*, validate-1?");
+        assertFalse(filter.isEmpty());
+        assertTrue(filter.matches("s1", EXPAND));
+        assertTrue(filter.matches("s1", VALIDATE));
+        assertFalse(filter.matches("s1", UNNAMED));
+
+        // without wildcards an id must match exactly, as before
+        filter.setTestIds("validate-1");
+        assertFalse(filter.matches("s1", VALIDATE));
+    }
+
+    @Test
+    public void testSuiteAndTags() {
+        final TestFilter filter = new TestFilter();
+        filter.setSuiteIds("expansion*");
+        assertTrue(filter.matches("expansion-tests", EXPAND));
+        assertFalse(filter.matches("validation-tests", EXPAND));
+
+        filter.setSuiteIds(null);
+        filter.setTags("DISPLAY,lookup");
+        assertFalse(filter.matches("s1", EXPAND));
+        assertTrue(filter.matches("s1", VALIDATE));
+        assertTrue(filter.matches("s1", UNNAMED));
+    }
+
+    @Test
+    public void testKeys() {
+        final TestFilter filter = new TestFilter();
+        filter.setKeys(new HashSet<>(Arrays.asList("validate-10", "Lookup")));
+        assertFalse(filter.matches("s1", EXPAND));
+        assertTrue(filter.matches("s1", VALIDATE));
+        assertTrue(filter.matches("s1", UNNAMED));
+    }
+
+    @Test
+    public void testContainsReference() {
+        final StringBuilder text = new StringBuilder("ValueSet/case-10/$expand\nValueSet/case-2");
+        assertTrue(TestFilter.contains(text, "ValueSet/case-10"));
+        assertTrue(TestFilter.contains(text, "ValueSet/case-2"));
+        assertFalse(TestFilter.contains(text, "ValueSet/case-1"));
+        assertEquals(0, TestFilter.trimSetup(Collections.<ExecutionPlan.SetupAction>emptyList(), Collections.singletonList(EXPAND)).size());
+    }
+
+    @Test
+    public void testTrimSetupKeepsCodeSystem() throws Exception {
+        final Resource codeSystem = parse("<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"cs\"/>"
+                + "<url value=\"http://example.org/vs/cs\"/><status value=\"draft\"/>"
+                + "<codeSystem><system value=\"http://example.org/cs\"/><concept><code value=\"a\"/></concept></codeSystem>"
+                + "</ValueSet>");
+        final Resource user = parse("<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"uses-cs\"/>"
+                + "<url value=\"http://example.org/vs/uses-cs\"/><status value=\"draft\"/>"
+                + "<compose><include><system value=\"http://example.org/cs\"/></include></compose>"
+                + "</ValueSet>");
+        final Resource other = parse("<ValueSet xmlns=\"http://hl7.org/fhir\"><id value=\"other\"/>"
+                + "<url value=\"http://example.org/vs/other\"/><status value=\"draft\"/>"
+                + "<codeSystem><system value=\"http://example.org/other\"/><concept><code value=\"b\"/></concept></codeSystem>"
+                + "</ValueSet>");
+        final List<ExecutionPlan.SetupAction> setup = Arrays.asList(
+                new ExecutionPlan.SetupAction("code systems", Arrays.asList(codeSystem, other)),
+                new ExecutionPlan.SetupAction("value sets", Collections.singletonList(user)));
+        final ExecutionPlan.Test expand = new ExecutionPlan.Test("expand-2", "Expand", Collections.singletonList(
+                new ExecutionPlan.Operation("ValueSet/uses-cs/$expand", null, null, ResponseCodeRange.parse("200"), "min", null)));
+
+        final List<ExecutionPlan.SetupAction> trimmed = TestFilter.trimSetup(setup, Collections.singletonList(expand));
+        assertEquals(2, trimmed.size());
+        assertEquals(Collections.singletonList(codeSystem), trimmed.get(0).getUpdates());
+        assertEquals(Collections.singletonList(user), trimmed.get(1).getUpdates());
+    }
+
+    private static Resource parse(String xml) throws Exception {
+        return new XmlParser().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ExecutionPlan.Test test(String id, String name) {
+        return new ExecutionPlan.Test(id, name, Collections.<ExecutionPlan.Operation>emptyList());
+    }
+
+}
@@ -3,12 +3,13 @@ package au.csiro.jsprinkler;
 import static org.junit.Assert.assertEquals;
 
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import au.csiro.jsprinkler.MultiEndpointRunner.EndpointResult;
+
 public class Tester {
 
     private static final String[] ENDPOINT = {
@@ -40,29 +41,15 @@ public class Tester {
     @Test
     public void testScript() throws Exception {
         final int nTests = 55;
-        final List<Integer> failed = new ArrayList<>();
-
-        for (String server: ENDPOINT) {
-            System.out.println("Endpoint: " + server);
-
-            final TestScript script = new TestScript(server);
-            script.run(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
 
-            assertEquals(nTests, script.getTotal());
+        final MultiEndpointRunner runner = new MultiEndpointRunner(Arrays.asList(ENDPOINT));
+        runner.run(new InputStreamReader(getClass().getResourceAsStream(SCRIPT)));
 
-//            for (String f: script.getFailedTests()) {
-//                System.err.println(f);
-//            }
-
-            failed.add(script.getFail());
-
-            System.out.println();
+        for (EndpointResult result: runner.getResults()) {
+            assertEquals(result.getEndpoint(), nTests, result.getTotal());
         }
 
-        System.out.println("Passed\tFailed\tEndpoint");
-        for (int i = 0; i < ENDPOINT.length; i++) {
-            System.out.println((nTests - failed.get(i)) + "\t" + failed.get(i) + "\t" + ENDPOINT[i]);
-        }
+        runner.printSummary(System.out);
     }
 
 }
@@ -0,0 +1,47 @@
+package au.csiro.jsprinkler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class WarmProfileTest {
+
+    @Test
+    public void testRatio() {
+        final WarmProfile profile = new WarmProfile();
+        final WarmProfile.Entry entry = profile.record("t1", "ValueSet/$expand?identifier=loinc", 1000000000L, warm(10000, 10000, 10000));
+
+        assertEquals(100.0, entry.getRatio(), 0.001);
+        assertEquals("Cold 1000.0ms, warm p50 10.0ms p90 10.0ms max 10.0ms over 3 calls (100.0x)", entry.toString());
+        assertEquals(0.0, profile.record("t2", "x", 1000000L, new LatencyHistogram()).getRatio(), 0.001);
+    }
+
+    @Test
+    public void testPrintMostAffectedFirst() {
+        final WarmProfile profile = new WarmProfile();
+        profile.record("small", "a", 2000000L, warm(1000));
+        profile.record("large", "b", 500000000L, warm(5000));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        profile.print(new PrintStream(bytes, true));
+        final String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\r?\n");
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[1], lines[1].endsWith("100.0x\tlarge\tb"));
+        assertTrue(lines[2], lines[2].endsWith("2.0x\tsmall\ta"));
+    }
+
+    private static LatencyHistogram warm(long... micros) {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (long value: micros) {
+            h.record(value);
+        }
+        return h;
+    }
+
+}